@@ -0,0 +1,59 @@
+package com.pydio.android.cells
+
+import com.pydio.android.cells.db.nodes.RTreeNode
+import com.pydio.cells.api.SdkNames
+import com.pydio.cells.api.ui.FileNode
+import com.pydio.cells.transport.StateID
+import java.util.Properties
+
+/** Local and remote nodes for the DB, diff and benchmark tests, all in a single workspace */
+object TestNodes {
+
+    const val SLUG = "common-files"
+    val accountID = StateID("john", "https://example.com")
+
+    fun stateID(path: String): StateID = accountID.withPath("/$SLUG$path")
+
+    fun node(
+        parentPath: String,
+        name: String,
+        mime: String = "image/jpeg",
+        meta: Properties = Properties(),
+        properties: Properties = Properties(),
+    ): RTreeNode {
+        val path = if (parentPath == "/") "/$name" else "$parentPath/$name"
+        return RTreeNode(
+            encodedState = stateID(path).id,
+            uuid = "uuid-$path",
+            workspace = SLUG,
+            parentPath = parentPath,
+            name = name,
+            mime = mime,
+            etag = "etag-$path",
+            size = 20480,
+            remoteModificationTS = 1700000000,
+            properties = properties,
+            meta = meta,
+            metaHash = meta.hashCode(),
+            sortName = name,
+            searchMeta = RTreeNode.computeSearchMeta(meta),
+        )
+    }
+
+    fun fileNode(path: String, isFile: Boolean): FileNode {
+        val fn = FileNode()
+        fn.setProperty(SdkNames.NODE_PROPERTY_UID, "uuid-$path")
+        fn.setProperty(SdkNames.NODE_PROPERTY_ETAG, "etag-$path")
+        fn.setProperty(SdkNames.NODE_PROPERTY_MTIME, "1700000000")
+        fn.setProperty(SdkNames.NODE_PROPERTY_PATH, path)
+        fn.setProperty(SdkNames.NODE_PROPERTY_WORKSPACE_SLUG, SLUG)
+        fn.setProperty(SdkNames.NODE_PROPERTY_FILENAME, path.substringAfterLast("/"))
+        fn.setProperty(SdkNames.NODE_PROPERTY_IS_FILE, "$isFile")
+        fn.setProperty(
+            SdkNames.NODE_PROPERTY_MIME,
+            if (isFile) "image/jpeg" else SdkNames.NODE_MIME_FOLDER
+        )
+        fn.setProperty(SdkNames.NODE_PROPERTY_BYTESIZE, "20480")
+        return fn
+    }
+}
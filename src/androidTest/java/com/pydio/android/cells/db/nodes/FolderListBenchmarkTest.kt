@@ -0,0 +1,108 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.Room
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import com.pydio.android.cells.TestNodes
+import com.pydio.cells.api.SdkNames
+import com.pydio.cells.utils.Log
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import kotlin.time.measureTimedValue
+
+/**
+ * Measures the time to open a folder, that is to list its children with the same
+ * queries as the browse screens, when the local cache contains 100k and 1M nodes.
+ */
+@LargeTest
+class FolderListBenchmarkTest {
+
+    private val logTag = "FolderListBenchmarkTest"
+
+    private val childPerFolder = 1_000
+    private val batchSize = 10_000
+
+    private lateinit var nodeDB: TreeNodeDB
+
+    @Before
+    fun createDb() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        nodeDB = Room.inMemoryDatabaseBuilder(context, TreeNodeDB::class.java).build()
+    }
+
+    @After
+    fun closeDb() {
+        nodeDB.close()
+    }
+
+    @Test
+    fun openFolderWith100kCachedNodes() = runTest {
+        openFolder(100_000)
+    }
+
+    @Test
+    fun openFolderWith1MCachedNodes() = runTest {
+        openFolder(1_000_000)
+    }
+
+    private suspend fun openFolder(nodeNb: Int) {
+        populate(nodeNb)
+        val dao = nodeDB.treeNodeDao()
+
+        // Open a folder in the middle of the tree
+        val folderPath = folderPath(nodeNb / childPerFolder / 2)
+        val (children, duration) = measureTimedValue {
+            dao.searchQueryFlow(
+                SimpleSQLiteQuery(
+                    "SELECT * FROM tree_nodes WHERE parent_path = ? AND workspace = ? " +
+                            "ORDER BY sort_name ASC ", arrayOf(folderPath, TestNodes.SLUG)
+                )
+            ).first()
+        }
+        Log.i(
+            logTag, "Listed ${children.size} children among $nodeNb cached nodes " +
+                    "in ${duration.inWholeMilliseconds}ms"
+        )
+        assertEquals(childPerFolder - 1, children.size)
+
+        val (diffNodes, diffDuration) = measureTimedValue {
+            dao.getNodesForDiff(TestNodes.SLUG, folderPath)
+        }
+        Log.i(logTag, "Retrieved nodes for diff in ${diffDuration.inWholeMilliseconds}ms")
+        assertEquals(childPerFolder - 1, diffNodes.size)
+
+        val underState = TestNodes.stateID(folderPath)
+        val (under, underDuration) = measureTimedValue { dao.getUnder(underState.id) }
+        Log.i(logTag, "Retrieved nodes under folder in ${underDuration.inWholeMilliseconds}ms")
+        // The folder itself is also returned
+        assertEquals(childPerFolder, under.size)
+    }
+
+    private fun populate(nodeNb: Int) {
+        val dao = nodeDB.treeNodeDao()
+        val folderNb = nodeNb / childPerFolder
+        val batch = mutableListOf<RTreeNode>()
+        for (i in 0 until folderNb) {
+            val folderPath = folderPath(i)
+            batch.add(TestNodes.node("/", folderPath.substring(1), SdkNames.NODE_MIME_FOLDER))
+            // Folders are also counted to have exactly nodeNb nodes in the table
+            for (j in 0 until childPerFolder - 1) {
+                batch.add(TestNodes.node(folderPath, String.format("file_%04d.jpg", j)))
+            }
+            if (batch.size >= batchSize) {
+                dao.insertAll(batch)
+                batch.clear()
+            }
+        }
+        if (batch.isNotEmpty()) {
+            dao.insertAll(batch)
+        }
+    }
+
+    private fun folderPath(index: Int) = String.format("/folder_%05d", index)
+}
@@ -0,0 +1,146 @@
+package com.pydio.android.cells.db.nodes
+
+import android.os.Debug
+import androidx.room.Room
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.TestNodes
+import com.pydio.android.cells.db.CellsConverters
+import com.pydio.cells.api.SdkNames
+import com.pydio.cells.utils.Log
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import java.util.Properties
+import kotlin.time.measureTimedValue
+
+/**
+ * Compares the allocations that are necessary to decode the properties and meta of a folder
+ * with 5k children with the legacy JSON format and with the binary format,
+ * and measures the allocations of a full folder load with the current format.
+ */
+@LargeTest
+class FolderLoadAllocationBenchmarkTest {
+
+    private val logTag = "FolderLoadAllocationBenchmarkTest"
+
+    private val folderPath = "/benchmark"
+    private val childNb = 5_000
+
+    private lateinit var nodeDB: TreeNodeDB
+
+    @Before
+    fun createDb() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        nodeDB = Room.inMemoryDatabaseBuilder(context, TreeNodeDB::class.java).build()
+    }
+
+    @After
+    fun closeDb() {
+        nodeDB.close()
+    }
+
+    @Test
+    fun decodeProperties() {
+        val nodes = (0 until childNb).map { node(it) }
+
+        val gson = CellsConverters()
+        val jsonRows = nodes.map { gson.fromProperties(it.properties) to gson.fromProperties(it.meta) }
+        val (jsonBytes, jsonMs) = measureAllocations {
+            jsonRows.forEach { (props, meta) ->
+                gson.toProperties(props)
+                gson.toProperties(meta)
+            }
+        }
+
+        val binRows = nodes.map { PropertiesCodec.encode(it.properties) to PropertiesCodec.encode(it.meta) }
+        val (binBytes, binMs) = measureAllocations {
+            binRows.forEach { (props, meta) ->
+                PropertiesCodec.decode(props)
+                PropertiesCodec.decode(meta)
+            }
+        }
+
+        Log.i(
+            logTag, "Decoded $childNb rows - JSON: ${jsonBytes / 1024}KB in ${jsonMs}ms " +
+                    "(${jsonRows.sumOf { it.first.length + it.second.length } / 1024}KB stored), " +
+                    "binary: ${binBytes / 1024}KB in ${binMs}ms " +
+                    "(${binRows.sumOf { it.first.size + it.second.size } / 1024}KB stored)"
+        )
+
+        // Round trip
+        val decoded = PropertiesCodec.decode(binRows[42].second)
+        assertEquals(nodes[42].meta, decoded)
+    }
+
+    @Test
+    fun loadFolder() = runTest {
+        nodeDB.treeNodeDao().insertAll((0 until childNb).map { node(it) })
+
+        val query = SimpleSQLiteQuery(
+            "SELECT * FROM tree_nodes WHERE parent_path = ? AND workspace = ? ORDER BY sort_name ASC",
+            arrayOf(folderPath, TestNodes.SLUG)
+        )
+        val startBytes = allocatedBytes()
+        val (children, duration) = measureTimedValue {
+            nodeDB.treeNodeDao().searchQueryFlow(query).first()
+        }
+        val allocated = allocatedBytes() - startBytes
+        Log.i(
+            logTag, "Loaded ${children.size} children in ${duration.inWholeMilliseconds}ms, " +
+                    "allocated ${allocated / 1024}KB"
+        )
+        assertEquals(childNb, children.size)
+        assertEquals(4000, children[0].imageWidth)
+        assertEquals(6, children[0].exifOrientation)
+    }
+
+    private fun measureAllocations(block: () -> Unit): Pair<Long, Long> {
+        val startBytes = allocatedBytes()
+        val (_, duration) = measureTimedValue(block)
+        return (allocatedBytes() - startBytes) to duration.inWholeMilliseconds
+    }
+
+    private fun allocatedBytes(): Long {
+        return Debug.getRuntimeStat("art.gc.bytes-allocated")?.toLongOrNull() ?: 0L
+    }
+
+    /** Properties and meta mimic the ones that are returned by a Cells server for an image */
+    private fun node(index: Int): RTreeNode {
+        val name = String.format("IMG_%05d.jpg", index)
+        val path = "$folderPath/$name"
+        val props = Properties()
+        props.setProperty(SdkNames.NODE_PROPERTY_UID, "uuid-$path")
+        props.setProperty(SdkNames.NODE_PROPERTY_ETAG, "etag-$path")
+        props.setProperty(SdkNames.NODE_PROPERTY_PATH, path)
+        props.setProperty(SdkNames.NODE_PROPERTY_FILENAME, name)
+        props.setProperty(SdkNames.NODE_PROPERTY_WORKSPACE_SLUG, TestNodes.SLUG)
+        props.setProperty(SdkNames.NODE_PROPERTY_MIME, "image/jpeg")
+        props.setProperty(SdkNames.NODE_PROPERTY_BYTESIZE, "4194304")
+        props.setProperty(SdkNames.NODE_PROPERTY_MTIME, "1700000000")
+        props.setProperty(SdkNames.NODE_PROPERTY_IS_FILE, "true")
+        val meta = Properties()
+        meta.setProperty(AppNames.META_IMAGE_WIDTH, "4000")
+        meta.setProperty(AppNames.META_IMAGE_HEIGHT, "3000")
+        meta.setProperty(SdkNames.NODE_PROPERTY_IMG_EXIF_ORIENTATION, "\"6\"")
+        meta.setProperty("is_image", "true")
+        meta.setProperty(
+            "ImageThumbnails",
+            "{\"Processing\":false,\"thumbnails\":[{\"format\":\"jpg\",\"size\":512}," +
+                    "{\"format\":\"jpg\",\"size\":256}]}"
+        )
+        meta.setProperty("usermeta-tags", "holidays,family")
+
+        val node = TestNodes.node(folderPath, name, "image/jpeg", meta, props)
+        node.size = 4194304
+        node.imageWidth = RTreeNode.intMeta(meta, AppNames.META_IMAGE_WIDTH)
+        node.imageHeight = RTreeNode.intMeta(meta, AppNames.META_IMAGE_HEIGHT)
+        node.exifOrientation = RTreeNode.intMeta(meta, SdkNames.NODE_PROPERTY_IMG_EXIF_ORIENTATION)
+        return node
+    }
+}
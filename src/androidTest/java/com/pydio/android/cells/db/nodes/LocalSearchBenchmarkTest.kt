@@ -0,0 +1,93 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.Room
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import com.pydio.android.cells.TestNodes
+import com.pydio.cells.utils.Log
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.util.Properties
+import kotlin.time.measureTimedValue
+
+/**
+ * Measures the time to search the local full text index when it contains 500k nodes.
+ */
+@LargeTest
+class LocalSearchBenchmarkTest {
+
+    private val logTag = "LocalSearchBenchmarkTest"
+
+    private val nodeNb = 500_000
+    private val batchSize = 10_000
+
+    private lateinit var nodeDB: TreeNodeDB
+
+    @Before
+    fun createDb() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        nodeDB = Room.inMemoryDatabaseBuilder(context, TreeNodeDB::class.java).build()
+        populate()
+    }
+
+    @After
+    fun closeDb() {
+        nodeDB.close()
+    }
+
+    @Test
+    fun searchLargeIndex() = runTest {
+        // Exact name first, then names that also contain all terms, e.g. invoice_42420.pdf
+        val hits = search("invoice_4242.pdf")
+        assertTrue(hits.isNotEmpty())
+        assertEquals("invoice_4242.pdf", hits[0].name)
+
+        // Hits on the user meta only
+        val metaHits = search("holidays")
+        assertEquals(nodeNb / 1000, metaHits.size)
+
+        // Nothing to search
+        assertEquals(null, RTreeNodeFts.searchQuery(" - ", "sort_name", "ASC", 100))
+    }
+
+    private suspend fun search(input: String): List<RTreeNode> {
+        val query = RTreeNodeFts.searchQuery(input, "sort_name", "ASC", 1000)
+        assertNotNull(query)
+        val (hits, duration) = measureTimedValue {
+            nodeDB.treeNodeDao().searchQueryFlow(query!!).first()
+        }
+        Log.i(
+            logTag, "Found ${hits.size} hits for [$input] among $nodeNb nodes " +
+                    "in ${duration.inWholeMilliseconds}ms"
+        )
+        return hits
+    }
+
+    private fun populate() {
+        val dao = nodeDB.treeNodeDao()
+        val batch = mutableListOf<RTreeNode>()
+        for (i in 0 until nodeNb) {
+            val folderPath = String.format("/folder_%04d", i / 1000)
+            val meta = Properties()
+            if (i % 1000 == 0) {
+                meta.setProperty("usermeta-tags", "holidays,family")
+            }
+            batch.add(
+                TestNodes.node(folderPath, String.format("invoice_%d.pdf", i), "application/pdf", meta)
+            )
+            if (batch.size >= batchSize) {
+                dao.insertAll(batch)
+                batch.clear()
+            }
+        }
+        if (batch.isNotEmpty()) {
+            dao.insertAll(batch)
+        }
+    }
+}
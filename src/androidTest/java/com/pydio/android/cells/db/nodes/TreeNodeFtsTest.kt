@@ -0,0 +1,91 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.Room
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.pydio.android.cells.TestNodes
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Properties
+
+/** Checks that the full text index follows the changes of the tree_nodes table */
+@RunWith(AndroidJUnit4::class)
+class TreeNodeFtsTest {
+
+    private lateinit var nodeDB: TreeNodeDB
+
+    @Before
+    fun createDb() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        nodeDB = Room.inMemoryDatabaseBuilder(context, TreeNodeDB::class.java).build()
+    }
+
+    @After
+    fun closeDb() {
+        nodeDB.close()
+    }
+
+    @Test
+    fun searchAfterUpdate() = runTest {
+        val dao = nodeDB.treeNodeDao()
+        dao.insert(TestNodes.node("/reports", "quarterly.pdf", "application/pdf", tags("family")))
+        assertEquals(1, indexHits("family"))
+
+        dao.update(TestNodes.node("/reports", "quarterly.pdf", "application/pdf", tags("holidays")))
+        assertEquals(0, indexHits("family"))
+        assertEquals(1, indexHits("holidays"))
+        assertEquals(1, indexHits("name:quarterly"))
+
+        val query = RTreeNodeFts.searchQuery("holidays", "sort_name", "ASC", 100)!!
+        val hits = dao.searchQueryFlow(query).first()
+        assertEquals(listOf("quarterly.pdf"), hits.map { it.name })
+    }
+
+    @Test
+    fun searchAfterDelete() = runTest {
+        val dao = nodeDB.treeNodeDao()
+        val node = TestNodes.node("/reports", "quarterly.pdf", "application/pdf", tags("family"))
+        dao.insert(node)
+        dao.delete(node.encodedState)
+        assertEquals(0, indexHits("family"))
+        assertEquals(0, indexHits("name:quarterly"))
+    }
+
+    @Test
+    fun upsertOfACachedNode() = runTest {
+        val dao = nodeDB.treeNodeDao()
+        dao.insert(TestNodes.node("/reports", "quarterly.pdf", "application/pdf", tags("family")))
+        // A second insert of the same node is ignored rather than replacing the row
+        assertEquals(-1L, dao.insert(TestNodes.node("/reports", "quarterly.pdf", "application/pdf", tags("work"))))
+        assertEquals(1, indexHits("family"))
+
+        dao.upsertAll(listOf(TestNodes.node("/reports", "quarterly.pdf", "application/pdf", tags("holidays"))))
+        assertEquals(0, indexHits("family"))
+        assertEquals(1, indexHits("holidays"))
+        assertEquals(1, indexHits("name:quarterly"))
+    }
+
+    /** Counts the rows of the index itself: stale entries are not filtered by a join */
+    private fun indexHits(match: String): Int {
+        nodeDB.query(
+            SimpleSQLiteQuery(
+                "SELECT COUNT(*) FROM tree_nodes_fts WHERE tree_nodes_fts MATCH ?", arrayOf(match)
+            )
+        ).use {
+            it.moveToFirst()
+            return it.getInt(0)
+        }
+    }
+
+    private fun tags(tags: String): Properties {
+        val meta = Properties()
+        meta.setProperty("usermeta-tags", tags)
+        return meta
+    }
+}
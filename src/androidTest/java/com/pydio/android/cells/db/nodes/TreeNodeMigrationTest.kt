@@ -0,0 +1,214 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.Room
+import androidx.room.testing.MigrationTestHelper
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.TestNodes
+import com.pydio.android.cells.db.CellsConverters
+import com.pydio.cells.api.SdkNames
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Properties
+
+/**
+ * Plays all migrations on a DB that has been created with the oldest exported schema we still
+ * support, and checks that the cached data, the full text index and the triggers survive,
+ * among others when the tree_nodes table is rebuilt by MIGRATION_9_10.
+ */
+@RunWith(AndroidJUnit4::class)
+class TreeNodeMigrationTest {
+
+    private val testDB = "migration-test"
+
+    @get:Rule
+    val helper = MigrationTestHelper(
+        InstrumentationRegistry.getInstrumentation(),
+        TreeNodeDB::class.java,
+    )
+
+    private val photosPath = "/photos"
+    private val holidayID = TestNodes.stateID("$photosPath/holiday.jpg").id
+    private val notesID = TestNodes.stateID("$photosPath/notes.txt").id
+
+    @Test
+    fun migrateFrom5() {
+        val rowIDs = helper.createDatabase(testDB, 5).use { db ->
+            insertV5Node(db, holidayID, "holiday.jpg", "image/jpeg", imageProps(), imageMeta())
+            insertV5Node(db, notesID, "notes.txt", "text/plain", Properties(), Properties())
+            db.execSQL(
+                "INSERT INTO offline_roots (encoded_state, uuid, status, local_mod_ts, " +
+                        "last_check_ts, message, sort_name, storage) " +
+                        "VALUES (?, 'uuid-holiday.jpg', ?, 0, 0, NULL, '5_holiday.jpg', ?)",
+                arrayOf<Any?>(
+                    holidayID,
+                    AppNames.OFFLINE_STATUS_ACTIVE,
+                    AppNames.OFFLINE_STORAGE_INTERNAL
+                )
+            )
+            db.execSQL(
+                "INSERT INTO local_files (encoded_state, type, file, etag, size, " +
+                        "remote_mod_ts, local_mod_ts) " +
+                        "VALUES (?, ?, 'thumbs/holiday.jpg', 'etag', 2048, 1000, 1000)",
+                arrayOf<Any?>(holidayID, AppNames.LOCAL_FILE_TYPE_THUMB)
+            )
+            db.execSQL(
+                "INSERT INTO transfers (job_id, encoded_state, type, local_path, byte_size, mime, " +
+                        "etag, multipart, external_id, creation_ts, start_ts, update_ts, done_ts, " +
+                        "status, error, progress) " +
+                        "VALUES (1, ?, 'upload', '/tmp/notes.txt', 12, 'text/plain', NULL, 0, -1, " +
+                        "1000, -1, -1, -1, NULL, NULL, 0)",
+                arrayOf<Any?>(notesID)
+            )
+            mapOf(holidayID to rowID(db, holidayID), notesID to rowID(db, notesID))
+        }
+
+        // Room plays the migrations when it opens the DB and validates the result against
+        // the compiled entities, rather than against exported schemas
+        val nodeDB = Room.databaseBuilder(
+            InstrumentationRegistry.getInstrumentation().targetContext,
+            TreeNodeDB::class.java,
+            testDB
+        ).addMigrations(*TreeNodeDB.MIGRATIONS).build()
+        helper.closeWhenFinished(nodeDB)
+        val db = nodeDB.openHelper.writableDatabase
+
+        // Rows keep their ID, that is also the ID of their entry in the full text index
+        assertEquals(rowIDs[holidayID], rowID(db, holidayID))
+        assertEquals(rowIDs[notesID], rowID(db, notesID))
+
+        // JSON properties have been converted and hot values promoted to their own columns
+        db.query(
+            "SELECT properties, meta, share_link, image_width, image_height FROM tree_nodes " +
+                    "WHERE encoded_state = ?", arrayOf<Any?>(holidayID)
+        ).use {
+            assertTrue(it.moveToFirst())
+            val props = PropertiesCodec.decode(it.getBlob(0))
+            val meta = PropertiesCodec.decode(it.getBlob(1))
+            assertEquals("image/jpeg", props.getProperty(SdkNames.NODE_PROPERTY_MIME))
+            assertNull(props.getProperty(SdkNames.NODE_PROPERTY_SHARE_LINK))
+            assertEquals("family", meta.getProperty("usermeta-tags"))
+            assertEquals("https://example.com/public/abc", it.getString(2))
+            assertEquals(1920, it.getInt(3))
+            assertEquals(1080, it.getInt(4))
+        }
+
+        // Nodes that were cached before the index existed can be found
+        assertEquals(1, ftsHits(db, "name:holiday"))
+
+        // The view has been re-created after the rebuild
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM RLiveOfflineRoot WHERE name = 'holiday.jpg'"))
+
+        // Other tables got their new columns with their defaults
+        assertEquals(
+            1, count(db, "SELECT COUNT(*) FROM local_files WHERE access_ts = 0 AND access_count = 0")
+        )
+        assertEquals(1, count(db, "SELECT COUNT(*) FROM transfers WHERE priority = 0 AND throughput = 0"))
+
+        // Triggers are not known by Room: check that they are all there and still work
+        val triggers = mutableSetOf<String>()
+        db.query(
+            "SELECT name FROM sqlite_master WHERE type = 'trigger' AND tbl_name = 'tree_nodes'"
+        ).use {
+            while (it.moveToNext()) triggers.add(it.getString(0))
+        }
+        assertEquals(
+            setOf(
+                "tree_nodes_folder_stamp_insert",
+                "tree_nodes_folder_stamp_update",
+                "tree_nodes_folder_stamp_delete",
+                "room_fts_content_sync_tree_nodes_fts_BEFORE_UPDATE",
+                "room_fts_content_sync_tree_nodes_fts_BEFORE_DELETE",
+                "room_fts_content_sync_tree_nodes_fts_AFTER_UPDATE",
+                "room_fts_content_sync_tree_nodes_fts_AFTER_INSERT",
+            ),
+            triggers
+        )
+
+        db.execSQL(
+            "UPDATE tree_nodes SET name = 'journal.txt' WHERE encoded_state = ?",
+            arrayOf<Any?>(notesID)
+        )
+        assertEquals(0, ftsHits(db, "name:notes"))
+        assertEquals(1, ftsHits(db, "name:journal"))
+        assertEquals(1, folderStamp(db))
+
+        db.execSQL("DELETE FROM tree_nodes WHERE encoded_state = ?", arrayOf<Any?>(holidayID))
+        assertEquals(0, ftsHits(db, "name:holiday"))
+        assertEquals(2, folderStamp(db))
+    }
+
+    private fun insertV5Node(
+        db: SupportSQLiteDatabase,
+        encodedState: String,
+        name: String,
+        mime: String,
+        props: Properties,
+        meta: Properties,
+    ) {
+        val json = CellsConverters()
+        db.execSQL(
+            "INSERT INTO tree_nodes (encoded_state, uuid, workspace, parent_path, name, mime, etag, " +
+                    "size, remote_mod_ts, last_check_ts, local_mod_ts, local_mod_status, properties, " +
+                    "meta, meta_hash, sort_name, flags) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, 'etag', 2048, 1000, 1000, 0, NULL, ?, ?, 0, ?, 0)",
+            arrayOf<Any?>(
+                encodedState,
+                "uuid-$name",
+                TestNodes.SLUG,
+                photosPath,
+                name,
+                mime,
+                json.fromProperties(props),
+                json.fromProperties(meta),
+                "5_$name",
+            )
+        )
+    }
+
+    private fun imageProps(): Properties {
+        val props = Properties()
+        props.setProperty(SdkNames.NODE_PROPERTY_MIME, "image/jpeg")
+        props.setProperty(SdkNames.NODE_PROPERTY_SHARE_LINK, "https://example.com/public/abc")
+        return props
+    }
+
+    private fun imageMeta(): Properties {
+        val meta = Properties()
+        meta.setProperty(AppNames.META_IMAGE_WIDTH, "1920")
+        meta.setProperty(AppNames.META_IMAGE_HEIGHT, "1080")
+        meta.setProperty("usermeta-tags", "family")
+        return meta
+    }
+
+    private fun rowID(db: SupportSQLiteDatabase, encodedState: String): Long {
+        db.query("SELECT rowid FROM tree_nodes WHERE encoded_state = ?", arrayOf<Any?>(encodedState)).use {
+            assertTrue(it.moveToFirst())
+            return it.getLong(0)
+        }
+    }
+
+    private fun ftsHits(db: SupportSQLiteDatabase, match: String): Int {
+        return count(db, "SELECT COUNT(*) FROM tree_nodes_fts WHERE tree_nodes_fts MATCH '$match'")
+    }
+
+    private fun folderStamp(db: SupportSQLiteDatabase): Int {
+        return count(
+            db, "SELECT stamp FROM folder_stamps " +
+                    "WHERE workspace = '${TestNodes.SLUG}' AND parent_path = '$photosPath'"
+        )
+    }
+
+    private fun count(db: SupportSQLiteDatabase, query: String): Int {
+        db.query(query).use {
+            assertTrue(it.moveToFirst())
+            return it.getInt(0)
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.pydio.android.cells.services.models
+
+import androidx.paging.PagingConfig
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/** Reloads a list of 10k rows that has been scrolled deep down after an invalidation */
+class OffsetPagingSourceTest {
+
+    private val rows = (0 until 10_000).toList()
+    private val config = PagingConfig(pageSize = 20, enablePlaceholders = false)
+
+    @Test
+    fun refreshKeyIsAnOffsetInTheList() = runTest {
+        val source = OffsetPagingSource { limit, offset -> rows.drop(offset).take(limit) }
+
+        // A first list that has been reloaded at row 1000, then scrolled down by 2 pages
+        val first = page(source, PagingSource.LoadParams.Refresh(1000, config.initialLoadSize, false))
+        val second = page(source, PagingSource.LoadParams.Append(first.nextKey!!, config.pageSize, false))
+        val third = page(source, PagingSource.LoadParams.Append(second.nextKey!!, config.pageSize, false))
+        assertEquals(1000, first.data[0])
+        assertEquals(1000 + config.initialLoadSize + config.pageSize, third.data[0])
+
+        // The user is looking at the 5th row of the last page: positions are relative to the first page
+        val anchor = first.data.size + second.data.size + 4
+        val state = PagingState(listOf(first, second, third), anchor, config, 0)
+        val refreshKey = source.getRefreshKey(state)
+        assertEquals(third.data[4] - config.initialLoadSize / 2, refreshKey)
+
+        // The reloaded page contains the row that was on screen
+        val reloaded = page(source, PagingSource.LoadParams.Refresh(refreshKey, config.initialLoadSize, false))
+        assertEquals(true, reloaded.data.contains(third.data[4]))
+    }
+
+    @Test
+    fun refreshKeyIsNeverNegative() = runTest {
+        val source = OffsetPagingSource { limit, offset -> rows.drop(offset).take(limit) }
+        val first = page(source, PagingSource.LoadParams.Refresh(null, config.initialLoadSize, false))
+        val state = PagingState(listOf(first), 3, config, 0)
+        assertEquals(0, source.getRefreshKey(state))
+    }
+
+    private suspend fun page(
+        source: OffsetPagingSource<Int>,
+        params: PagingSource.LoadParams<Int>
+    ): PagingSource.LoadResult.Page<Int, Int> {
+        return source.load(params) as PagingSource.LoadResult.Page<Int, Int>
+    }
+}
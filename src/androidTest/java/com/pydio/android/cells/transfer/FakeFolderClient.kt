@@ -0,0 +1,49 @@
+package com.pydio.android.cells.transfer
+
+import com.pydio.android.cells.TestNodes
+import com.pydio.cells.api.Client
+import com.pydio.cells.api.callbacks.NodeHandler
+import com.pydio.cells.api.ui.PageOptions
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Proxy
+
+/**
+ * Serves the listing of a single remote folder, with the methods that are used by the TreeDiff.
+ * Children are files and must be named so that the server order is also the lexicographic order.
+ */
+class FakeFolderClient(private val folderPath: String) {
+
+    @Volatile
+    var childNames: List<String> = listOf()
+
+    val client: Client = Proxy.newProxyInstance(
+        Client::class.java.classLoader,
+        arrayOf(Client::class.java),
+        InvocationHandler { _, method, args ->
+            when (method.name) {
+                "isLegacy" -> false
+                "nodeInfo" -> TestNodes.fileNode(folderPath, isFile = false)
+                "ls" -> listPage(args!![2] as PageOptions, args[3] as NodeHandler)
+                "toString" -> "FakeFolderClient"
+                "hashCode" -> 0
+                "equals" -> false
+                else -> throw UnsupportedOperationException("${method.name} is not implemented")
+            }
+        }
+    ) as Client
+
+    private fun listPage(page: PageOptions, handler: NodeHandler): PageOptions {
+        val children = childNames
+        val end = minOf(page.offset + page.limit, children.size)
+        for (i in page.offset until end) {
+            handler.onNode(TestNodes.fileNode("$folderPath/${children[i]}", true))
+        }
+        val next = PageOptions()
+        next.limit = page.limit
+        next.offset = end
+        next.total = children.size
+        next.currentPage = page.currentPage + 1
+        next.totalPages = (children.size + page.limit - 1) / page.limit
+        return next
+    }
+}
@@ -0,0 +1,77 @@
+package com.pydio.android.cells.transfer
+
+import androidx.room.Room
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import com.pydio.android.cells.TestNodes
+import com.pydio.android.cells.db.nodes.TreeNodeDB
+import com.pydio.cells.utils.Log
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.measureTimedValue
+
+/**
+ * Diffs a synthetic folder with 50k children against an in-memory DB
+ * and reports wall time and number of SQL statements that have been executed.
+ */
+@LargeTest
+class TreeDiffBenchmarkTest {
+
+    private val logTag = "TreeDiffBenchmarkTest"
+
+    private val childNb = 50_000
+    private val folderPath = "/benchmark"
+    private val folderID = TestNodes.stateID(folderPath)
+
+    private val statementCount = AtomicInteger(0)
+    private lateinit var nodeDB: TreeNodeDB
+
+    @Before
+    fun createDb() {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        nodeDB = Room.inMemoryDatabaseBuilder(context, TreeNodeDB::class.java)
+            // Count statements synchronously
+            .setQueryCallback({ _, _ -> statementCount.incrementAndGet() }, Executor { it.run() })
+            .build()
+    }
+
+    @After
+    fun closeDb() {
+        nodeDB.close()
+    }
+
+    @Test
+    fun diffLargeFolder() = runTest {
+        val remote = FakeFolderClient(folderPath)
+        // Names are zero padded so that the server order is also the lexicographic order
+        remote.childNames = (0 until childNb).map { String.format("file_%06d.jpg", it) }
+        val client = remote.client
+
+        statementCount.set(0)
+        val (changeNb, firstDuration) = measureTimedValue {
+            TreeDiff(folderID, client, nodeDB, null).compareWithRemote()
+        }
+        val firstCount = statementCount.get()
+        Log.i(
+            logTag, "Initial diff of $childNb nodes: $changeNb changes " +
+                    "in ${firstDuration.inWholeMilliseconds}ms with $firstCount statements"
+        )
+        assertEquals(childNb, changeNb)
+
+        // Second pass: nothing has changed on the remote side
+        statementCount.set(0)
+        val (noChangeNb, secondDuration) = measureTimedValue {
+            TreeDiff(folderID, client, nodeDB, null).compareWithRemote()
+        }
+        Log.i(
+            logTag, "Re-diff with no change: ${secondDuration.inWholeMilliseconds}ms " +
+                    "with ${statementCount.get()} statements"
+        )
+        assertEquals(0, noChangeNb)
+    }
+}
@@ -0,0 +1,117 @@
+package com.pydio.android.cells.transfer
+
+import androidx.room.Room
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.TestNodes
+import com.pydio.android.cells.db.accounts.RSession
+import com.pydio.android.cells.db.accounts.SessionDao
+import com.pydio.android.cells.db.nodes.TreeNodeDB
+import com.pydio.android.cells.services.TreeNodeRepository
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.koin.core.component.inject
+import org.koin.test.KoinTest
+
+/**
+ * Diffs a remote folder against an in-memory DB. The diff also deletes the cached files
+ * of the removed nodes: we register a session for the test account in the app.
+ */
+@RunWith(AndroidJUnit4::class)
+class TreeDiffTest : KoinTest {
+
+    private val sessionDao: SessionDao by inject()
+    private val treeNodeRepository: TreeNodeRepository by inject()
+
+    private val folderPath = "/diff"
+    private val folderID = TestNodes.stateID(folderPath)
+    private val accountId = TestNodes.accountID.accountId
+    private val remote = FakeFolderClient(folderPath)
+
+    private lateinit var nodeDB: TreeNodeDB
+
+    @Before
+    fun setUp() = runBlocking {
+        val context = InstrumentationRegistry.getInstrumentation().targetContext
+        nodeDB = Room.inMemoryDatabaseBuilder(context, TreeNodeDB::class.java).build()
+        sessionDao.insert(
+            RSession(
+                accountID = accountId,
+                lifecycleState = AppNames.LIFECYCLE_STATE_PAUSED,
+                dirName = "tree-diff-test",
+                dbName = "nodes.tree-diff-test",
+                isRemoteLegacy = false,
+                isReachable = false,
+            )
+        )
+        treeNodeRepository.refreshSessionCache()
+    }
+
+    @After
+    fun tearDown() = runBlocking {
+        nodeDB.close()
+        treeNodeRepository.closeNodeDb(accountId)
+        sessionDao.forgetSession(accountId)
+        treeNodeRepository.refreshSessionCache()
+    }
+
+    @Test
+    fun deleteMoreThan999Children() = runTest {
+        remote.childNames = names(1500)
+        assertEquals(1500, diff())
+        assertEquals(1500, childNb())
+
+        // All children but the last one are deleted in the loop on the remote nodes
+        remote.childNames = names(1500).takeLast(1)
+        assertEquals(1499, diff())
+        assertEquals(1, childNb())
+    }
+
+    @Test
+    fun deleteTrailingChildren() = runTest {
+        remote.childNames = names(1500)
+        diff()
+
+        // Local children that come after the last remote node are deleted once the listing is done
+        remote.childNames = names(1500).take(1)
+        assertEquals(1499, diff())
+        assertEquals(1, childNb())
+
+        remote.childNames = listOf()
+        assertEquals(1, diff())
+        assertEquals(0, childNb())
+    }
+
+    @Test
+    fun refreshedFolderIsIndexedOnce() = runTest {
+        remote.childNames = names(10)
+        diff()
+        // The folder node is stored again when its content has changed
+        remote.childNames = names(20)
+        assertEquals(10, diff())
+
+        val query = SimpleSQLiteQuery(
+            "SELECT COUNT(*) FROM tree_nodes_fts WHERE tree_nodes_fts MATCH ?",
+            arrayOf("name:${folderPath.substringAfterLast("/")}")
+        )
+        nodeDB.query(query).use {
+            it.moveToFirst()
+            assertEquals(1, it.getInt(0))
+        }
+    }
+
+    private suspend fun diff(): Int {
+        return TreeDiff(folderID, remote.client, nodeDB, null).compareWithRemote()
+    }
+
+    private fun childNb() = nodeDB.treeNodeDao().getNodesForDiff(TestNodes.SLUG, folderPath).size
+
+    private fun names(nb: Int) = (0 until nb).map { String.format("file_%06d.jpg", it) }
+}
@@ -33,6 +33,10 @@ public interface AppNames {
     String SYNC_FREQ_DAY = "day";
     String SYNC_FREQ_WEEK = "week";
 
+    // LOCAL CACHE EVICTION
+    String CACHE_EVICTION_LRU = "lru";
+    String CACHE_EVICTION_LFU = "lfu";
+
     /* Generic actions */
     // Rather make this generic
     String KEY_PREFIX = "com.pydio.android.cells";
@@ -64,6 +68,14 @@ public interface AppNames {
     int FLAG_HAS_THUMB = 8;
     int FLAG_PRE_VIEWABLE = 16;
 
+    /* Local search */
+    // Values of the user defined meta (tags, free text...) are also indexed
+    String META_USER_PREFIX = "usermeta-";
+
+    /* Image meta computed by the server, also stored in dedicated columns of the tree nodes */
+    String META_IMAGE_WIDTH = "image_width";
+    String META_IMAGE_HEIGHT = "image_height";
+
     /* Modification status */
     String LOCAL_MODIF_UPDATE = "updating";
     String LOCAL_MODIF_DELETE = "deleting";
@@ -84,7 +96,8 @@ public interface AppNames {
     String JOB_TEMPLATE_SHARE = "share";
 
     // Specific additional status to manage uploads when remote server is not currently available
-    // String UPLOAD_STATUS_PRE_PROCESSING = "pre_processing";
+    // or when the file is still being copied to the app storage before the upload
+    String UPLOAD_STATUS_PRE_PROCESSING = "pre_processing";
     String UPLOAD_STATUS_LOCALLY_CACHED = "locally_cached";
 
     /* Transfers */
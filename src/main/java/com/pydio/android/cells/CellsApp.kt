@@ -6,6 +6,7 @@ import android.content.pm.PackageManager
 import android.os.Build
 import android.util.Log
 import com.pydio.android.cells.di.allModules
+import com.pydio.android.cells.services.CacheManager
 import com.pydio.android.cells.services.JobService
 import com.pydio.android.cells.services.WorkerService
 import com.pydio.android.cells.utils.timestampForLogMessage
@@ -56,6 +57,7 @@ class CellsApp : Application(), KoinComponent {
             modules(allModules)
         }
         configureWorkers()
+        configureCache()
         recordLaunch()
     }
 
@@ -88,6 +90,16 @@ class CellsApp : Application(), KoinComponent {
         }
     }
 
+    private fun configureCache() {
+        try {
+            // The cache manager evicts files in the background as soon as it is instantiated
+            val cacheManager: CacheManager by inject()
+            Log.i(logTag, "Initialised cache manager: $cacheManager")
+        } catch (e: Exception) {
+            Log.e(logTag, "Could not start cache manager: $e")
+        }
+    }
+
     private fun recordLaunch() {
         try {
             val jobService: JobService by inject()
@@ -0,0 +1,26 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface ChangeCursorDao {
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insert(changeCursor: RChangeCursor)
+
+    @Query("SELECT * FROM change_cursors WHERE encoded_state = :encodedState LIMIT 1")
+    fun get(encodedState: String): RChangeCursor?
+
+    @Query("DELETE FROM change_cursors WHERE encoded_state = :encodedState")
+    fun delete(encodedState: String)
+
+    // See TreeNodeDao for the range on the primary key
+    @Query("DELETE FROM change_cursors WHERE encoded_state >= :encodedState AND encoded_state < :encodedState || char(1114111)")
+    fun deleteUnder(encodedState: String)
+
+    @Query("DELETE FROM change_cursors WHERE workspace = :workspace")
+    fun deleteForWorkspace(workspace: String)
+}
@@ -0,0 +1,19 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.Dao
+import androidx.room.Query
+import kotlinx.coroutines.flow.Flow
+
+@Dao
+interface FolderStampDao {
+
+    @Query("SELECT stamp FROM folder_stamps WHERE workspace = :workspace AND parent_path = :parentPath")
+    fun stampFlow(workspace: String, parentPath: String): Flow<Long?>
+
+    // Workspace roots have an empty parent path and each one is in its own workspace
+    @Query("SELECT SUM(stamp) FROM folder_stamps WHERE parent_path = ''")
+    fun workspaceRootsStampFlow(): Flow<Long?>
+
+    @Query("DELETE FROM folder_stamps")
+    fun deleteAll()
+}
@@ -1,5 +1,6 @@
 package com.pydio.android.cells.db.nodes
 
+import androidx.paging.PagingSource
 import androidx.room.Dao
 import androidx.room.RawQuery
 import androidx.sqlite.db.SupportSQLiteQuery
@@ -11,6 +12,9 @@ interface LiveOfflineRootDao {
     @RawQuery(observedEntities = [RLiveOfflineRoot::class])
     fun offlineRootQueryF(query: SupportSQLiteQuery): Flow<List<RLiveOfflineRoot>>
 
+    @RawQuery(observedEntities = [RLiveOfflineRoot::class])
+    fun pagedOfflineRoots(query: SupportSQLiteQuery): PagingSource<Int, RLiveOfflineRoot>
+
 //    @Query("SELECT * FROM RLiveOfflineRoot WHERE uuid = :uuid LIMIT 1")
 //    fun getByUuid(uuid: String): RLiveOfflineRoot?
 //
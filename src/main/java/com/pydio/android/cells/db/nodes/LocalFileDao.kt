@@ -1,10 +1,13 @@
 package com.pydio.android.cells.db.nodes
 
+import androidx.room.ColumnInfo
 import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import androidx.room.RawQuery
 import androidx.room.Update
+import androidx.sqlite.db.SupportSQLiteQuery
 
 @Dao
 interface LocalFileDao {
@@ -27,9 +30,29 @@ interface LocalFileDao {
     @Query("SELECT * FROM local_files WHERE encoded_state = :encodedState")
     fun getFiles(encodedState: String): List<RLocalFile>
 
-    @Query("SELECT * FROM local_files WHERE encoded_state like :encodedState || '%'")
+    // See TreeNodeDao for the range on the primary key
+    @Query("SELECT * FROM local_files WHERE encoded_state >= :encodedState AND encoded_state < :encodedState || char(1114111)")
     fun getFilesUnder(encodedState: String): List<RLocalFile>
 
-    @Query("DELETE FROM tree_nodes WHERE encoded_state like :encodedState || '%'")
+    @Query("DELETE FROM local_files WHERE encoded_state >= :encodedState AND encoded_state < :encodedState || char(1114111)")
     fun deleteUnder(encodedState: String)
+
+    @Query("UPDATE local_files SET access_ts = :accessTS, access_count = access_count + :hits WHERE encoded_state = :encodedState AND type = :type")
+    fun touch(encodedState: String, type: String, accessTS: Long, hits: Int)
+
+    @Query("SELECT type, COUNT(*) AS file_nb, SUM(MAX(size, 0)) AS byte_size FROM local_files GROUP BY type")
+    fun usageByType(): List<LocalFileUsage>
+
+    @Query("SELECT COALESCE(SUM(MAX(size, 0)), 0) FROM local_files WHERE type = :type AND encoded_state >= :encodedState AND encoded_state < :encodedState || char(1114111)")
+    fun sizeUnder(encodedState: String, type: String): Long
+
+    // Eviction candidates, see CacheManager
+    @RawQuery
+    fun rawQuery(query: SupportSQLiteQuery): List<RLocalFile>
 }
+
+data class LocalFileUsage(
+    @ColumnInfo(name = "type") val type: String,
+    @ColumnInfo(name = "file_nb") val fileNb: Int,
+    @ColumnInfo(name = "byte_size") val byteSize: Long,
+)
@@ -0,0 +1,65 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+import com.pydio.android.cells.utils.currentTimestamp
+import com.pydio.cells.api.ui.FileNode
+import com.pydio.cells.transport.StateID
+
+/**
+ * Stores the state of a remote folder as seen during the last successful full diff,
+ * so that we can skip re-listing its content when nothing has changed since then.
+ */
+@Entity(tableName = "change_cursors")
+data class RChangeCursor(
+
+    @PrimaryKey
+    @ColumnInfo(name = "encoded_state") val encodedState: String,
+
+    // Ease clean up of all cursors of a given workspace
+    @ColumnInfo(name = "workspace") val workspace: String,
+
+    // Opaque value that changes each time the content of the remote folder changes
+    @ColumnInfo(name = "cursor") var cursor: String,
+
+    @ColumnInfo(name = "last_check_ts") var lastCheckTS: Long,
+) {
+
+    fun getStateID(): StateID {
+        return StateID.fromId(encodedState)
+    }
+
+    companion object {
+
+        // Marks the cursors that have been stored by an offline sync, once all files were downloaded
+        private const val OFFLINE_PREFIX = "offline:"
+
+        /** Browsing can trust any cursor, the offline sync only the ones it has stored itself */
+        fun matches(stored: String, current: String, offlineOnly: Boolean): Boolean {
+            return stored == OFFLINE_PREFIX + current || (!offlineOnly && stored == current)
+        }
+
+        /**
+         * Returns null when the remote folder does not expose a reliable change marker:
+         * in such case we cannot rely on a cursor and must fall back to a full diff.
+         */
+        fun computeCursor(remote: FileNode): String? {
+            val eTag = remote.eTag
+            if (eTag.isNullOrEmpty()) {
+                return null
+            }
+            return "$eTag:${remote.lastModified}:${remote.metaHashCode}"
+        }
+
+        fun fromFileNode(stateID: StateID, remote: FileNode, offline: Boolean): RChangeCursor? {
+            val cursor = computeCursor(remote) ?: return null
+            return RChangeCursor(
+                encodedState = stateID.id,
+                workspace = stateID.slug,
+                cursor = if (offline) OFFLINE_PREFIX + cursor else cursor,
+                lastCheckTS = currentTimestamp(),
+            )
+        }
+    }
+}
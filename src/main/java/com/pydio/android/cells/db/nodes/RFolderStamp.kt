@@ -0,0 +1,21 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+
+/**
+ * Counter that is incremented by SQL triggers each time a direct child of a folder
+ * is inserted, updated or deleted in the tree_nodes table.
+ *
+ * Room invalidates observers at the table level: observing the stamp of a given folder
+ * is cheap and enables re-running the listing queries only when this folder has changed.
+ */
+@Entity(tableName = "folder_stamps", primaryKeys = ["workspace", "parent_path"])
+data class RFolderStamp(
+
+    @ColumnInfo(name = "workspace") val workspace: String,
+
+    @ColumnInfo(name = "parent_path") val parentPath: String,
+
+    @ColumnInfo(name = "stamp") val stamp: Long,
+)
@@ -7,7 +7,8 @@ import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.db.CellsConverters
 import com.pydio.cells.transport.StateID
 
-@DatabaseView(
+/** Also used to re-create the view when the tree_nodes table is rebuilt by a migration */
+const val LIVE_OFFLINE_ROOT_QUERY =
     "SELECT offline_roots.encoded_state, " +
             "offline_roots.uuid, " +
             "offline_roots.status, " +
@@ -23,7 +24,8 @@ import com.pydio.cells.transport.StateID
             "offline_roots.sort_name " +
             "FROM offline_roots INNER JOIN tree_nodes " +
             "ON offline_roots.encoded_state = tree_nodes.encoded_state"
-)
+
+@DatabaseView(LIVE_OFFLINE_ROOT_QUERY)
 @TypeConverters(CellsConverters::class)
 data class RLiveOfflineRoot(
 
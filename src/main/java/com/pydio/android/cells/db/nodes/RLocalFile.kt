@@ -34,8 +34,26 @@ data class RLocalFile(
     @ColumnInfo(name = "remote_mod_ts") var remoteTS: Long,
 
     @ColumnInfo(name = "local_mod_ts") var localTS: Long = -1L,
+
+    // The MD5 of the file, computed while it was downloaded: it can be trusted
+    // as long as the size and the modification time of the file have not changed.
+    @ColumnInfo(name = "hash") var hash: String? = null,
+
+    // Last modification of the file on the device, in milliseconds, see File.lastModified()
+    @ColumnInfo(name = "file_mtime", defaultValue = "0") var fileMTime: Long = 0L,
+
+    // Last time the file has been shown or opened, in seconds, and number of times it has been,
+    // so that the cache manager can evict the least recently or least frequently used files
+    @ColumnInfo(name = "access_ts", defaultValue = "0") var accessTS: Long = 0L,
+
+    @ColumnInfo(name = "access_count", defaultValue = "0") var accessCount: Int = 0,
 ) {
 
+    /** Returns true if the file has not been modified since its hash has been computed */
+    fun isHashValidFor(file: File): Boolean {
+        return hash != null && file.length() == size && file.lastModified() == fileMTime
+    }
+
     fun getStateID(): StateID {
         return StateID.fromId(encodedState)
     }
@@ -47,8 +65,14 @@ data class RLocalFile(
     companion object {
 //        private val logTag = "RLocalFile"
 
-        fun fromFile(stateID: StateID, type: String, file: File, eTag: String?, remoteTS: Long)
-                : RLocalFile {
+        fun fromFile(
+            stateID: StateID,
+            type: String,
+            file: File,
+            eTag: String?,
+            remoteTS: Long,
+            hash: String? = null,
+        ): RLocalFile {
             val filename = if (type == AppNames.LOCAL_FILE_TYPE_FILE) {
                 stateID.path.substring(1) // we remove the leading / for easier later use
             } else {
@@ -62,7 +86,10 @@ data class RLocalFile(
                 etag = eTag,
                 size = file.length(),
                 remoteTS = remoteTS,
-                localTS = currentTimestamp()
+                localTS = currentTimestamp(),
+                hash = hash,
+                fileMTime = file.lastModified(),
+                accessTS = currentTimestamp(),
             )
         }
     }
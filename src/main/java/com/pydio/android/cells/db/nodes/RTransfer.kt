@@ -20,6 +20,14 @@ data class RTransfer(
     @ColumnInfo(name = "type") val type: String,
 
     @ColumnInfo(name = "local_path") var localPath: String? = null,
+    // Uploads that are streamed from their source rather than from a copy in the app storage.
+    // Until the upload has been prepared, it is the URI we have received
+    @ColumnInfo(name = "source_uri") var sourceUri: String? = null,
+    // Where the user wants to upload the file: the encoded state is only set once the source
+    // has been prepared, with another name if a file with the same name already exists
+    @ColumnInfo(name = "target_state") var targetState: String? = null,
+    // Queued uploads are started by priority, then in creation order, see UploadQueue
+    @ColumnInfo(name = "priority", defaultValue = "0") var priority: Int = 0,
 
     @ColumnInfo(name = "byte_size") val byteSize: Long,
 
@@ -45,6 +53,8 @@ data class RTransfer(
     @ColumnInfo(name = "error") var error: String? = null,
 
     @ColumnInfo(name = "progress") var progress: Long = 0L,
+    // Average speed of the last run in bytes per second, also used to size the next uploads
+    @ColumnInfo(name = "throughput", defaultValue = "0") var throughput: Long = 0L,
 ) {
 
     fun getStateID(): StateID? {
@@ -79,6 +89,7 @@ data class RTransfer(
             mime: String,
             parentJobId: Long = 0L,
             status: String? = JobStatus.NEW.id,
+            priority: Int = 0,
         ): RTransfer {
             return RTransfer(
                 jobId = parentJobId,
@@ -87,6 +98,7 @@ data class RTransfer(
                 mime = mime,
                 creationTimestamp = currentTimestamp(),
                 status = status,
+                priority = priority,
             )
         }
     }
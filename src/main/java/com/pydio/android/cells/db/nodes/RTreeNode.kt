@@ -3,19 +3,27 @@ package com.pydio.android.cells.db.nodes
 import android.util.Log
 import androidx.room.ColumnInfo
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import androidx.room.TypeConverters
 import com.pydio.android.cells.AppNames
-import com.pydio.android.cells.db.CellsConverters
 import com.pydio.android.cells.utils.getMimeType
 import com.pydio.cells.api.SdkNames
 import com.pydio.cells.api.ui.FileNode
 import com.pydio.cells.api.ui.WorkspaceNode
 import com.pydio.cells.transport.StateID
+import com.pydio.cells.utils.FileNodeUtils
 import java.util.*
 
-@Entity(tableName = "tree_nodes")
-@TypeConverters(CellsConverters::class)
+@Entity(
+    tableName = "tree_nodes",
+    indices = [
+        // Folder listing: parent path first so that it can also be used to list workspace roots
+        Index(value = ["parent_path", "workspace"]),
+        Index(value = ["uuid"]),
+    ]
+)
+@TypeConverters(TreeNodeConverters::class)
 data class RTreeNode(
 
     @PrimaryKey
@@ -44,7 +52,8 @@ data class RTreeNode(
 
     @ColumnInfo(name = "local_mod_status") var localModificationStatus: String? = null,
 
-    // We store all the well known properties that we use
+    // We store all the well known properties that we use.
+    // Both properties and meta are binary encoded, see TreeNodeConverters.
     @ColumnInfo(name = "properties") val properties: Properties,
 
     // Arbitrary Key - Values to locally store meta exposed by the remote server
@@ -61,6 +70,20 @@ data class RTreeNode(
     // Ease query against a given characteristic of the nodes (bookmarked, shared...)
     @ColumnInfo(name = "flags") var flags: Int = 0,
 
+    // Searchable meta values, indexed in the tree_nodes_fts table
+    @ColumnInfo(name = "search_meta", defaultValue = "") var searchMeta: String = "",
+
+    // Hot fields that are also found in the properties and meta:
+    // lists and diffs can then use them without decoding the blobs
+    @ColumnInfo(name = "share_link") var shareLink: String? = null,
+
+    @ColumnInfo(name = "image_width", defaultValue = "0") var imageWidth: Int = 0,
+
+    @ColumnInfo(name = "image_height", defaultValue = "0") var imageHeight: Int = 0,
+
+    // Same values as the ExifInterface.ORIENTATION_* constants, 0 is undefined
+    @ColumnInfo(name = "exif_orientation", defaultValue = "0") var exifOrientation: Int = 0,
+
     // Files management: Files are now managed with the RLocalFile object
 ) {
 
@@ -157,6 +180,10 @@ data class RTreeNode(
                     meta = fileNode.meta ?: Properties(),
                     metaHash = fileNode.metaHashCode
                 )
+                node.searchMeta = computeSearchMeta(node.meta)
+                node.imageWidth = intMeta(node.meta, AppNames.META_IMAGE_WIDTH)
+                node.imageHeight = intMeta(node.meta, AppNames.META_IMAGE_HEIGHT)
+                node.exifOrientation = intMeta(node.meta, SdkNames.NODE_PROPERTY_IMG_EXIF_ORIENTATION)
 
                 // Share and offline cache values are rather handled in the NodeService directly
                 node.setBookmarked(fileNode.isBookmark)
@@ -182,6 +209,19 @@ data class RTreeNode(
             }
         }
 
+        /** Only the values of the user defined meta are worth indexing for the local search */
+        fun computeSearchMeta(meta: Properties): String {
+            return meta.stringPropertyNames()
+                .filter { it.startsWith(AppNames.META_USER_PREFIX) }
+                .joinToString(" ") { meta.getProperty(it) }
+        }
+
+        /** Meta values are JSON encoded by the server, returns 0 when the meta is not defined */
+        fun intMeta(meta: Properties, key: String): Int {
+            val value = meta.getProperty(key) ?: return 0
+            return FileNodeUtils.extractJSONString(value).trim().toIntOrNull() ?: 0
+        }
+
         fun fromWorkspaceNode(stateID: StateID, node: WorkspaceNode): RTreeNode {
             try {
                 val currSortName = when (node.workspaceType) {
@@ -242,16 +282,12 @@ data class RTreeNode(
     }
 
     fun getShareAddress(): String? {
-        return properties.getProperty(SdkNames.NODE_PROPERTY_SHARE_LINK, null)
+        return shareLink
     }
 
     fun setShared(isShared: Boolean, linkURL: String?) {
         setFlag(AppNames.FLAG_SHARE, isShared)
-        if (isShared) {
-            properties.setProperty(SdkNames.NODE_PROPERTY_SHARE_LINK, linkURL)
-        } else {
-            properties.remove(SdkNames.NODE_PROPERTY_SHARE_LINK)
-        }
+        shareLink = if (isShared) linkURL else null
     }
 
     fun isOfflineRoot(): Boolean {
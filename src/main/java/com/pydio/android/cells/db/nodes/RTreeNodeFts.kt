@@ -0,0 +1,76 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Fts4
+import androidx.room.FtsOptions
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteQuery
+
+/**
+ * Full text index over the cached tree nodes. Room keeps it in sync with the tree_nodes
+ * table via triggers: the rowid of this table is the rowid of the corresponding tree node.
+ */
+@Fts4(contentEntity = RTreeNode::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61)
+@Entity(tableName = "tree_nodes_fts")
+data class RTreeNodeFts(
+
+    @ColumnInfo(name = "name") val name: String,
+
+    @ColumnInfo(name = "parent_path") val parentPath: String,
+
+    @ColumnInfo(name = "search_meta") val searchMeta: String,
+) {
+
+    companion object {
+
+        /**
+         * Builds a MATCH expression from the user input where every term is required
+         * and used as a prefix. Returns null when the input contains no searchable term.
+         */
+        fun toMatchExpression(userInput: String, column: String? = null): String? {
+            val terms = userInput.lowercase()
+                .split(Regex("[^\\p{L}\\p{N}]+"))
+                .filter { it.isNotEmpty() }
+            if (terms.isEmpty()) {
+                return null
+            }
+            val prefix = column?.let { "$it:" } ?: ""
+            return terms.joinToString(" ") { "$prefix$it*" }
+        }
+
+        /**
+         * All terms of the user input must prefix a word of the name, the parent path or the
+         * user meta of the node. Best matches on the name come first: exact name, then name prefix,
+         * then all terms in the name, then other matches. The passed order is then applied.
+         */
+        fun searchQuery(
+            userInput: String,
+            sortByCol: String,
+            sortByOrder: String,
+            limit: Int
+        ): SupportSQLiteQuery? {
+            val matchAll = toMatchExpression(userInput) ?: return null
+            val matchName = toMatchExpression(userInput, "name")
+            val likeName = escapeLike(userInput.trim())
+            return SimpleSQLiteQuery(
+                "SELECT tree_nodes.* FROM tree_nodes_fts " +
+                        "JOIN tree_nodes ON tree_nodes.rowid = tree_nodes_fts.docid " +
+                        "WHERE tree_nodes_fts MATCH ? " +
+                        "ORDER BY CASE " +
+                        "WHEN tree_nodes.name LIKE ? ESCAPE '\\' THEN 0 " +
+                        "WHEN tree_nodes.name LIKE ? || '%' ESCAPE '\\' THEN 1 " +
+                        "WHEN tree_nodes_fts.docid IN " +
+                        "(SELECT docid FROM tree_nodes_fts WHERE tree_nodes_fts MATCH ?) THEN 2 " +
+                        "ELSE 3 END, tree_nodes.$sortByCol $sortByOrder LIMIT ?",
+                arrayOf(matchAll, likeName, likeName, matchName, limit)
+            )
+        }
+
+        private fun escapeLike(value: String): String {
+            return value.replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_")
+        }
+    }
+}
@@ -8,8 +8,10 @@ import androidx.room.RawQuery
 import androidx.room.TypeConverters
 import androidx.room.Update
 import androidx.sqlite.db.SupportSQLiteQuery
+import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.JobStatus
 import com.pydio.android.cells.db.CellsConverters
+import com.pydio.android.cells.transfer.UploadPriority
 import kotlinx.coroutines.flow.Flow
 
 @Dao
@@ -25,6 +27,13 @@ interface TransferDao {
     @Update
     fun update(transfer: RTransfer)
 
+    // Never overwrites a terminated transfer with a late progress event
+    @Query(
+        "UPDATE transfers SET progress = :progress, throughput = :throughput, update_ts = :updateTS " +
+                "WHERE transfer_id = :transferID AND done_ts = -1"
+    )
+    fun updateProgress(transferID: Long, progress: Long, throughput: Long, updateTS: Long)
+
     @Query("SELECT * FROM transfers WHERE job_id = :jobID AND status = :status ")
     fun getRunningTransfersForJob(
         jobID: Long,
@@ -43,18 +52,104 @@ interface TransferDao {
     @Query("SELECT * FROM transfers WHERE external_id = :tuID LIMIT 1")
     fun getByExternalID(tuID: Int): RTransfer?
 
-    @Query("DELETE FROM transfers WHERE done_ts = -1 AND update_ts < :staleLimit ")
-    fun clearStaleTransfers(staleLimit: Long)
+    // Queued uploads are not stale, even if they have not been updated for a while
+    @Query(
+        "SELECT * FROM transfers WHERE done_ts = -1 AND update_ts < :staleLimit " +
+                "AND NOT (type = :queuedType AND external_id < 0 AND status IN (:queuedStatuses))"
+    )
+    fun getStaleTransfers(
+        staleLimit: Long,
+        queuedType: String = AppNames.TRANSFER_TYPE_UPLOAD,
+        queuedStatuses: List<String> = listOf(
+            JobStatus.NEW.id,
+            JobStatus.PROCESSING.id,
+            AppNames.UPLOAD_STATUS_PRE_PROCESSING
+        ),
+    ): List<RTransfer>
+
+    @Query(
+        "DELETE FROM transfers WHERE done_ts = -1 AND update_ts < :staleLimit " +
+                "AND NOT (type = :queuedType AND external_id < 0 AND status IN (:queuedStatuses))"
+    )
+    fun clearStaleTransfers(
+        staleLimit: Long,
+        queuedType: String = AppNames.TRANSFER_TYPE_UPLOAD,
+        queuedStatuses: List<String> = listOf(
+            JobStatus.NEW.id,
+            JobStatus.PROCESSING.id,
+            AppNames.UPLOAD_STATUS_PRE_PROCESSING
+        ),
+    )
+
+    @Query("SELECT * FROM transfers WHERE done_ts > 0")
+    fun getTerminatedTransfers(): List<RTransfer>
 
     @Query("DELETE FROM transfers WHERE done_ts > 0")
     fun clearTerminatedTransfers()
 
+    @Query("SELECT COUNT(*) FROM transfers WHERE encoded_state = :stateId AND type = :type AND done_ts = -1")
+    fun countUnterminated(stateId: String, type: String): Int
+
+    @Query("SELECT COUNT(*) FROM transfers WHERE source_uri = :uri AND done_ts = -1")
+    fun countUnterminatedFromSource(uri: String): Int
+
     @Query("DELETE FROM transfers WHERE transfer_id = :transferID")
     fun deleteTransfer(transferID: Long)
 
     @Query("SELECT * FROM transfers WHERE start_ts = -1")
     fun getAllNew(): List<RTransfer>
 
+    /**
+     * Uploads whose source is ready and that are waiting for a slot, or that have been
+     * interrupted by the death of the process. Those that are handled by the transfer utility
+     * are resumed by the utility itself.
+     */
+    @Query(
+        "SELECT * FROM transfers WHERE type = :type AND external_id < 0 " +
+                "AND encoded_state IS NOT NULL AND status IN (:statuses) " +
+                "ORDER BY priority ASC, creation_ts ASC, transfer_id ASC LIMIT :limit"
+    )
+    fun getQueuedUploads(
+        limit: Int,
+        type: String = AppNames.TRANSFER_TYPE_UPLOAD,
+        statuses: List<String> = listOf(JobStatus.NEW.id, JobStatus.PROCESSING.id),
+    ): List<RTransfer>
+
+    /** Same as [getQueuedUploads], but only for the uploads the user is waiting for */
+    @Query(
+        "SELECT * FROM transfers WHERE type = :type AND external_id < 0 " +
+                "AND encoded_state IS NOT NULL AND status IN (:statuses) " +
+                "AND job_id <= 0 AND priority <= :visible " +
+                "ORDER BY priority ASC, creation_ts ASC, transfer_id ASC LIMIT :limit"
+    )
+    fun getQueuedInteractiveUploads(
+        limit: Int,
+        type: String = AppNames.TRANSFER_TYPE_UPLOAD,
+        statuses: List<String> = listOf(JobStatus.NEW.id, JobStatus.PROCESSING.id),
+        visible: Int = UploadPriority.USER_VISIBLE.ordinal,
+    ): List<RTransfer>
+
+    /** Uploads whose source has not been prepared, or only partially copied, when the process died */
+    @Query(
+        "SELECT * FROM transfers WHERE type = :type " +
+                "AND (status = :preProcessing OR (status = :new AND encoded_state IS NULL))"
+    )
+    fun getUnpreparedUploads(
+        type: String = AppNames.TRANSFER_TYPE_UPLOAD,
+        preProcessing: String = AppNames.UPLOAD_STATUS_PRE_PROCESSING,
+        new: String = JobStatus.NEW.id,
+    ): List<RTransfer>
+
+    @Query(
+        "SELECT throughput FROM transfers WHERE type = :type AND status = :status " +
+                "AND throughput > 0 ORDER BY done_ts DESC LIMIT :limit"
+    )
+    fun getRecentThroughputs(
+        type: String,
+        limit: Int = 5,
+        status: String = JobStatus.DONE.id
+    ): List<Long>
+
     @Query("SELECT COUNT(*) FROM transfers")
     fun getTransferCount(): Long
 
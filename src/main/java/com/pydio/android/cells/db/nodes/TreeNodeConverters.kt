@@ -0,0 +1,86 @@
+package com.pydio.android.cells.db.nodes
+
+import androidx.annotation.Keep
+import androidx.room.TypeConverter
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.Properties
+
+/**
+ * Stores the properties and meta of the tree nodes as compact binary blobs:
+ * this is much cheaper to decode than the generic JSON serialization that is used in other tables.
+ */
+class TreeNodeConverters {
+
+    @TypeConverter
+    @Keep
+    fun toProperties(value: ByteArray): Properties {
+        return PropertiesCodec.decode(value)
+    }
+
+    @TypeConverter
+    fun fromProperties(props: Properties): ByteArray {
+        return PropertiesCodec.encode(props)
+    }
+}
+
+/**
+ * Binary format: a version byte, the number of entries and then,
+ * for each entry, the key and the value as length prefixed UTF-8 strings.
+ */
+object PropertiesCodec {
+
+    private const val VERSION: Int = 1
+
+    private val EMPTY = byteArrayOf(VERSION.toByte(), 0, 0, 0, 0)
+
+    fun encode(props: Properties): ByteArray {
+        if (props.isEmpty) {
+            return EMPTY
+        }
+        val entries = props.entries.filter { it.key is String && it.value is String }
+        val bytes = ByteArrayOutputStream(entries.size * 32 + 5)
+        DataOutputStream(bytes).use { out ->
+            out.writeByte(VERSION)
+            out.writeInt(entries.size)
+            for ((key, value) in entries) {
+                writeString(out, key as String)
+                writeString(out, value as String)
+            }
+        }
+        return bytes.toByteArray()
+    }
+
+    fun decode(value: ByteArray): Properties {
+        val props = Properties()
+        if (value.size <= EMPTY.size) {
+            return props
+        }
+        DataInputStream(ByteArrayInputStream(value)).use { input ->
+            val version = input.readUnsignedByte()
+            if (version != VERSION) {
+                throw IllegalArgumentException("Unsupported properties encoding version: $version")
+            }
+            repeat(input.readInt()) {
+                val key = readString(input)
+                props[key] = readString(input)
+            }
+        }
+        return props
+    }
+
+    // We do not use writeUTF(): some meta values (e.g. JSON objects) might be longer than 64KB
+    private fun writeString(out: DataOutputStream, str: String) {
+        val bytes = str.toByteArray(Charsets.UTF_8)
+        out.writeInt(bytes.size)
+        out.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
@@ -6,6 +6,9 @@ import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
+import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.db.CellsConverters
+import com.pydio.cells.api.SdkNames
 import java.util.concurrent.ConcurrentHashMap
 
 @Database(
@@ -14,12 +17,15 @@ import java.util.concurrent.ConcurrentHashMap
         RLocalFile::class,
         ROfflineRoot::class,
         RTransfer::class,
-        RTransferCancellation::class
+        RTransferCancellation::class,
+        RChangeCursor::class,
+        RFolderStamp::class,
+        RTreeNodeFts::class,
     ],
     views = [
         RLiveOfflineRoot::class
     ],
-    version = 5,
+    version = 15,
     exportSchema = true,
 )
 abstract class TreeNodeDB : RoomDatabase() {
@@ -34,6 +40,10 @@ abstract class TreeNodeDB : RoomDatabase() {
 
     abstract fun transferDao(): TransferDao
 
+    abstract fun changeCursorDao(): ChangeCursorDao
+
+    abstract fun folderStampDao(): FolderStampDao
+
     companion object {
         @Volatile
         private var INSTANCES: ConcurrentHashMap<String, TreeNodeDB> = ConcurrentHashMap()
@@ -61,7 +71,13 @@ abstract class TreeNodeDB : RoomDatabase() {
                     // .addMigrations(MIGRATION_3_4)
                     // Ease downgrade for dev purposes, this should not happen in prod
                     .fallbackToDestructiveMigrationOnDowngrade(true)
-                    .addMigrations(MIGRATION_4_5)
+                    .addMigrations(*MIGRATIONS)
+                    // Room does not manage triggers: also create them for brand-new DBs
+                    .addCallback(object : Callback() {
+                        override fun onCreate(db: SupportSQLiteDatabase) {
+                            createFolderStampTriggers(db)
+                        }
+                    })
                     .build()
                 INSTANCES[accountId] = instance
                 return instance
@@ -81,11 +97,250 @@ abstract class TreeNodeDB : RoomDatabase() {
 
         // Migrations
 
+        /** All the migrations we support, also played by TreeNodeMigrationTest */
+        internal val MIGRATIONS: Array<Migration>
+            get() = arrayOf(
+                MIGRATION_4_5,
+                MIGRATION_5_6,
+                MIGRATION_6_7,
+                MIGRATION_7_8,
+                MIGRATION_8_9,
+                MIGRATION_9_10,
+                MIGRATION_10_11,
+                MIGRATION_11_12,
+                MIGRATION_12_13,
+                MIGRATION_13_14,
+                MIGRATION_14_15,
+            )
+
         private val MIGRATION_4_5 = object : Migration(4, 5) {
             override fun migrate(db: SupportSQLiteDatabase) {
                 // Add a column to the transfers table
                 db.execSQL("ALTER TABLE transfers ADD COLUMN external_id INTEGER")
             }
         }
+
+        private val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // Add a table to store the per folder change cursors
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `change_cursors` (" +
+                            "`encoded_state` TEXT NOT NULL, " +
+                            "`workspace` TEXT NOT NULL, " +
+                            "`cursor` TEXT NOT NULL, " +
+                            "`last_check_ts` INTEGER NOT NULL, " +
+                            "PRIMARY KEY(`encoded_state`))"
+                )
+            }
+        }
+
+        private val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // Index tree nodes to avoid full table scans when listing a folder
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_tree_nodes_parent_path_workspace` " +
+                            "ON `tree_nodes` (`parent_path`, `workspace`)"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_tree_nodes_uuid` ON `tree_nodes` (`uuid`)"
+                )
+            }
+        }
+
+        /** Maintain the folder stamps, see [RFolderStamp] */
+        fun createFolderStampTriggers(db: SupportSQLiteDatabase) {
+            listOf("INSERT" to "NEW", "UPDATE" to "NEW", "DELETE" to "OLD").forEach { (event, row) ->
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS `tree_nodes_folder_stamp_${event.lowercase()}` " +
+                            "AFTER $event ON `tree_nodes` BEGIN " +
+                            "INSERT OR IGNORE INTO `folder_stamps` (`workspace`, `parent_path`, `stamp`) " +
+                            "VALUES ($row.`workspace`, $row.`parent_path`, 0); " +
+                            "UPDATE `folder_stamps` SET `stamp` = `stamp` + 1 " +
+                            "WHERE `workspace` = $row.`workspace` AND `parent_path` = $row.`parent_path`; " +
+                            "END"
+                )
+            }
+        }
+
+        private val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `folder_stamps` (" +
+                            "`workspace` TEXT NOT NULL, " +
+                            "`parent_path` TEXT NOT NULL, " +
+                            "`stamp` INTEGER NOT NULL, " +
+                            "PRIMARY KEY(`workspace`, `parent_path`))"
+                )
+                createFolderStampTriggers(db)
+            }
+        }
+
+        /** Same triggers as the ones Room creates to keep [RTreeNodeFts] in sync */
+        private fun createFtsSyncTriggers(db: SupportSQLiteDatabase) {
+            val ftsColumns = "`name`, `parent_path`, `search_meta`"
+            val newValues = "NEW.`name`, NEW.`parent_path`, NEW.`search_meta`"
+            listOf("UPDATE", "DELETE").forEach { event ->
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_tree_nodes_fts_BEFORE_$event " +
+                            "BEFORE $event ON `tree_nodes` BEGIN " +
+                            "DELETE FROM `tree_nodes_fts` WHERE `docid`=OLD.`rowid`; END"
+                )
+            }
+            listOf("UPDATE", "INSERT").forEach { event ->
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_tree_nodes_fts_AFTER_$event " +
+                            "AFTER $event ON `tree_nodes` BEGIN " +
+                            "INSERT INTO `tree_nodes_fts`(`docid`, $ftsColumns) " +
+                            "VALUES (NEW.`rowid`, $newValues); END"
+                )
+            }
+        }
+
+        private val MIGRATION_8_9 = object : Migration(8, 9) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // Searchable meta values: only filled when the nodes are next refreshed
+                db.execSQL(
+                    "ALTER TABLE `tree_nodes` ADD COLUMN `search_meta` TEXT NOT NULL DEFAULT ''"
+                )
+                // Full text index, see RTreeNodeFts. Definitions must match the ones generated by Room
+                db.execSQL(
+                    "CREATE VIRTUAL TABLE IF NOT EXISTS `tree_nodes_fts` USING FTS4(" +
+                            "`name` TEXT NOT NULL, " +
+                            "`parent_path` TEXT NOT NULL, " +
+                            "`search_meta` TEXT NOT NULL, " +
+                            "tokenize=unicode61, content=`tree_nodes`)"
+                )
+                createFtsSyncTriggers(db)
+                // Index already cached nodes
+                db.execSQL("INSERT INTO `tree_nodes_fts`(`tree_nodes_fts`) VALUES('rebuild')")
+            }
+        }
+
+        private val MIGRATION_9_10 = object : Migration(9, 10) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // Properties and meta are now stored as binary blobs and SQLite cannot change
+                // the type of a column: we re-create the table and convert existing rows.
+                // The view must be dropped first, otherwise renaming the table fails.
+                db.execSQL("DROP VIEW IF EXISTS `RLiveOfflineRoot`")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `tree_nodes_new` (" +
+                            "`encoded_state` TEXT NOT NULL, " +
+                            "`uuid` TEXT NOT NULL, " +
+                            "`workspace` TEXT NOT NULL, " +
+                            "`parent_path` TEXT NOT NULL, " +
+                            "`name` TEXT NOT NULL, " +
+                            "`mime` TEXT NOT NULL, " +
+                            "`etag` TEXT, " +
+                            "`size` INTEGER NOT NULL, " +
+                            "`remote_mod_ts` INTEGER NOT NULL, " +
+                            "`last_check_ts` INTEGER NOT NULL, " +
+                            "`local_mod_ts` INTEGER NOT NULL, " +
+                            "`local_mod_status` TEXT, " +
+                            "`properties` BLOB NOT NULL, " +
+                            "`meta` BLOB NOT NULL, " +
+                            "`meta_hash` INTEGER NOT NULL, " +
+                            "`sort_name` TEXT, " +
+                            "`flags` INTEGER NOT NULL, " +
+                            "`search_meta` TEXT NOT NULL DEFAULT '', " +
+                            "`share_link` TEXT, " +
+                            "`image_width` INTEGER NOT NULL DEFAULT 0, " +
+                            "`image_height` INTEGER NOT NULL DEFAULT 0, " +
+                            "`exif_orientation` INTEGER NOT NULL DEFAULT 0, " +
+                            "PRIMARY KEY(`encoded_state`))"
+                )
+                val columns = "`encoded_state`, `uuid`, `workspace`, `parent_path`, `name`, " +
+                        "`mime`, `etag`, `size`, `remote_mod_ts`, `last_check_ts`, `local_mod_ts`, " +
+                        "`local_mod_status`, `meta_hash`, `sort_name`, `flags`, `search_meta`"
+                // Row IDs are kept: they are referenced by the full text index
+                db.execSQL(
+                    "INSERT INTO `tree_nodes_new` (`rowid`, $columns, `properties`, `meta`) " +
+                            "SELECT `rowid`, $columns, X'', X'' FROM `tree_nodes`"
+                )
+                convertJsonProperties(db)
+                db.execSQL("DROP TABLE `tree_nodes`")
+                db.execSQL("ALTER TABLE `tree_nodes_new` RENAME TO `tree_nodes`")
+
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_tree_nodes_parent_path_workspace` " +
+                            "ON `tree_nodes` (`parent_path`, `workspace`)"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_tree_nodes_uuid` ON `tree_nodes` (`uuid`)"
+                )
+                createFolderStampTriggers(db)
+                createFtsSyncTriggers(db)
+                db.execSQL("CREATE VIEW `RLiveOfflineRoot` AS $LIVE_OFFLINE_ROOT_QUERY")
+            }
+        }
+
+        private val MIGRATION_10_11 = object : Migration(10, 11) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // Store the MD5 that has been verified at download time, with the length and
+                // modification time of the file, so that we do not have to hash it again
+                db.execSQL("ALTER TABLE local_files ADD COLUMN hash TEXT")
+                db.execSQL("ALTER TABLE local_files ADD COLUMN file_mtime INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
+        private val MIGRATION_11_12 = object : Migration(11, 12) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // Uploads might now be read directly from their content URI
+                db.execSQL("ALTER TABLE transfers ADD COLUMN source_uri TEXT")
+            }
+        }
+
+        private val MIGRATION_12_13 = object : Migration(12, 13) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE transfers ADD COLUMN throughput INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
+        private val MIGRATION_13_14 = object : Migration(13, 14) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // The transfer table is now also the persistent upload queue
+                db.execSQL("ALTER TABLE transfers ADD COLUMN target_state TEXT")
+                db.execSQL("ALTER TABLE transfers ADD COLUMN priority INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
+        private val MIGRATION_14_15 = object : Migration(14, 15) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // Access stats for the cache eviction: existing files are the first candidates
+                db.execSQL("ALTER TABLE local_files ADD COLUMN access_ts INTEGER NOT NULL DEFAULT 0")
+                db.execSQL("ALTER TABLE local_files ADD COLUMN access_count INTEGER NOT NULL DEFAULT 0")
+            }
+        }
+
+        /** Decodes the legacy JSON columns and also fills the newly promoted columns */
+        private fun convertJsonProperties(db: SupportSQLiteDatabase) {
+            val jsonConverters = CellsConverters()
+            val update = db.compileStatement(
+                "UPDATE `tree_nodes_new` SET `properties` = ?, `meta` = ?, `share_link` = ?, " +
+                        "`image_width` = ?, `image_height` = ?, `exif_orientation` = ? " +
+                        "WHERE `rowid` = ?"
+            )
+            db.query("SELECT `rowid`, `properties`, `meta` FROM `tree_nodes`").use { cursor ->
+                while (cursor.moveToNext()) {
+                    val props = jsonConverters.toProperties(cursor.getString(1))
+                    val meta = jsonConverters.toProperties(cursor.getString(2))
+                    // The share link was stored in the properties, it now has its own column
+                    val shareLink = props.remove(SdkNames.NODE_PROPERTY_SHARE_LINK) as String?
+
+                    update.clearBindings()
+                    update.bindBlob(1, PropertiesCodec.encode(props))
+                    update.bindBlob(2, PropertiesCodec.encode(meta))
+                    shareLink?.let { update.bindString(3, it) } ?: update.bindNull(3)
+                    update.bindLong(4, RTreeNode.intMeta(meta, AppNames.META_IMAGE_WIDTH).toLong())
+                    update.bindLong(5, RTreeNode.intMeta(meta, AppNames.META_IMAGE_HEIGHT).toLong())
+                    update.bindLong(
+                        6,
+                        RTreeNode.intMeta(meta, SdkNames.NODE_PROPERTY_IMG_EXIF_ORIENTATION).toLong()
+                    )
+                    update.bindLong(7, cursor.getLong(0))
+                    update.executeUpdateDelete()
+                }
+            }
+            update.close()
+        }
     }
 }
@@ -1,82 +1,116 @@
 package com.pydio.android.cells.db.nodes
 
+import androidx.paging.PagingSource
 import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import androidx.room.RawQuery
+import androidx.room.Transaction
 import androidx.room.TypeConverters
 import androidx.room.Update
 import androidx.sqlite.db.SupportSQLiteQuery
-import com.pydio.android.cells.db.CellsConverters
 import kotlinx.coroutines.flow.Flow
 
+/**
+ * Nodes under a given state are retrieved with a range on the encoded_state primary key:
+ * unlike a "LIKE prefix%" clause, this can use the index. char(1114111) is the greatest
+ * valid code point, so that the upper bound is greater than any string starting with the prefix.
+ *
+ * Children of a given folder are retrieved via the (parent_path, workspace) index.
+ */
 @Dao
-@TypeConverters(CellsConverters::class)
+@TypeConverters(TreeNodeConverters::class)
 interface TreeNodeDao {
 
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
-    fun insert(treeNode: RTreeNode)
+    // Recursive triggers are off: a REPLACE silently deletes the existing row without firing
+    // the delete triggers that maintain the search index. Inserts ignore nodes that are already
+    // cached, use the upsert methods when a node might already be there.
+    // Returns the row ID of the new node, or -1 if it was already cached.
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    fun insert(treeNode: RTreeNode): Long
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    fun insertAll(treeNodes: List<RTreeNode>): List<Long>
 
     @Update
     fun update(treeNode: RTreeNode)
 
+    @Update
+    fun updateAll(treeNodes: List<RTreeNode>)
+
+    @Transaction
+    fun upsert(treeNode: RTreeNode) {
+        if (insert(treeNode) == -1L) {
+            update(treeNode)
+        }
+    }
+
+    @Transaction
+    fun upsertAll(treeNodes: List<RTreeNode>) {
+        val rowIDs = insertAll(treeNodes)
+        val cached = treeNodes.filterIndexed { i, _ -> rowIDs[i] == -1L }
+        if (cached.isNotEmpty()) {
+            updateAll(cached)
+        }
+    }
+
     @Query("SELECT * FROM tree_nodes WHERE encoded_state = :encodedState LIMIT 1")
     fun getNode(encodedState: String): RTreeNode?
 
     @Query("SELECT * FROM tree_nodes WHERE uuid = :uuid")
     fun getNodesByUuid(uuid: String): List<RTreeNode>
 
-    @Query("SELECT * FROM tree_nodes WHERE encoded_state like :stateId || '%'")
+    @Query("SELECT * FROM tree_nodes WHERE encoded_state >= :stateId AND encoded_state < :stateId || char(1114111)")
     fun getUnder(stateId: String): List<RTreeNode>
 
     @Query("DELETE FROM tree_nodes WHERE encoded_state = :stateId")
     fun delete(stateId: String)
 
-    @Query("DELETE FROM tree_nodes WHERE encoded_state like :stateId || '%'")
+    @Query("DELETE FROM tree_nodes WHERE encoded_state IN (:stateIds)")
+    fun deleteAll(stateIds: List<String>)
+
+    @Query("DELETE FROM tree_nodes WHERE encoded_state >= :stateId AND encoded_state < :stateId || char(1114111)")
     fun deleteUnder(stateId: String)
 
     @RawQuery
     fun searchQuery(query: SupportSQLiteQuery): List<RTreeNode>
 
-    @Query("SELECT * FROM tree_nodes WHERE name like '%' ||  :name || '%' LIMIT 100")
-    fun query(name: String): List<RTreeNode>
-
-    @Query("SELECT * FROM tree_nodes WHERE encoded_state like :encodedParentStateID || '%' AND parent_path = :parentPath AND mime = :mime ORDER BY sort_name")
+    @Query("SELECT * FROM tree_nodes WHERE parent_path = :parentPath AND workspace = :workspace AND mime = :mime ORDER BY sort_name")
     fun listWithMime(
-        encodedParentStateID: String,
+        workspace: String,
         parentPath: String,
         mime: String
     ): List<RTreeNode>
 
-    @Query("SELECT * FROM tree_nodes WHERE encoded_state like :encodedParentStateID || '%' AND parent_path = :parentPath ORDER BY name")
-    fun getNodesForDiff(encodedParentStateID: String, parentPath: String): List<RTreeNode>
+    @Query("SELECT * FROM tree_nodes WHERE parent_path = :parentPath AND workspace = :workspace ORDER BY name")
+    fun getNodesForDiff(workspace: String, parentPath: String): List<RTreeNode>
 
-    // Reactive queries
-    @RawQuery(observedEntities = [RTreeNode::class])
-    fun searchQueryFlow(query: SupportSQLiteQuery): Flow<List<RTreeNode>>
-
-    @Query("SELECT * FROM tree_nodes WHERE encoded_state like :encodedParentStateID || '%' AND parent_path = :parentPath AND mime = :mime ORDER BY sort_name")
-    fun lsWithMimeFlow(
-        encodedParentStateID: String,
-        parentPath: String,
-        mime: String
-    ): Flow<List<RTreeNode>>
+    // Not observed: listings are refreshed when the folder stamp changes, see RFolderStamp
+    @RawQuery
+    fun rawQuery(query: SupportSQLiteQuery): List<RTreeNode>
 
-    @Query("SELECT * FROM tree_nodes WHERE name like '%' ||  :name || '%' LIMIT 100")
-    fun simpleQueryFlow(name: String): Flow<List<RTreeNode>>
+    // Workspace roots have an empty parent path
+    @Query("SELECT * FROM tree_nodes WHERE parent_path = '' AND mime = :mime ORDER BY sort_name")
+    fun lsWorkspaceRoots(mime: String): List<RTreeNode>
 
-    @Query("SELECT * FROM tree_nodes WHERE encoded_state like :encodedParentStateID || '%' AND parent_path = :parentPath AND mime like :mime || '%' ORDER BY sort_name")
-    fun lsWithMimeFilterFlow(
-        encodedParentStateID: String,
-        parentPath: String,
-        mime: String
-    ): Flow<List<RTreeNode>>
+    @Query("SELECT * FROM tree_nodes WHERE parent_path = '' AND mime = :mime ORDER BY sort_name, encoded_state LIMIT :limit OFFSET :offset")
+    fun lsWorkspaceRootPage(mime: String, limit: Int, offset: Int): List<RTreeNode>
 
-    @Query("SELECT * FROM tree_nodes WHERE encoded_state like :encodedParentStateID || '%' AND parent_path = :parentPath AND mime like :mime || '%' ORDER BY sort_name")
+    @Query("SELECT * FROM tree_nodes WHERE parent_path = :parentPath AND workspace = :workspace AND mime like :mime || '%' ORDER BY sort_name")
     fun lsWithMimeFilter(
-        encodedParentStateID: String,
+        workspace: String,
         parentPath: String,
         mime: String
-    ): Flow<List<RTreeNode>>
+    ): List<RTreeNode>
+
+    // Reactive queries
+    @RawQuery(observedEntities = [RTreeNode::class])
+    fun searchQueryFlow(query: SupportSQLiteQuery): Flow<List<RTreeNode>>
+
+    @RawQuery(observedEntities = [RTreeNode::class])
+    fun pagedQuery(query: SupportSQLiteQuery): PagingSource<Int, RTreeNode>
+
+    @Query("SELECT * FROM tree_nodes WHERE uuid = :uuid AND flags & :flag = :flag")
+    fun getWithFlag(uuid: String, flag: Int): List<RTreeNode>
 }
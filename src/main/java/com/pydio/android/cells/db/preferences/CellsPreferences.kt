@@ -16,7 +16,9 @@ data class CellsPreferences(
     val disablePoll: Boolean,
     val list: ListPreferences,
     val meteredNetwork: MeteredNetworkPreferences,
-    val sync: SyncPreferences
+    val sync: SyncPreferences,
+    val bandwidth: BandwidthPreferences,
+    val cache: CachePreferences,
 )
 
 data class ListPreferences(
@@ -42,6 +44,34 @@ data class SyncPreferences(
     val onCharging: Boolean,
     val onBatteryNotLow: Boolean,
     val onIdle: Boolean,
+    // Max number of folders that are diffed concurrently while walking the offline trees
+    val parallelism: Int,
+    // Max number of concurrent downloads for each local file type, see DownloadScheduler
+    val thumbDownloads: Int,
+    val previewDownloads: Int,
+    val fileDownloads: Int,
+    // Max number of concurrent uploads for all accounts, see UploadQueue
+    val uploads: Int,
+)
+
+data class BandwidthPreferences(
+    // Max transfer rates in KB/s for each network type, 0 means no limit
+    val unmeteredRate: Int,
+    val meteredRate: Int,
+    val roamingRate: Int,
+    // Daily budget in MB on metered and roaming networks for background transfers, 0 means no limit
+    val dailyMeteredBudget: Int,
+    // Percentage of the rate that background transfers get while the user is waiting for a file
+    val backgroundShare: Int,
+)
+
+data class CachePreferences(
+    // Max size in MB of the thumbnails, previews and files that are cached on the device, 0 means no limit
+    val thumbQuota: Int,
+    val previewQuota: Int,
+    val fileQuota: Int,
+    // Either lru or lfu, see CacheManager
+    val evictionPolicy: String,
 )
 
 fun defaultCellsPreferences(): CellsPreferences {
@@ -72,9 +102,31 @@ fun defaultCellsPreferences(): CellsPreferences {
         onNetworkType = AppNames.NETWORK_TYPE_UNMETERED,
         onCharging = true,
         onBatteryNotLow = true,
-        onIdle = true
+        onIdle = true,
+        parallelism = 4,
+        thumbDownloads = 8,
+        previewDownloads = 4,
+        fileDownloads = 2,
+        uploads = 2,
+    )
+    // Bandwidth shaping
+    val bandwidthPref = BandwidthPreferences(
+        unmeteredRate = 0,
+        meteredRate = 0,
+        roamingRate = 256,
+        dailyMeteredBudget = 0,
+        backgroundShare = 25,
+    )
+    // Local cache
+    val cachePref = CachePreferences(
+        thumbQuota = 100,
+        previewQuota = 500,
+        fileQuota = 2048,
+        evictionPolicy = AppNames.CACHE_EVICTION_LRU,
+    )
+    return CellsPreferences(
+        currVersion, showDebug, disablePoll, listPref, meteredPref, syncPref, bandwidthPref, cachePref
     )
-    return CellsPreferences(currVersion, showDebug, disablePoll, listPref, meteredPref, syncPref)
 }
 
 // Migration from legacy SharedPreference system
@@ -16,6 +16,8 @@ import com.pydio.android.cells.services.ConnectionService
 import com.pydio.android.cells.services.CoroutineService
 import com.pydio.android.cells.services.CredentialWatcher
 import com.pydio.android.cells.services.ErrorService
+import com.pydio.android.cells.services.CacheManager
+import com.pydio.android.cells.services.CacheMonitor
 import com.pydio.android.cells.services.FileService
 import com.pydio.android.cells.services.JobService
 import com.pydio.android.cells.services.NetworkService
@@ -30,6 +32,12 @@ import com.pydio.android.cells.services.TransferService
 import com.pydio.android.cells.services.TreeNodeRepository
 import com.pydio.android.cells.services.WorkerService
 import com.pydio.android.cells.services.workers.OfflineSyncWorker
+import com.pydio.android.cells.services.workers.UploadResumeWorker
+import com.pydio.android.cells.transfer.BandwidthManager
+import com.pydio.android.cells.transfer.DownloadScheduler
+import com.pydio.android.cells.transfer.ImagePrefetcher
+import com.pydio.android.cells.transfer.ProgressAggregator
+import com.pydio.android.cells.transfer.TransferMonitor
 import com.pydio.android.cells.ui.account.AccountListVM
 import com.pydio.android.cells.ui.browse.models.AccountHomeVM
 import com.pydio.android.cells.ui.browse.models.BookmarksVM
@@ -209,7 +217,9 @@ val serviceModule = module {
         )
     }
     single { AuthService(get(), get()) }
-    single { FileService(androidContext().applicationContext, get(), get()) }
+    single { CacheMonitor() }
+    single { FileService(androidContext().applicationContext, get(), get(), get()) }
+    single { CacheManager(get(), get(), get(), get(), get()) }
 
     // Accounts
     single {
@@ -245,9 +255,14 @@ val serviceModule = module {
             get(),
             get(),
             get(),
+            get(),
             get()
         )
     }
+    single { DownloadScheduler(get(), get()) }
+    single { TransferMonitor() }
+    single { ProgressAggregator(get()) }
+    single { BandwidthManager(get(), get(), get()) }
     single {
         TransferService(
             androidContext().applicationContext,
@@ -257,9 +272,16 @@ val serviceModule = module {
             get(),
             get(),
             get(),
-            get()
+            get(),
+            get(),
+            get(),
+            get(),
+            get(),
         )
     }
+    single {
+        ImagePrefetcher(androidContext().applicationContext, get(), get(), get(), get(), get())
+    }
 
     worker { (workerParams: WorkerParameters) ->
         OfflineSyncWorker(
@@ -267,6 +289,13 @@ val serviceModule = module {
             params = workerParams,
         )
     }
+
+    worker { (workerParams: WorkerParameters) ->
+        UploadResumeWorker(
+            appContext = get(),
+            params = workerParams,
+        )
+    }
 }
 
 val viewModelModule = module {
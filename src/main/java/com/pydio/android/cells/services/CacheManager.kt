@@ -0,0 +1,222 @@
+package com.pydio.android.cells.services
+
+import android.util.Log
+import androidx.sqlite.db.SimpleSQLiteQuery
+import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.db.nodes.RLocalFile
+import com.pydio.android.cells.db.preferences.CachePreferences
+import com.pydio.android.cells.db.preferences.defaultCellsPreferences
+import com.pydio.android.cells.utils.currentTimestamp
+import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+/**
+ * Keeps the thumbnails, previews and files that are cached on the device under a quota per type.
+ * When a quota is exceeded, the least recently used (or least frequently used, depending on
+ * the preferences) files are deleted in the background, across all accounts, until the
+ * usage is back under [LOW_WATERMARK] percent of the quota.
+ * Files under an offline root are pinned: they are never evicted and do not count in the quotas.
+ * Files that have been used in the last few minutes are most probably still on screen
+ * and are not evicted either.
+ */
+class CacheManager(
+    coroutineService: CoroutineService,
+    private val treeNodeRepository: TreeNodeRepository,
+    private val fileService: FileService,
+    private val cacheMonitor: CacheMonitor,
+    preferencesService: PreferencesService,
+) {
+
+    private val logTag = "CacheManager"
+
+    private val scope = coroutineService.cellsIoScope
+    private val ioDispatcher = coroutineService.ioDispatcher
+
+    @Volatile
+    private var cachePrefs: CachePreferences = defaultCellsPreferences().cache
+
+    private val evictionRequests = Channel<Unit>(Channel.CONFLATED)
+
+    // Bytes used by each type of cached files, for all accounts
+    private val _usage = MutableStateFlow<Map<String, Long>>(emptyMap())
+    val usage: StateFlow<Map<String, Long>> = _usage.asStateFlow()
+
+    init {
+        scope.launch {
+            preferencesService.cellsPreferencesFlow.collect {
+                cachePrefs = it.cache
+                requestEviction()
+            }
+        }
+        scope.launch {
+            cacheMonitor.stored.collect { requestEviction() }
+        }
+        scope.launch {
+            while (isActive) {
+                delay(FLUSH_PERIOD_MS)
+                flushAccesses()
+            }
+        }
+        scope.launch {
+            for (request in evictionRequests) {
+                // Let a burst of downloads end before we scan the local file tables
+                delay(EVICTION_DELAY_MS)
+                try {
+                    evict()
+                } catch (e: Exception) {
+                    // Sessions might be closed while we evict, we will try again with the next request
+                    Log.e(logTag, "Could not evict cached files: ${e.message}")
+                }
+            }
+        }
+    }
+
+    fun requestEviction() {
+        evictionRequests.trySend(Unit)
+    }
+
+    /** Deletes the least used files of each type until its usage fits in its quota */
+    suspend fun evict() = withContext(ioDispatcher) {
+        flushAccesses()
+        val prefs = cachePrefs
+        val accounts = treeNodeRepository.sessions.values.map { it.account() }
+        val pinned = accounts.associateWith { pinnedRoots(it) }
+        val usage = cacheUsage(pinned)
+        for ((type, quotaMB) in quotas(prefs)) {
+            var used = usage[type] ?: 0L
+            if (quotaMB <= 0 || used <= quotaMB * MB) {
+                continue
+            }
+            val target = quotaMB * MB * LOW_WATERMARK / 100
+            Log.i(logTag, "${used / MB}MB of $type for a quota of ${quotaMB}MB, evicting")
+
+            val comparator = evictionOrder(prefs.evictionPolicy)
+            while (used > target) {
+                // The first candidates of all accounts, merged in eviction order
+                val candidates = accounts
+                    .flatMap { candidates(it, type, prefs.evictionPolicy, pinned[it] ?: listOf()) }
+                    .sortedWith(comparator)
+                    .take(PAGE_SIZE)
+                if (candidates.isEmpty()) {
+                    Log.w(logTag, "Nothing left to evict for $type, ${used / MB}MB are in use")
+                    break
+                }
+                for (candidate in candidates) {
+                    if (used <= target) break
+                    val size = candidate.size.coerceAtLeast(0L)
+                    fileService.unregisterLocalFile(candidate.getStateID(), type)
+                    cacheMonitor.onEvicted(type, size)
+                    used -= size
+                }
+            }
+        }
+        refreshUsage()
+    }
+
+    suspend fun refreshUsage() = withContext(ioDispatcher) {
+        val accounts = treeNodeRepository.sessions.values.map { it.account() }
+        _usage.value = cacheUsage(accounts.associateWith { pinnedRoots(it) })
+    }
+
+    /** Offline content is not part of the cache: it does not count in the quotas */
+    private fun cacheUsage(pinned: Map<StateID, List<String>>): Map<String, Long> {
+        val usage = mutableMapOf<String, Long>()
+        for ((accountID, roots) in pinned) {
+            val dao = localFileDao(accountID)
+            for (typeUsage in dao.usageByType()) {
+                val pinnedSize = roots.sumOf { dao.sizeUnder(it, typeUsage.type) }
+                usage[typeUsage.type] = (usage[typeUsage.type] ?: 0L) +
+                        (typeUsage.byteSize - pinnedSize).coerceAtLeast(0L)
+            }
+        }
+        return usage
+    }
+
+    /** Persists the access timestamps and counts that have been recorded since the last flush */
+    private fun flushAccesses() {
+        val accesses = cacheMonitor.drainAccesses()
+        if (accesses.isEmpty()) {
+            return
+        }
+        accesses.entries
+            .groupBy { StateID.fromId(it.key.first).account() }
+            .forEach { (accountID, accountAccesses) ->
+                try {
+                    val db = treeNodeRepository.nodeDB(accountID)
+                    db.runInTransaction {
+                        for ((key, access) in accountAccesses) {
+                            db.localFileDao().touch(key.first, key.second, access.accessTS, access.hits)
+                        }
+                    }
+                } catch (e: IllegalStateException) {
+                    // The account has been removed in the meantime
+                    Log.w(logTag, "Could not persist accesses for $accountID: ${e.message}")
+                }
+            }
+    }
+
+    private fun candidates(
+        accountID: StateID,
+        type: String,
+        policy: String,
+        pinnedRoots: List<String>,
+    ): List<RLocalFile> {
+        val queryStr = StringBuilder("SELECT * FROM local_files WHERE type = ? AND access_ts < ?")
+        val args = mutableListOf<Any>(type, currentTimestamp() - IN_USE_DELAY_S)
+        // See TreeNodeDao for the range on the primary key
+        for (root in pinnedRoots) {
+            queryStr.append(" AND NOT (encoded_state >= ? AND encoded_state < ? || char(1114111))")
+            args.add(root)
+            args.add(root)
+        }
+        val order = when (policy) {
+            AppNames.CACHE_EVICTION_LFU -> "access_count ASC, access_ts ASC"
+            else -> "access_ts ASC, access_count ASC"
+        }
+        queryStr.append(" ORDER BY $order LIMIT ?")
+        args.add(PAGE_SIZE)
+        return localFileDao(accountID).rawQuery(SimpleSQLiteQuery(queryStr.toString(), args.toTypedArray()))
+    }
+
+    private fun evictionOrder(policy: String): Comparator<RLocalFile> {
+        return when (policy) {
+            AppNames.CACHE_EVICTION_LFU -> compareBy({ it.accessCount }, { it.accessTS })
+            else -> compareBy({ it.accessTS }, { it.accessCount })
+        }
+    }
+
+    private fun pinnedRoots(accountID: StateID): List<String> {
+        return treeNodeRepository.nodeDB(accountID).offlineRootDao().getAllActive().map { it.encodedState }
+    }
+
+    private fun quotas(prefs: CachePreferences): Map<String, Long> {
+        return mapOf(
+            AppNames.LOCAL_FILE_TYPE_THUMB to prefs.thumbQuota.toLong(),
+            AppNames.LOCAL_FILE_TYPE_PREVIEW to prefs.previewQuota.toLong(),
+            AppNames.LOCAL_FILE_TYPE_FILE to prefs.fileQuota.toLong(),
+        )
+    }
+
+    private fun localFileDao(accountID: StateID) = treeNodeRepository.nodeDB(accountID).localFileDao()
+
+    companion object {
+        private const val MB = 1024L * 1024
+        private const val PAGE_SIZE = 200
+
+        // Once we evict, we free some more room so that we do not evict again at the next download
+        private const val LOW_WATERMARK = 90L
+
+        // Files that have been used in the last few minutes are most probably still on screen
+        private const val IN_USE_DELAY_S = 10 * 60L
+
+        private const val FLUSH_PERIOD_MS = 30_000L
+        private const val EVICTION_DELAY_MS = 5_000L
+    }
+}
@@ -0,0 +1,79 @@
+package com.pydio.android.cells.services
+
+import com.pydio.android.cells.utils.currentTimestamp
+import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import java.util.concurrent.ConcurrentHashMap
+
+/** Hits, misses and evictions for a type of local files since the app has started */
+data class CacheTypeStats(
+    val hits: Long = 0L,
+    val misses: Long = 0L,
+    val evictedFiles: Long = 0L,
+    val evictedBytes: Long = 0L,
+)
+
+/** Accesses to a local file that have not yet been persisted */
+data class LocalFileAccess(val accessTS: Long, val hits: Int)
+
+/**
+ * Relays the accesses to the local files from the services that read and write them
+ * to the [CacheManager], so that we do not write in the DB each time a thumbnail is shown.
+ * It also holds the counters that are shown in the house keeping screen.
+ */
+class CacheMonitor {
+
+    // Keys are pairs of encoded state and file type
+    private val accesses = ConcurrentHashMap<Pair<String, String>, LocalFileAccess>()
+
+    private val _stats = MutableStateFlow<Map<String, CacheTypeStats>>(emptyMap())
+    val stats: StateFlow<Map<String, CacheTypeStats>> = _stats.asStateFlow()
+
+    // Emits the account ID each time a file has been added to the cache
+    private val _stored = MutableSharedFlow<StateID>(
+        extraBufferCapacity = 1,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    val stored: SharedFlow<StateID> = _stored.asSharedFlow()
+
+    fun onHit(stateID: StateID, type: String) {
+        accesses.merge(stateID.id to type, LocalFileAccess(currentTimestamp(), 1)) { old, new ->
+            LocalFileAccess(new.accessTS, old.hits + new.hits)
+        }
+        updateStats(type) { it.copy(hits = it.hits + 1) }
+    }
+
+    fun onMiss(type: String) {
+        updateStats(type) { it.copy(misses = it.misses + 1) }
+    }
+
+    fun onStored(stateID: StateID) {
+        _stored.tryEmit(stateID.account())
+    }
+
+    fun onEvicted(type: String, byteSize: Long) {
+        updateStats(type) {
+            it.copy(evictedFiles = it.evictedFiles + 1, evictedBytes = it.evictedBytes + byteSize)
+        }
+    }
+
+    /** Returns and forgets the accesses that have been recorded since the last call */
+    fun drainAccesses(): Map<Pair<String, String>, LocalFileAccess> {
+        val drained = mutableMapOf<Pair<String, String>, LocalFileAccess>()
+        for (key in accesses.keys) {
+            accesses.remove(key)?.let { drained[key] = it }
+        }
+        return drained
+    }
+
+    private fun updateStats(type: String, update: (CacheTypeStats) -> CacheTypeStats) {
+        _stats.update { it + (type to update(it[type] ?: CacheTypeStats())) }
+    }
+}
@@ -1,6 +1,8 @@
 package com.pydio.android.cells.services
 
+import android.content.ContentResolver
 import android.content.Context
+import android.net.Uri
 import android.util.Log
 import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.db.nodes.RLocalFile
@@ -8,6 +10,7 @@ import com.pydio.android.cells.db.nodes.RTransfer
 import com.pydio.android.cells.db.nodes.RTreeNode
 import com.pydio.android.cells.utils.asFormattedString
 import com.pydio.android.cells.utils.computeFileMd5
+import com.pydio.android.cells.utils.DEFAULT_FILE_PROVIDER_ID
 import com.pydio.android.cells.utils.currentTimestamp
 import com.pydio.android.cells.utils.getCurrentDateTime
 import com.pydio.cells.api.SDKException
@@ -21,7 +24,8 @@ import java.io.File
 class FileService(
     context: Context,
     private val coroutineService: CoroutineService,
-    private val treeNodeRepository: TreeNodeRepository
+    private val treeNodeRepository: TreeNodeRepository,
+    private val cacheMonitor: CacheMonitor,
 ) {
 
     private val logTag = "FileService"
@@ -82,11 +86,19 @@ class FileService(
     }
 
     /* LOCAL FILES (for offline and cache) */
-    fun registerLocalFile(stateID: StateID, rTreeNode: RTreeNode, type: String, file: File) {
+    fun registerLocalFile(
+        stateID: StateID,
+        rTreeNode: RTreeNode,
+        type: String,
+        file: File,
+        hash: String? = null,
+    ) {
         val dao = treeNodeRepository.nodeDB(stateID).localFileDao()
-        val rLocalFile =
-            RLocalFile.fromFile(stateID, type, file, rTreeNode.etag, rTreeNode.remoteModificationTS)
+        val rLocalFile = RLocalFile.fromFile(
+            stateID, type, file, rTreeNode.etag, rTreeNode.remoteModificationTS, hash
+        )
         dao.insert(rLocalFile)
+        cacheMonitor.onStored(stateID)
 
         //  TODO insure it is correct
         // Also update modification timestamp on the "parent" RTreeNode
@@ -127,6 +139,7 @@ class FileService(
         )
         Log.i(logTag, "... #$tid - After transfer, registering local file: $rLocalFile")
         ndb.localFileDao().insert(rLocalFile)
+        cacheMonitor.onStored(stateID)
     }
 
     fun needsUpdate(stateID: StateID, remote: FileNode, type: String): Boolean {
@@ -167,13 +180,23 @@ class FileService(
             return true
         }
 
-        // Finally recompute local file md5 to insure it corresponds with the expected value (corrupted file)
+        // The hash computed at download time is reliable while the file has not been touched
+        if (localFile.isHashValidFor(lf)) {
+            return localFile.etag == localFile.hash
+        }
+
+        // Otherwise recompute local file md5 to insure it corresponds with the expected value (corrupted file)
         val computedMd5 = computeFileMd5(lf)
         if (localFile.etag != computedMd5) {
             // This should never happen, we expect that the md5 check is done at DL time.
             Log.w(logTag, "MD5 signatures do not match when trying to DL local file to device")
             Log.d(logTag, "Expected: [${localFile.etag}], computed: [$computedMd5]")
         }
+        // Remember the result for the next checks
+        localFile.hash = computedMd5
+        localFile.size = lf.length()
+        localFile.fileMTime = lf.lastModified()
+        treeNodeRepository.nodeDB(updatedNode.getStateID()).localFileDao().update(localFile)
         return localFile.etag == computedMd5
     }
 
@@ -206,6 +229,26 @@ class FileService(
         return File("${imgPath}${sep}IMG_${timestamp}.jpg")
     }
 
+    /**
+     * Returns the file that is behind this URI when it is in the transfer folder of this account,
+     * typically a picture that has just been taken via our file provider, see [createImageFile].
+     * Other files of the app storage (cached or offline files that we have shared with
+     * another app) are still referenced in the local_files table and must not be moved away.
+     */
+    fun getTransferFileFromUri(accountID: StateID, uri: Uri): File? {
+        val file = when {
+            uri.scheme == ContentResolver.SCHEME_FILE -> uri.path?.let { File(it) }
+            // See res/xml/provider_paths.xml: all roots point to the files dir
+            uri.authority == DEFAULT_FILE_PROVIDER_ID ->
+                File(appFilesDir, uri.pathSegments.drop(1).joinToString(sep))
+
+            else -> null
+        }
+        // Do not follow paths that escape from the transfer folder
+        val root = File(dataParentPath(accountID, AppNames.LOCAL_FILE_TYPE_TRANSFER)).canonicalPath + sep
+        return file?.takeIf { it.isFile && it.canonicalPath.startsWith(root) }
+    }
+
     /* Violently remove all local files and also empty the local_files table */
     fun cleanAllLocalFiles(accountID: StateID) {
 
@@ -116,6 +116,10 @@ class JobService(
             currJob
         }
 
+    suspend fun isCancelled(jobID: Long): Boolean = withContext(ioDispatcher) {
+        return@withContext jobDao.hasBeenCancelled(jobID) != null
+    }
+
     suspend fun getRunningJobs(template: String): List<RJob> = withContext(ioDispatcher) {
         return@withContext jobDao.getRunningForTemplate(template)
     }
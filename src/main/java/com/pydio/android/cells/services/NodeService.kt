@@ -4,14 +4,20 @@ import android.content.Context
 import android.util.Log
 import androidx.compose.runtime.State
 import androidx.compose.runtime.mutableStateOf
+import androidx.paging.PagingSource
+import androidx.room.withTransaction
 import androidx.sqlite.db.SimpleSQLiteQuery
 import com.bumptech.glide.Glide
 import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.ListType
 import com.pydio.android.cells.db.accounts.RWorkspace
+import com.pydio.android.cells.db.nodes.RFolderStamp
 import com.pydio.android.cells.db.nodes.RLiveOfflineRoot
+import com.pydio.android.cells.db.nodes.ROfflineRoot
 import com.pydio.android.cells.db.nodes.RTreeNode
+import com.pydio.android.cells.db.nodes.RTreeNodeFts
 import com.pydio.android.cells.db.nodes.TreeNodeDB
+import com.pydio.android.cells.services.models.OffsetPagingSource
 import com.pydio.android.cells.transfer.TreeDiff
 import com.pydio.android.cells.utils.currentTimestamp
 import com.pydio.android.cells.utils.currentTimestampAsString
@@ -24,9 +30,16 @@ import com.pydio.cells.api.SdkNames
 import com.pydio.cells.api.ui.FileNode
 import com.pydio.cells.api.ui.Node
 import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.async
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.mapLatest
 import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.withContext
 import java.io.File
 import java.io.IOException
@@ -46,80 +59,141 @@ class NodeService(
 
     // Query the local index to get Flows for the ViewModels
 
-    fun sortedListFlow(
+    /**
+     * Emits a new value only when a direct child of the given folder (or a workspace root
+     * when no slug is defined) has been inserted, updated or deleted, see [RFolderStamp].
+     */
+    fun folderChanges(stateID: StateID): Flow<Long?> {
+        val dao = nodeDB(stateID).folderStampDao()
+        val stamps = if (stateID.slug.isNullOrEmpty()) {
+            dao.workspaceRootsStampFlow()
+        } else {
+            dao.stampFlow(stateID.slug, stateID.file)
+        }
+        return stamps.distinctUntilChanged()
+    }
+
+    /* Paged listings: the DB is resolved eagerly and we return a factory,
+     * because a new paging source must be provided after each invalidation.
+     * The encoded state is used as tie-breaker so that the order is stable between pages.
+     * Folder listings are not observed by Room: they must be invalidated on [folderChanges]. */
+
+    fun sortedListPagingFactory(
         stateID: StateID,
         sortByCol: String,
         sortByDirection: String
-    ): Flow<List<RTreeNode>> {
-        val parPath = stateID.file
+    ): () -> PagingSource<Int, RTreeNode> {
+        val dao = nodeDB(stateID).treeNodeDao()
+        val queryStr = "SELECT * FROM tree_nodes WHERE parent_path = ? AND workspace = ? " +
+                "ORDER BY $sortByCol $sortByDirection, encoded_state LIMIT ? OFFSET ?"
+        return {
+            OffsetPagingSource { limit, offset ->
+                withContext(ioDispatcher) {
+                    dao.rawQuery(
+                        SimpleSQLiteQuery(
+                            queryStr,
+                            arrayOf(stateID.file, stateID.slug, limit, offset)
+                        )
+                    )
+                }
+            }
+        }
+    }
+
+    fun workspacesPagingFactory(stateID: StateID): () -> PagingSource<Int, RTreeNode> {
+        val dao = nodeDB(stateID).treeNodeDao()
+        return {
+            OffsetPagingSource { limit, offset ->
+                withContext(ioDispatcher) {
+                    dao.lsWorkspaceRootPage(SdkNames.NODE_MIME_WS_ROOT, limit, offset)
+                }
+            }
+        }
+    }
+
+    /** Only one node per UUID is returned, see [listBookmarkedAppearances] */
+    fun bookmarksPagingFactory(
+        accountID: StateID,
+        sortByCol: String,
+        sortByOrder: String
+    ): () -> PagingSource<Int, RTreeNode> {
+        val dao = nodeDB(accountID).treeNodeDao()
         val lsQuery = SimpleSQLiteQuery(
-            "SELECT * FROM tree_nodes WHERE encoded_state like '${stateID.id}%' " +
-                    "AND parent_path = ? " +
-                    "ORDER BY $sortByCol $sortByDirection ", arrayOf(parPath)
+            "SELECT * FROM tree_nodes WHERE flags & " + AppNames.FLAG_BOOKMARK +
+                    " = " + AppNames.FLAG_BOOKMARK + " GROUP BY uuid " +
+                    "ORDER BY $sortByCol $sortByOrder, uuid"
         )
-        return nodeDB(stateID).treeNodeDao().searchQueryFlow(lsQuery)
+        return { dao.pagedQuery(lsQuery) }
     }
 
-    fun listBookmarkFlow(
+    /** A given bookmarked file might appear at more than one path, e.g. when it is also in a cell */
+    suspend fun listBookmarkedAppearances(node: RTreeNode): List<RTreeNode> =
+        withContext(ioDispatcher) {
+            nodeDB(node.getStateID()).treeNodeDao().getWithFlag(node.uuid, AppNames.FLAG_BOOKMARK)
+        }
+
+    fun offlineRootsPagingFactory(
         accountID: StateID,
         sortByCol: String,
         sortByOrder: String
-    ): Flow<List<RTreeNode>> {
+    ): () -> PagingSource<Int, RLiveOfflineRoot> {
+        val dao = nodeDB(accountID).liveOfflineRootDao()
         val lsQuery = SimpleSQLiteQuery(
-            "SELECT * FROM tree_nodes WHERE flags & " + AppNames.FLAG_BOOKMARK +
-                    " = " + AppNames.FLAG_BOOKMARK + " ORDER BY $sortByCol $sortByOrder"
+            "SELECT * FROM RLiveOfflineRoot WHERE status != ? " +
+                    "ORDER BY $sortByCol $sortByOrder, encoded_state",
+            arrayOf(AppNames.OFFLINE_STATUS_LOST)
         )
-        return nodeDB(accountID).treeNodeDao().searchQueryFlow(lsQuery)
+        return { dao.pagedOfflineRoots(lsQuery) }
     }
 
+    @OptIn(ExperimentalCoroutinesApi::class)
     fun listWorkspaces(stateID: StateID): Flow<List<RTreeNode>> {
         Log.d(logTag, "Listing WS for $stateID - parPath: ${stateID.file}")
-        return nodeDB(stateID).treeNodeDao()
-            .lsWithMimeFlow(stateID.id, "", SdkNames.NODE_MIME_WS_ROOT)
+        val dao = nodeDB(stateID).treeNodeDao()
+        return folderChanges(stateID).mapLatest {
+            withContext(ioDispatcher) { dao.lsWorkspaceRoots(SdkNames.NODE_MIME_WS_ROOT) }
+        }
     }
 
+    @OptIn(ExperimentalCoroutinesApi::class)
     fun listChildren(stateID: StateID, mimeFilter: String): Flow<List<RTreeNode>> {
         Log.d(logTag, "Listing children of $stateID: parPath: ${stateID.file}, mime: $mimeFilter")
-        return nodeDB(stateID).treeNodeDao()
-            .lsWithMimeFilterFlow(stateID.id, stateID.file, mimeFilter)
-    }
-
-    fun listOfflineRoots(
-        accountID: StateID,
-        sortByCol: String,
-        sortByOrder: String
-    ): Flow<List<RLiveOfflineRoot>> {
-        val lsQuery = SimpleSQLiteQuery(
-            "SELECT * FROM RLiveOfflineRoot WHERE " +
-                    "status != '${AppNames.OFFLINE_STATUS_LOST}' ORDER BY $sortByCol $sortByOrder"
-        )
-        return nodeDB(accountID).liveOfflineRootDao().offlineRootQueryF(lsQuery)
+        val dao = nodeDB(stateID).treeNodeDao()
+        return folderChanges(stateID).mapLatest {
+            withContext(ioDispatcher) {
+                dao.lsWithMimeFilter(stateID.slug, stateID.file, mimeFilter)
+            }
+        }
     }
 
+    @OptIn(ExperimentalCoroutinesApi::class)
     fun listLiveChildren(
         stateID: StateID,
         mime: String,
         orderBy: String,
         orderDir: String,
     ): Flow<List<RTreeNode>> {
-        val queryStr = "SELECT * FROM tree_nodes WHERE encoded_state like '${stateID.id}' || '%' " +
-                " AND parent_path = '${stateID.file}' AND mime like '$mime' || '%' " +
-                " ORDER BY $orderBy $orderDir"
+        val queryStr = "SELECT * FROM tree_nodes WHERE parent_path = ? AND workspace = ? " +
+                " AND mime like ? || '%' ORDER BY $orderBy $orderDir"
         Log.d(logTag, "Listing live children with query: [$queryStr]")
-        return nodeDB(stateID).treeNodeDao().searchQueryFlow(SimpleSQLiteQuery(queryStr))
+        val lsQuery = SimpleSQLiteQuery(queryStr, arrayOf(stateID.file, stateID.slug, mime))
+        val dao = nodeDB(stateID).treeNodeDao()
+        return folderChanges(stateID).mapLatest {
+            withContext(ioDispatcher) { dao.rawQuery(lsQuery) }
+        }
     }
 
+    /** Search the local full text index, see [RTreeNodeFts.searchQuery] */
     fun liveSearch(
         stateID: StateID,
         query: String,
         encodedSortBy: String
     ): Flow<List<RTreeNode>> {
         val (sortByCol, sortByOrder) = parseOrder(encodedSortBy, ListType.DEFAULT)
-        val lsQuery = SimpleSQLiteQuery(
-            "SELECT * FROM tree_nodes WHERE name like '%${query}%' " +
-                    "ORDER BY $sortByCol $sortByOrder LIMIT 100 "
-        )
-        return nodeDB(stateID).treeNodeDao().searchQueryFlow(lsQuery)
+        val lsQuery = RTreeNodeFts.searchQuery(query, sortByCol, sortByOrder, LOCAL_SEARCH_LIMIT)
+            ?: return flowOf(listOf())
+        // Search spans all folders: we cannot scope invalidation but skip identical results
+        return nodeDB(stateID).treeNodeDao().searchQueryFlow(lsQuery).distinctUntilChanged()
     }
 
     /* Communicate with the DB using suspend functions */
@@ -153,54 +227,82 @@ class NodeService(
                 ?: throw java.lang.IllegalStateException("No session found in cache for ${newNode.getStateID().accountId}")
             val ndb = nodeDB(state)
 
-            // Also cache offline status and public link URL locally
-            if (!currSession.isRemoteLegacy) {
-                ndb.offlineRootDao().getByUuid(newNode.uuid)?.let {
-                    if (it.encodedState != newNode.encodedState) {
-                        // TODO we should rather try to move existing offline root
-                        offlineService.removeOfflineRoot(state)
-                        offlineService.updateOfflineRoot(newNode)
-                    } else {
-                        newNode.setOfflineRoot(true)
-                    }
-                }
+            val offlineRoot = if (currSession.isRemoteLegacy) null
+            else ndb.offlineRootDao().getByUuid(newNode.uuid)
+            prepareForPersistence(newNode, isDiffRoot, offlineRoot) {
+                accountService.getClient(state)
             }
-            var address: String? = null
-            val isShared =
-                newNode.properties.getProperty(SdkNames.NODE_PROPERTY_SHARED, "false") == "true"
-            if (isShared) {
-                val client = accountService.getClient(state)
-                if (client.isLegacy) {
-                    address = client.getShareAddress(state.slug, state.file)
-                } else {
-                    newNode.properties.getProperty(SdkNames.NODE_PROPERTY_SHARE_UUID)?.let {
-                        address = client.getShareAddress(state.slug, it)
-                    }
-                }
-            }
-            newNode.setShared(isShared, address)
-
-            newNode.localModificationTS = newNode.remoteModificationTS
-            newNode.localModificationStatus = null
 
-            if (newNode.isFile() || isDiffRoot) {
-                // We only update last check TS on folder if explicitly required by param,
-                // after checking the full content of a folder, in order to differentiate
-                // not-yet loaded folders from empty ones.
-                newNode.lastCheckTS = currentTimestamp()
-            }
+            Log.d(logTag, "upserting node at: $state")
+            // TODO double check that we do not loose any info on update
+            //    (not true with RLocalFile object anymore) -> Typically we force re-download of thumbs at each update
+            ndb.treeNodeDao().upsert(newNode)
+        }
 
-            val old = ndb.treeNodeDao().getNode(newNode.encodedState)
-            Log.d(logTag, "upserting node at: ${old?.getStateID() ?: state}")
+    /**
+     * Bulk counterpart of [upsertNode] for the diff: offline roots are loaded once for the whole
+     * batch and nothing is written to the tree_nodes table, the caller is then responsible
+     * to persist the prepared nodes, typically in a single transaction.
+     */
+    suspend fun prepareForBulkUpsert(
+        client: Client,
+        ndb: TreeNodeDB,
+        nodes: List<RTreeNode>,
+    ) = withContext(ioDispatcher) {
+        if (nodes.isEmpty()) {
+            return@withContext
+        }
+        val offlineRoots = if (client.isLegacy) mapOf()
+        else ndb.offlineRootDao().getAll().associateBy { it.uuid }
+        for (node in nodes) {
+            prepareForPersistence(node, false, offlineRoots[node.uuid]) { client }
+        }
+    }
 
-            if (old == null) {
-                ndb.treeNodeDao().insert(newNode)
+    /** Computes and caches locally the info that are not directly provided by the remote node */
+    private suspend fun prepareForPersistence(
+        newNode: RTreeNode,
+        isDiffRoot: Boolean,
+        offlineRoot: ROfflineRoot?,
+        getClient: suspend () -> Client,
+    ) {
+        val state = newNode.getStateID()
+
+        // Also cache offline status and public link URL locally
+        offlineRoot?.let {
+            if (it.encodedState != newNode.encodedState) {
+                // TODO we should rather try to move existing offline root
+                offlineService.removeOfflineRoot(state)
+                offlineService.updateOfflineRoot(newNode)
+            } else {
+                newNode.setOfflineRoot(true)
+            }
+        }
+        var address: String? = null
+        val isShared =
+            newNode.properties.getProperty(SdkNames.NODE_PROPERTY_SHARED, "false") == "true"
+        if (isShared) {
+            val client = getClient()
+            if (client.isLegacy) {
+                address = client.getShareAddress(state.slug, state.file)
             } else {
-                // TODO double check that we do not loose any info
-                //    (not true with RLocalFile object anymore) -> Typically we force re-download of thumbs at each update
-                ndb.treeNodeDao().update(newNode)
+                newNode.properties.getProperty(SdkNames.NODE_PROPERTY_SHARE_UUID)?.let {
+                    address = client.getShareAddress(state.slug, it)
+                }
             }
         }
+        newNode.setShared(isShared, address)
+
+        newNode.localModificationTS = newNode.remoteModificationTS
+        newNode.localModificationStatus = null
+
+        if (newNode.isFile() || isDiffRoot) {
+            // We only update last check TS on folder if explicitly required by param,
+            // after checking the full content of a folder, in order to differentiate
+            // not-yet loaded folders from empty ones.
+            newNode.lastCheckTS = currentTimestamp()
+        }
+    }
 
     /* Update nodes in the local store */
 
@@ -328,14 +430,18 @@ class NodeService(
      * Retrieve the meta of all readable nodes that are at the passed stateID.
      * Files and thumbs are lazily retrieved by Glide (for images) or upon user request (for all
      * other files).
+     * Background polls can rely on the change cursor to skip unchanged folders,
+     * an explicit refresh always lists the folder again.
      */
-    suspend fun pull(stateID: StateID): Pair<Int, String?> = withContext(ioDispatcher) {
+    suspend fun pull(
+        stateID: StateID,
+        useChangeCursor: Boolean = false,
+    ): Pair<Int, String?> = withContext(ioDispatcher) {
         try {
             val client = getClient(stateID)
-            val dao = nodeDB(stateID).treeNodeDao()
-
-            // WARNING: this browse **all** files that are in the folder
-            val folderDiff = TreeDiff(stateID, client, dao, null)
+            // WARNING: unless the change cursor is used and the remote folder is unchanged
+            // since last check, this browses **all** files that are in the folder
+            val folderDiff = TreeDiff(stateID, client, nodeDB(stateID), null, useChangeCursor)
             val changeNb = folderDiff.compareWithRemote()
             return@withContext Pair(changeNb, null)
         } catch (e: SDKException) {
@@ -462,7 +568,8 @@ class NodeService(
         // First delete corresponding files
         fileService.cleanFileCacheFor(accountID, alsoEmptyOffline)
 
-        // Also clean index
+        // Also clean index, cursors are invalidated so that next visit triggers a full diff
+        nodeDB(accountID).changeCursorDao().deleteUnder(accountID.id)
         val treeNodeDao = nodeDB(accountID).treeNodeDao()
         if (alsoEmptyOffline) {
             for (record in treeNodeDao.getUnder(accountID.id)) {
@@ -624,32 +731,53 @@ class NodeService(
     private var _lastQuery = mutableStateOf("")
     val lastQuery: State<String> = _lastQuery
 
+    /**
+     * Retrieves up to [limit] hits from the remote server. The blocking SDK call is interrupted
+     * if the calling coroutine is cancelled, typically when the query changes.
+     *
+     * Hits are returned as soon as they are received: they are then cached in the background,
+     * in a single transaction, to ease following user actions.
+     */
     @Throws(SDKException::class)
-    suspend fun remoteQuery(stateID: StateID, query: String) = withContext(ioDispatcher) {
-        try {
-            val remotes = getClient(stateID).search(stateID.path ?: "/", query, 20)
-            var updateCount = 0
-            // We already insert found nodes in the cache to ease following user action
-            for (remote in remotes) {
-                if (!this.isActive) return@withContext
-                // Log.e(logTag, "handling query result for ${node.getStateID()} ")
-                val tmp = RTreeNode.fromFileNode(stateID, remote)
-                getNode(tmp.getStateID())?.let {
-                    if (!isNodeUpToDate(it, remote)) {
-                        upsertNode(tmp)
-                        updateCount++
-                    }
-                    // Log.e(logTag, "found ${it.getStateID()}, doing nothing")
-                } ?: run {
-                    upsertNode(tmp)
-                    updateCount++
-                }
+    suspend fun remoteSearch(
+        stateID: StateID,
+        query: String,
+        limit: Int
+    ): List<RTreeNode> = withContext(ioDispatcher) {
+        val client = getClient(stateID)
+        val remotes = runInterruptible { client.search(stateID.path ?: "/", query, limit) }
+        ensureActive()
+        _lastQuery.value = query
+        val hits = remotes.map { RTreeNode.fromFileNode(stateID, it) }
+        serviceScope.launch {
+            try {
+                cacheSearchHits(client, stateID, remotes.zip(hits))
+            } catch (e: Exception) {
+                Log.w(logTag, "Could not cache search hits for [$query]: ${e.message}")
             }
-            Log.e(logTag, "After remote query, we have updated $updateCount nodes")
-            _lastQuery.value = query
-        } catch (se: SDKException) {
-            se.printStackTrace()
         }
+        hits
+    }
+
+    private suspend fun cacheSearchHits(
+        client: Client,
+        stateID: StateID,
+        hits: List<Pair<FileNode, RTreeNode>>
+    ) = withContext(ioDispatcher) {
+        val ndb = nodeDB(stateID)
+        val dao = ndb.treeNodeDao()
+        val isStale: (Pair<FileNode, RTreeNode>) -> Boolean = { (remote, node) ->
+            dao.getNode(node.encodedState)?.let { !isNodeUpToDate(it, remote) } ?: true
+        }
+        val candidates = hits.filter(isStale)
+        prepareForBulkUpsert(client, ndb, candidates.map { it.second })
+        val written = ndb.withTransaction {
+            // A browse or a sync might have stored some of them in the meantime
+            val toWrite = candidates.filter(isStale).map { it.second }
+            dao.upsertAll(toWrite)
+            toWrite.size
+        }
+        Log.d(logTag, "Cached search hits: $written new or updated")
     }
 
     private suspend fun remoteRestore(stateID: StateID): String? = withContext(ioDispatcher) {
@@ -701,4 +829,9 @@ class NodeService(
     fun getLocalFile(item: RTreeNode, type: String): File {
         return File(fileService.getLocalPath(item, type))
     }
+
+    companion object {
+        // Maximum number of hits returned by a search in the local index
+        private const val LOCAL_SEARCH_LIMIT = 100
+    }
 }
@@ -5,10 +5,11 @@ import android.util.Log
 import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.JobStatus
 import com.pydio.android.cells.R
+import com.pydio.android.cells.db.nodes.RChangeCursor
 import com.pydio.android.cells.db.nodes.ROfflineRoot
 import com.pydio.android.cells.db.nodes.RTreeNode
 import com.pydio.android.cells.db.nodes.TreeNodeDB
-import com.pydio.android.cells.db.nodes.TreeNodeDao
+import com.pydio.android.cells.transfer.DownloadPriority
 import com.pydio.android.cells.transfer.FileDownloader
 import com.pydio.android.cells.transfer.TreeDiff
 import com.pydio.android.cells.utils.currentTimestamp
@@ -19,9 +20,20 @@ import com.pydio.cells.api.SDKException
 import com.pydio.cells.api.SdkNames
 import com.pydio.cells.transport.CellsTransport
 import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.joinAll
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.time.measureTimedValue
 
 class OfflineService(
@@ -31,9 +43,18 @@ class OfflineService(
     private val accountService: AccountService,
     private val treeNodeRepo: TreeNodeRepository,
     private val jobService: JobService,
+    private val preferencesService: PreferencesService,
 ) {
     private val logTag = "OfflineService"
 
+    companion object {
+        // Only update the job progress message once every N walked folders
+        private const val PROGRESS_FOLDER_STEP = 20
+
+        // Sub-trees of unchanged folders are not walked if they have been fully checked recently
+        private const val SKIP_SUBTREE_WINDOW = 24 * 60 * 60L
+    }
+
     private val ioDispatcher = coroutineService.ioDispatcher
 
     fun getSyncTemplateId(stateID: StateID): String {
@@ -130,18 +151,40 @@ class OfflineService(
         val firstMsg = "Full sync started at $startTS by $caller"
         jobService.i(logTag, firstMsg, "Job #$jobID")
         jobService.incrementProgress(jobID, 0, firstMsg)
+        // Accounts are synced concurrently and share the parallelism budget so that
+        // an account with large offline trees does not delay the others.
+        val parallelism = getParallelism()
+        val activeNb = sessions.count {
+            it.isLoggedIn() && it.lifecycleState != AppNames.LIFECYCLE_STATE_PAUSED
+        }
+        val accountShare = (parallelism / activeNb.coerceAtLeast(1)).coerceAtLeast(1)
+        // Each running account uses accountShare workers: with more accounts than workers,
+        // the others wait for a slot so that we never have more than parallelism workers
+        val accountSlots = Semaphore((parallelism / accountShare).coerceAtLeast(1))
+
         var changeNb = 0
         val timeToSync = measureTimedValue {
-            for (session in sessions) {
-                val msg =
-                    if (session.isLoggedIn() && session.lifecycleState != AppNames.LIFECYCLE_STATE_PAUSED) {
-                        changeNb += launchAccountSync(session.getStateID(), caller, jobID)
-                        "${session.getStateID()} OK"
-                    } else {
-                        "Skip ${session.getStateID()} - session: ${session.lifecycleState}, account: ${session.authStatus} "
-                    }
-                jobService.incrementProgress(jobID, 1, msg)
-            }
+            changeNb = sessions.map { session ->
+                async {
+                    var currChangeNb = 0
+                    val msg =
+                        if (session.isLoggedIn() && session.lifecycleState != AppNames.LIFECYCLE_STATE_PAUSED) {
+                            accountSlots.withPermit {
+                                currChangeNb = launchAccountSync(
+                                    session.getStateID(),
+                                    caller,
+                                    jobID,
+                                    accountShare
+                                )
+                            }
+                            "${session.getStateID()} OK"
+                        } else {
+                            "Skip ${session.getStateID()} - session: ${session.lifecycleState}, account: ${session.authStatus} "
+                        }
+                    jobService.incrementProgress(jobID, 1, msg)
+                    currChangeNb
+                }
+            }.awaitAll().sum()
         }
         val msg = "Full sync done with $changeNb changes in ${timeToSync.duration.inWholeSeconds}s"
         val progressMsg = "Full sync terminated at ${timestampForLogMessage()}"
@@ -204,14 +247,18 @@ class OfflineService(
                 // Put total to -1 to have an undefined progress
                 jobService.updateTotal(jobID, -1, JobStatus.PROCESSING.id, prefix)
 
+                val parallelism = getParallelism()
                 var changeNb = 0
                 for (offlineRoot in roots) {
+                    if (jobService.isCancelled(jobID)) {
+                        break
+                    }
                     jobService.incrementProgress(
                         jobID,
                         0,
                         "$prefix - ${offlineRoot.getStateID().fileName}"
                     )
-                    changeNb += syncOfflineRoot(offlineRoot, jobID)
+                    changeNb += syncOfflineRoot(offlineRoot, jobID, parallelism)
                 }
 
                 val msg = "Sync done with $changeNb changes."
@@ -225,7 +272,8 @@ class OfflineService(
     private suspend fun launchAccountSync(
         stateID: StateID,
         caller: String,
-        parentJobID: Long = 0L
+        parentJobID: Long = 0L,
+        parallelism: Int = 1,
     ): Int = withContext(ioDispatcher) {
 
         val label = "Account sync for $stateID launched by $caller"
@@ -280,7 +328,11 @@ class OfflineService(
 
         val timeToSync = measureTimedValue {
             for (offlineRoot in roots) {
-                changeNb += syncOfflineRoot(offlineRoot, jobID)
+                if (jobService.isCancelled(jobID) || jobService.isCancelled(parentJobID)) {
+                    jobService.w(logTag, "Sync cancelled for $stateID", "Job #$jobID")
+                    break
+                }
+                changeNb += syncOfflineRoot(offlineRoot, jobID, parallelism)
                 jobService.incrementProgress(
                     jobID,
                     1,
@@ -301,7 +353,10 @@ class OfflineService(
     }
 
     @Throws(SDKException::class)
-    suspend fun launchOfflineRootSync(stateID: StateID): Long = withContext(ioDispatcher) {
+    suspend fun launchOfflineRootSync(
+        stateID: StateID,
+        deepVerify: Boolean = false
+    ): Long = withContext(ioDispatcher) {
         val caller = AppNames.JOB_OWNER_USER
         val dao = nodeDB(stateID).offlineRootDao()
         val offlineRoot = dao.get(stateID.id) ?: let {
@@ -330,7 +385,10 @@ class OfflineService(
         coroutineService.cellsIoScope.launch {
             val changeNb: Int
             val timeToSync = measureTimedValue {
-                changeNb = syncOfflineRoot(offlineRoot, jobID)
+                // The user is waiting for this specific root: downloads go first
+                changeNb = syncOfflineRoot(
+                    offlineRoot, jobID, getParallelism(), deepVerify, DownloadPriority.USER_VISIBLE
+                )
             }
             val msg =
                 "Synced ${stateID.fileName} with $changeNb changes in ${timeToSync.duration.inWholeSeconds}s"
@@ -340,7 +398,13 @@ class OfflineService(
         return@withContext jobID
     }
 
-    private suspend fun syncOfflineRoot(offlineRoot: ROfflineRoot, jobID: Long): Int =
+    private suspend fun syncOfflineRoot(
+        offlineRoot: ROfflineRoot,
+        jobID: Long,
+        parallelism: Int,
+        deepVerify: Boolean = false,
+        priority: DownloadPriority = DownloadPriority.SYNC,
+    ): Int =
         withContext(ioDispatcher) {
             // TODO rather create a child job ID by Offline Root
             val stateID = offlineRoot.getStateID()
@@ -362,15 +426,30 @@ class OfflineService(
                         RTreeNode.fromFileNode(stateID, nodeInfo)
                     }
 
-                val fileDL = FileDownloader(stateID, jobID)
+                val fileDL = FileDownloader(stateID, jobID, priority)
+                val cursors = ConcurrentLinkedQueue<RChangeCursor>()
                 var changeNb = 0
                 val timeToSync = measureTimedValue {
-                    changeNb += syncNodeAt(treeNode, client, treeNodeDao, fileDL)
+                    changeNb += walkOfflineTree(
+                        treeNode, client, db, fileDL, cursors, jobID, parallelism, deepVerify
+                    )
                 }
                 val msg = "walked  $stateID in ${timeToSync.duration.inWholeSeconds}s"
                 jobService.d(logTag, msg, "Job #$jobID")
-                fileDL.walkingDone()
-                fileDL.manualJoin()
+                if (jobService.isCancelled(jobID)) {
+                    fileDL.stop()
+                } else {
+                    fileDL.walkingDone()
+                    fileDL.manualJoin()
+                }
+
+                if (fileDL.isFailed()) {
+                    // Some files are missing: next sync must do a full diff of the tree to retry
+                    db.changeCursorDao().deleteUnder(offlineRoot.encodedState)
+                } else if (!jobService.isCancelled(jobID)) {
+                    // All files of the walked folders are there: next syncs can skip them
+                    db.runInTransaction { cursors.forEach { db.changeCursorDao().insert(it) } }
+                }
 
                 if (!fileDL.isFailed()) {
                     if (changeNb > 0) {
@@ -393,28 +472,111 @@ class OfflineService(
             }
         }
 
-    private suspend fun syncNodeAt(
+    /**
+     * Walks the tree under the passed node: folders to diff are put in a shared queue
+     * that is consumed by at most [parallelism] concurrent workers.
+     * The walk stops as soon as the corresponding job has been cancelled.
+     *
+     * Unless [deepVerify] is set, we do not walk the sub-tree of a folder that has not changed
+     * on the server and that has been fully checked recently.
+     */
+    private suspend fun walkOfflineTree(
         rTreeNode: RTreeNode,
         client: Client,
-        dao: TreeNodeDao,
-        fileDL: FileDownloader
-    ): Int {
-
-        val stateID = rTreeNode.getStateID()
-
-        // First re-sync current level
-        val treeDiff = TreeDiff(stateID, client, dao, fileDL)
-        var changeNb = treeDiff.compareWithRemote()
-
-        if (rTreeNode.isFolder()) {
-            // Then retrieve child folders and call re-sync on each one
-            val children = nodeDB(stateID).treeNodeDao()
-                .listWithMime(stateID.id, stateID.file, SdkNames.NODE_MIME_FOLDER)
-            for (child in children) {
-                changeNb += syncNodeAt(child, client, dao, fileDL)
+        db: TreeNodeDB,
+        fileDL: FileDownloader,
+        cursors: MutableCollection<RChangeCursor>,
+        jobID: Long,
+        parallelism: Int,
+        deepVerify: Boolean,
+    ): Int = coroutineScope {
+
+        val queue = Channel<RTreeNode>(Channel.UNLIMITED)
+        // Number of nodes that have been queued but not yet processed
+        val pendingNb = AtomicInteger(1)
+        val walkedNb = AtomicInteger(0)
+        val skippedNb = AtomicInteger(0)
+        val changeNb = AtomicInteger(0)
+        val isCancelled = AtomicBoolean(false)
+        queue.send(rTreeNode)
+
+        val workers = List(parallelism.coerceAtLeast(1)) {
+            launch {
+                for (currNode in queue) {
+                    try {
+                        if (isCancelled.get()) {
+                            continue
+                        }
+                        if (!isActive || jobService.isCancelled(jobID)) {
+                            isCancelled.set(true)
+                            jobService.w(logTag, "Walk cancelled at ${currNode.getStateID()}", "Job #$jobID")
+                            continue
+                        }
+                        val (currChangeNb, isUnchanged) =
+                            syncNodeAt(currNode, client, db, fileDL, cursors, deepVerify)
+                        changeNb.addAndGet(currChangeNb)
+                        if (isUnchanged) {
+                            skippedNb.incrementAndGet()
+                        } else if (currNode.isFolder()) {
+                            val stateID = currNode.getStateID()
+                            val children = db.treeNodeDao()
+                                .listWithMime(stateID.slug, stateID.file, SdkNames.NODE_MIME_FOLDER)
+                            pendingNb.addAndGet(children.size)
+                            for (child in children) {
+                                queue.send(child)
+                            }
+                        }
+                        val currWalked = walkedNb.incrementAndGet()
+                        if (currWalked % PROGRESS_FOLDER_STEP == 0) {
+                            jobService.incrementProgress(
+                                jobID,
+                                0,
+                                "${currNode.getStateID().fileName} ($currWalked folders)"
+                            )
+                        }
+                    } finally {
+                        if (pendingNb.decrementAndGet() == 0) {
+                            queue.close()
+                        }
+                    }
+                }
             }
         }
-        return changeNb
+        workers.joinAll()
+        val msg = "Walked ${rTreeNode.getStateID()}: ${walkedNb.get()} folders visited, " +
+                "${skippedNb.get()} unchanged sub-trees skipped (deep verify: $deepVerify)"
+        jobService.i(logTag, msg, "Job #$jobID")
+        return@coroutineScope changeNb.get()
+    }
+
+    /**
+     * Re-sync a single level of the tree.
+     * Returns the number of changes and true if the remote folder has not changed since last check.
+     * The new cursor of the folder is added to [cursors]: it is only stored once the files
+     * have been downloaded.
+     */
+    private suspend fun syncNodeAt(
+        rTreeNode: RTreeNode,
+        client: Client,
+        db: TreeNodeDB,
+        fileDL: FileDownloader,
+        cursors: MutableCollection<RChangeCursor>,
+        deepVerify: Boolean,
+    ): Pair<Int, Boolean> {
+        // Folders that have not been fully checked recently are always listed
+        val useCursor = !deepVerify && isRecentlyChecked(rTreeNode)
+        val treeDiff = TreeDiff(rTreeNode.getStateID(), client, db, fileDL, useCursor)
+        val changeNb = treeDiff.compareWithRemote()
+        treeDiff.offlineCursor?.let { cursors.add(it) }
+        return changeNb to treeDiff.isUnchanged
+    }
+
+    private fun isRecentlyChecked(rTreeNode: RTreeNode): Boolean {
+        return rTreeNode.lastCheckTS > currentTimestamp() - SKIP_SUBTREE_WINDOW
+    }
+
+    private suspend fun getParallelism(): Int {
+        return preferencesService.fetchPreferences().sync.parallelism.coerceAtLeast(1)
     }
 
     private fun getSyncTemplateIdForAccount(accountID: StateID): String {
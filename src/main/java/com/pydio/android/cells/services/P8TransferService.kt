@@ -8,8 +8,12 @@ import com.pydio.android.cells.db.nodes.RTransferCancellation
 import com.pydio.android.cells.db.nodes.RTreeNode
 import com.pydio.android.cells.db.nodes.TransferDao
 import com.pydio.android.cells.db.nodes.TreeNodeDB
-import com.pydio.android.cells.utils.computeFileMd5
+import com.pydio.android.cells.transfer.BandwidthManager
+import com.pydio.android.cells.transfer.ProgressAggregator
+import com.pydio.android.cells.transfer.TrafficClass
+import com.pydio.android.cells.transfer.UploadSource
 import com.pydio.android.cells.utils.currentTimestamp
+import com.pydio.android.cells.utils.toHexString
 import com.pydio.cells.api.ErrorCodes
 import com.pydio.cells.api.SDKException
 import com.pydio.cells.transport.StateID
@@ -18,10 +22,12 @@ import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
-import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
+import java.io.OutputStream
+import java.security.DigestOutputStream
+import java.security.MessageDigest
 import java.util.Calendar
 
 class P8TransferService(
@@ -29,6 +35,8 @@ class P8TransferService(
     private val accountService: AccountService,
     private val treeNodeRepository: TreeNodeRepository,
     private val fileService: FileService,
+    private val progressAggregator: ProgressAggregator,
+    private val bandwidthManager: BandwidthManager,
 ) {
 
     private val logTag = "P8TransferService"
@@ -44,15 +52,18 @@ class P8TransferService(
         parentJobProgress: Channel<Long>?,
         dao: TransferDao,
         rTreeNode: RTreeNode,
-        rTransfer: RTransfer
+        rTransfer: RTransfer,
+        trafficClass: TrafficClass = TrafficClass.INTERACTIVE,
     ) = withContext(ioDispatcher) {
 
         val lfType = AppNames.LOCAL_FILE_TYPE_FILE
 
-        var out: FileOutputStream? = null
+        var out: OutputStream? = null
         var exception: SDKException? = null
+        // The MD5 is computed while writing, to avoid reading the file again once downloaded
+        val digest = MessageDigest.getInstance("MD5")
         try {
-            out = FileOutputStream(targetFile)
+            out = DigestOutputStream(FileOutputStream(targetFile), digest)
 
             // Mark the download as started
             rTransfer.startTimestamp = Calendar.getInstance().timeInMillis / 1000L
@@ -60,8 +71,8 @@ class P8TransferService(
             dao.update(rTransfer)
 
             // Real transfer
-            var lastUpdateTS = 0L
             var byteWritten = 0L
+            var reported = 0L
             accountService.getClient(stateID)
                 .download(stateID.slug, stateID.file, out) { progressL ->
                     // TODO also manage parent job cancellation
@@ -75,38 +86,37 @@ class P8TransferService(
                         msg
                     } ?: ""
 
+                    bandwidthManager.throttle(progressL, trafficClass)
                     byteWritten += progressL
-                    val newTs = currentTimestamp()
-
-                    // We only update the records every seconds)
-                    if (newTs - lastUpdateTS >= 1) {
-                        rTransfer.progress += byteWritten
-                        rTransfer.updateTimestamp = newTs
-                        dao.update(rTransfer)
-                        val increment = byteWritten
+                    val persisted = progressAggregator.onProgress(
+                        stateID, dao, rTransfer.transferId, rTransfer.byteSize, byteWritten
+                    )
+                    if (persisted) {
+                        val increment = byteWritten - reported
                         ioScope.launch {
                             parentJobProgress?.send(increment)
                         }
-                        byteWritten = 0
-                        lastUpdateTS = rTransfer.updateTimestamp
+                        reported = byteWritten
                     }
                     cancellationMsg
                 }
 
             if (rTransfer.status == JobStatus.PROCESSING.id) {
                 // Mark the download as done
-                if (byteWritten > 0) {
+                val remaining = byteWritten - reported
+                if (remaining > 0) {
                     ioScope.launch {
-                        parentJobProgress?.send(byteWritten)
+                        parentJobProgress?.send(remaining)
                     }
                 }
-                rTransfer.progress += byteWritten
+                rTransfer.progress = byteWritten
                 rTransfer.updateTimestamp = currentTimestamp()
                 dao.update(rTransfer)
 
                 // Double check downloaded file is OK, skip for P8
+                out.close()
+                val computedMd5 = toHexString(digest)
                 if (rTreeNode.etag != null) {
-                    val computedMd5 = computeFileMd5(targetFile)
                     if (rTreeNode.etag != computedMd5) {
                         rTransfer.error =
                             "MD5 signatures do not match after the download has terminated"
@@ -119,7 +129,7 @@ class P8TransferService(
                     rTransfer.status = JobStatus.DONE.id
                     rTransfer.error = null
                 }
-                fileService.registerLocalFile(stateID, rTreeNode, lfType, targetFile)
+                fileService.registerLocalFile(stateID, rTreeNode, lfType, targetFile, computedMd5)
                 rTransfer.doneTimestamp = currentTimestamp()
                 rTransfer.updateTimestamp = currentTimestamp()
                 dao.update(rTransfer)
@@ -135,6 +145,7 @@ class P8TransferService(
         } finally {
             IoHelpers.closeQuietly(out)
         }
+        progressAggregator.onTerminated(stateID, rTransfer.transferId)
         exception?.let {
 
             rTransfer.doneTimestamp = currentTimestamp()
@@ -159,20 +170,23 @@ class P8TransferService(
 
     suspend fun doUpload(
         stateID: StateID,
-        srcFile: File,
+        source: UploadSource,
         dao: TransferDao,
-        transferRecord: RTransfer
+        transferRecord: RTransfer,
+        trafficClass: TrafficClass = TrafficClass.INTERACTIVE,
     ) = withContext(ioDispatcher) {
         dao.ackCancellation(transferRecord.transferId)
         var inputStream: InputStream? = null
         var cancellationMsg: String
-        var lastUpdateTS = 0L
         var byteWritten = 0L
 
         val parentID = stateID.parent()
 
         try {
-            inputStream = FileInputStream(srcFile)
+            // The legacy API reads a stream: we do not need a local copy of the file
+            inputStream = source.openStream()
+            transferRecord.progress = 0
+            transferRecord.status = JobStatus.PROCESSING.id
             dao.update(transferRecord)
 
             accountService.getClient(stateID).upload(
@@ -181,6 +195,7 @@ class P8TransferService(
                 true
             ) { progressL ->
 
+                bandwidthManager.throttle(progressL, trafficClass)
                 byteWritten += progressL
 
                 cancellationMsg = dao.hasBeenCancelled(transferRecord.transferId)?.let {
@@ -193,16 +208,10 @@ class P8TransferService(
                     msg
                 } ?: ""
 
-                // We only update the records every half second and when the upload is not cancelled)
-                val newTs = System.currentTimeMillis()
-                if (cancellationMsg.isEmpty() && newTs - lastUpdateTS >= 500) {
-                    Log.d(logTag, "- Transfer $byteWritten / ${transferRecord.byteSize}")
-                    transferRecord.progress += byteWritten
-                    transferRecord.updateTimestamp = newTs
-                    transferRecord.status = JobStatus.PROCESSING.id
-                    dao.update(transferRecord)
-                    byteWritten = 0
-                    lastUpdateTS = newTs
+                if (cancellationMsg.isEmpty()) {
+                    progressAggregator.onProgress(
+                        stateID, dao, transferRecord.transferId, transferRecord.byteSize, byteWritten
+                    )
                 }
                 cancellationMsg
             }
@@ -211,10 +220,11 @@ class P8TransferService(
             transferRecord.doneTimestamp = currentTimestamp()
             transferRecord.status = JobStatus.DONE.id
             // Also send remaining bits to the progress bar
-            transferRecord.progress += byteWritten
-            Log.e(logTag, "... ${transferRecord.progress} / ${transferRecord.byteSize}")
+            transferRecord.progress = byteWritten
+            Log.i(logTag, "... ${transferRecord.progress} / ${transferRecord.byteSize}")
         } finally {
             IoHelpers.closeQuietly(inputStream)
+            progressAggregator.onTerminated(stateID, transferRecord.transferId)
         }
     }
 
@@ -21,6 +21,7 @@ import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import java.util.UUID
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * Performs background synchronisation depending on the folder that is currently shown to the end user.
@@ -50,7 +51,11 @@ class PollService(
     private var delayJob: Job? = null
     private val backOffTicker = BackOffTicker()
 
+    // Set when the end user asks for a refresh: the next pull then lists the folder again
+    private val refreshRequested = AtomicBoolean(false)
+
     fun forceRefresh() {
+        refreshRequested.set(true)
         setActive(true)
         backOffTicker.resetIndex()
         delayJob?.cancel(CellsCancellation())
@@ -233,6 +238,9 @@ class PollService(
             return
         } else {
 
+            // Background polls trust the change cursor, explicit refreshes do not
+            val useChangeCursor = !refreshRequested.getAndSet(false)
+
             // Manual retry when we come back on an account after a while, to give some time for the token to be refreshed
             var retry = false
             var retryNb = 0
@@ -242,7 +250,7 @@ class PollService(
                     result = if (stateID.file.isNullOrEmpty()) {
                         accountService.refreshWorkspaceList(stateID.account())
                     } else {
-                        nodeService.pull(stateID)
+                        nodeService.pull(stateID, useChangeCursor)
                     }
                 } catch (se: SDKException) {
                     if (ErrorCodes.token_expired == se.code) {
@@ -9,6 +9,8 @@ import androidx.datastore.preferences.core.intPreferencesKey
 import androidx.datastore.preferences.core.longPreferencesKey
 import androidx.datastore.preferences.core.stringPreferencesKey
 import com.pydio.android.cells.ListType
+import com.pydio.android.cells.db.preferences.BandwidthPreferences
+import com.pydio.android.cells.db.preferences.CachePreferences
 import com.pydio.android.cells.db.preferences.CellsPreferences
 import com.pydio.android.cells.db.preferences.ListPreferences
 import com.pydio.android.cells.db.preferences.MeteredNetworkPreferences
@@ -55,6 +57,28 @@ object PreferencesKeys {
     val SYNC_CONST_ON_CHARGING = booleanPreferencesKey("sync_on_charging")
     val SYNC_CONST_ON_BATT_NOT_LOW = booleanPreferencesKey("sync_on_batt_not_low")
     val SYNC_CONST_ON_IDLE = booleanPreferencesKey("sync_on_idle")
+    val SYNC_PARALLELISM = stringPreferencesKey("sync_parallelism")
+    val SYNC_THUMB_DOWNLOADS = stringPreferencesKey("sync_thumb_downloads")
+    val SYNC_PREVIEW_DOWNLOADS = stringPreferencesKey("sync_preview_downloads")
+    val SYNC_FILE_DOWNLOADS = stringPreferencesKey("sync_file_downloads")
+    val SYNC_UPLOADS = stringPreferencesKey("sync_uploads")
+
+    // Bandwidth shaping
+    val BANDWIDTH_UNMETERED_RATE = stringPreferencesKey("bandwidth_unmetered_rate")
+    val BANDWIDTH_METERED_RATE = stringPreferencesKey("bandwidth_metered_rate")
+    val BANDWIDTH_ROAMING_RATE = stringPreferencesKey("bandwidth_roaming_rate")
+    val BANDWIDTH_DAILY_BUDGET = stringPreferencesKey("bandwidth_daily_metered_budget")
+    val BANDWIDTH_BACKGROUND_SHARE = stringPreferencesKey("bandwidth_background_share")
+
+    // Local cache
+    val CACHE_THUMB_QUOTA = stringPreferencesKey("cache_thumb_quota")
+    val CACHE_PREVIEW_QUOTA = stringPreferencesKey("cache_preview_quota")
+    val CACHE_FILE_QUOTA = stringPreferencesKey("cache_file_quota")
+    val CACHE_EVICTION_POLICY = stringPreferencesKey("cache_eviction_policy")
+
+    // Internal counters, not shown in the settings
+    val METERED_USAGE_DAY = longPreferencesKey("metered_usage_day")
+    val METERED_USAGE_BYTES = longPreferencesKey("metered_usage_bytes")
 }
 
 class PreferencesService(private val dataStore: DataStore<Preferences>) {
@@ -143,6 +167,10 @@ class PreferencesService(private val dataStore: DataStore<Preferences>) {
         }
     }
 
+    suspend fun getLong(key: Preferences.Key<Long>): Long? {
+        return dataStore.data.first()[key]
+    }
+
     suspend fun setListLayout(layout: ListLayout) {
         dataStore.edit { preferences ->
             preferences[PreferencesKeys.DEFAULT_LIST_LAYOUT] = layout.name
@@ -198,7 +226,41 @@ class PreferencesService(private val dataStore: DataStore<Preferences>) {
                 ?: noPref.sync.onCharging,
             onBatteryNotLow = fromPreferences[PreferencesKeys.SYNC_CONST_ON_BATT_NOT_LOW]
                 ?: noPref.sync.onBatteryNotLow,
-            onIdle = fromPreferences[PreferencesKeys.SYNC_CONST_ON_IDLE] ?: noPref.sync.onIdle
+            onIdle = fromPreferences[PreferencesKeys.SYNC_CONST_ON_IDLE] ?: noPref.sync.onIdle,
+            parallelism = fromPreferences[PreferencesKeys.SYNC_PARALLELISM]?.toIntOrNull()
+                ?: noPref.sync.parallelism,
+            thumbDownloads = fromPreferences[PreferencesKeys.SYNC_THUMB_DOWNLOADS]?.toIntOrNull()
+                ?: noPref.sync.thumbDownloads,
+            previewDownloads = fromPreferences[PreferencesKeys.SYNC_PREVIEW_DOWNLOADS]?.toIntOrNull()
+                ?: noPref.sync.previewDownloads,
+            fileDownloads = fromPreferences[PreferencesKeys.SYNC_FILE_DOWNLOADS]?.toIntOrNull()
+                ?: noPref.sync.fileDownloads,
+            uploads = fromPreferences[PreferencesKeys.SYNC_UPLOADS]?.toIntOrNull()
+                ?: noPref.sync.uploads,
+        )
+        // Bandwidth shaping
+        val bandwidthPref = BandwidthPreferences(
+            unmeteredRate = fromPreferences[PreferencesKeys.BANDWIDTH_UNMETERED_RATE]
+                ?.toIntOrNull() ?: noPref.bandwidth.unmeteredRate,
+            meteredRate = fromPreferences[PreferencesKeys.BANDWIDTH_METERED_RATE]
+                ?.toIntOrNull() ?: noPref.bandwidth.meteredRate,
+            roamingRate = fromPreferences[PreferencesKeys.BANDWIDTH_ROAMING_RATE]
+                ?.toIntOrNull() ?: noPref.bandwidth.roamingRate,
+            dailyMeteredBudget = fromPreferences[PreferencesKeys.BANDWIDTH_DAILY_BUDGET]
+                ?.toIntOrNull() ?: noPref.bandwidth.dailyMeteredBudget,
+            backgroundShare = fromPreferences[PreferencesKeys.BANDWIDTH_BACKGROUND_SHARE]
+                ?.toIntOrNull() ?: noPref.bandwidth.backgroundShare,
+        )
+        // Local cache
+        val cachePref = CachePreferences(
+            thumbQuota = fromPreferences[PreferencesKeys.CACHE_THUMB_QUOTA]
+                ?.toIntOrNull() ?: noPref.cache.thumbQuota,
+            previewQuota = fromPreferences[PreferencesKeys.CACHE_PREVIEW_QUOTA]
+                ?.toIntOrNull() ?: noPref.cache.previewQuota,
+            fileQuota = fromPreferences[PreferencesKeys.CACHE_FILE_QUOTA]
+                ?.toIntOrNull() ?: noPref.cache.fileQuota,
+            evictionPolicy = fromPreferences[PreferencesKeys.CACHE_EVICTION_POLICY]
+                ?: noPref.cache.evictionPolicy,
         )
         return CellsPreferences(
             currVersion,
@@ -206,7 +268,9 @@ class PreferencesService(private val dataStore: DataStore<Preferences>) {
             disablePoll,
             listPref,
             meteredPref,
-            syncPref
+            syncPref,
+            bandwidthPref,
+            cachePref,
         )
     }
 
@@ -3,6 +3,7 @@ package com.pydio.android.cells.services
 import android.content.Context
 import android.util.Log
 import com.amazonaws.ClientConfiguration
+import com.amazonaws.HttpMethod
 import com.amazonaws.auth.AWSCredentialsProviderChain
 import com.amazonaws.auth.SignerFactory
 import com.amazonaws.mobileconnectors.s3.transferutility.TransferNetworkLossHandler
@@ -12,90 +13,456 @@ import com.amazonaws.regions.Region
 import com.amazonaws.regions.Regions
 import com.amazonaws.services.s3.AmazonS3Client
 import com.amazonaws.services.s3.S3ClientOptions
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest
+import com.amazonaws.services.s3.model.GeneratePresignedUrlRequest
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.PutObjectRequest
+import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.JobStatus
 import com.pydio.android.cells.db.nodes.RTransfer
+import com.pydio.android.cells.db.nodes.RTreeNode
 import com.pydio.android.cells.db.nodes.TransferDao
 import com.pydio.android.cells.db.nodes.TreeNodeDB
+import com.pydio.android.cells.transfer.BandwidthManager
 import com.pydio.android.cells.transfer.CellsAuthProvider
 import com.pydio.android.cells.transfer.CellsS3Client
 import com.pydio.android.cells.transfer.CellsSigner
 import com.pydio.android.cells.transfer.CellsTransferListener
 import com.pydio.android.cells.transfer.DEFAULT_BUCKET_NAME
+import com.pydio.android.cells.transfer.DownloadCheckpoint
+import com.pydio.android.cells.transfer.MultipartUpload
+import com.pydio.android.cells.transfer.PartialDownload
+import com.pydio.android.cells.transfer.ProgressAggregator
+import com.pydio.android.cells.transfer.ProgressInputStream
+import com.pydio.android.cells.transfer.ResumableDownload
+import com.pydio.android.cells.transfer.SegmentedDownload
+import com.pydio.android.cells.transfer.ThroughputMeter
+import com.pydio.android.cells.transfer.TrafficClass
+import com.pydio.android.cells.transfer.TransferMonitor
+import com.pydio.android.cells.transfer.TransferStoppedException
+import com.pydio.android.cells.transfer.UploadCheckpoint
+import com.pydio.android.cells.transfer.UploadPlan
+import com.pydio.android.cells.transfer.UploadSource
 import com.pydio.android.cells.transfer.internal.UrlHttpClient
 import com.pydio.android.cells.utils.currentTimestamp
 import com.pydio.android.cells.utils.currentTimestampAsString
+import com.pydio.cells.api.ErrorCodes
 import com.pydio.cells.api.SDKException
 import com.pydio.cells.transport.CellsTransport
 import com.pydio.cells.transport.ServerURLImpl
 import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URL
+import java.util.Date
+import java.util.concurrent.ConcurrentHashMap
+import javax.net.ssl.HttpsURLConnection
+import javax.net.ssl.SSLContext
 
 class S3TransferService(
     private val androidApplicationContext: Context,
     coroutineService: CoroutineService,
     private val accountService: AccountService,
     private val treeNodeRepository: TreeNodeRepository,
+    private val fileService: FileService,
+    private val transferMonitor: TransferMonitor,
+    private val progressAggregator: ProgressAggregator,
+    private val bandwidthManager: BandwidthManager,
 ) {
 
     private val logTag = "S3TransferService"
 
-    // private val ioScope = coroutineService.cellsIoScope
+    private val ioScope = coroutineService.cellsIoScope
     private val ioDispatcher = coroutineService.ioDispatcher
 
+    private val s3Clients: MutableMap<String, AmazonS3Client> = ConcurrentHashMap()
     private val transferUtilities: MutableMap<String, TransferUtility> = mutableMapOf()
     private val transferListener: MutableMap<Int, CellsTransferListener> = mutableMapOf()
 
+    // Our downloads and uploads run in coroutines: pause and cancel requests
+    // are only flagged here, the transfer loop then stops. Values are JobStatus IDs.
+    // Keys are the account ID and the transfer ID: transfer IDs are only unique per account
+    private val stopRequests: MutableMap<Pair<String, Long>, String> = ConcurrentHashMap()
+    private val runningTransfers: MutableSet<Pair<String, Long>> = ConcurrentHashMap.newKeySet()
+
+    /**
+     * Downloads the file via a pre-signed URL in a partial file under the transfer folder.
+     * The progress is checkpointed so that, after an error, a pause or a restart of the app,
+     * the download is resumed with a Range request rather than started over.
+     * Files above [SegmentedDownload.SIZE_THRESHOLD] are downloaded with [segmentNb] connections.
+     * Background downloads are paused once the daily budget on metered networks has been spent.
+     */
     @Throws(SDKException::class)
     suspend fun doDownload(
         stateID: StateID,
         targetFile: File,
         dao: TransferDao,
         transferRecord: RTransfer,
-        parentJobProgress: Channel<Long>?
+        rTreeNode: RTreeNode,
+        parentJobProgress: Channel<Long>?,
+        segmentNb: Int = 1,
+        trafficClass: TrafficClass = TrafficClass.INTERACTIVE,
     ) = withContext(ioDispatcher) {
-        Log.d(logTag, "S3 download to ${targetFile.absolutePath}")
-        val key = CellsS3Client.getCleanPath(stateID)
+        val tid = transferRecord.transferId
+        val transferPath = fileService.getLocalPathFromState(stateID, AppNames.LOCAL_FILE_TYPE_TRANSFER)
+        val partFile = File(transferPath + ResumableDownload.PART_SUFFIX)
+        val checkpoint = DownloadCheckpoint(File(transferPath + ResumableDownload.CHECKPOINT_SUFFIX))
+
+        val download: PartialDownload =
+            if (segmentNb > 1 && rTreeNode.size >= SegmentedDownload.SIZE_THRESHOLD) {
+                Log.d(logTag, "Segmented download ($segmentNb) to ${targetFile.absolutePath}")
+                SegmentedDownload(
+                    partFile, checkpoint, rTreeNode.etag, rTreeNode.size, segmentNb, ioDispatcher
+                )
+            } else {
+                Log.d(logTag, "Ranged download to ${targetFile.absolutePath}")
+                ResumableDownload(partFile, checkpoint, rTreeNode.etag)
+            }
+        stopRequests.remove(transferKey(stateID, tid))
+        runningTransfers.add(transferKey(stateID, tid))
+        try {
+            val alreadyDownloaded = download.prepare()
+            // We do not rely on the transfer utility for downloads anymore
+            transferRecord.externalID = -1
+            transferRecord.status = JobStatus.PROCESSING.id
+            transferRecord.progress = alreadyDownloaded
+            transferRecord.error = null
+            transferRecord.startTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+            if (alreadyDownloaded > 0) {
+                notifyParentJob(parentJobProgress, tid, alreadyDownloaded)
+            }
 
-        val observer = getTransferUtility(stateID).download(key, targetFile)
-        transferRecord.externalID = observer.id
-        transferRecord.status = JobStatus.PROCESSING.id
-        transferRecord.startTimestamp = currentTimestamp()
-        transferRecord.updateTimestamp = currentTimestamp()
-        dao.update(transferRecord)
-
-        observer.setTransferListener(
-            getTransferListener(
-                observer.id,
-                dao,
-                parentJobProgress,
+            // Segments report their progress from different threads
+            val progressLock = Any()
+            val meter = ThroughputMeter()
+            var byteWritten = 0L
+            download.run(
+                { openConnection(stateID, presignedDownloadUrl(stateID)) },
+                { read ->
+                    // Outside of the lock: segments wait for their own share of the bandwidth
+                    bandwidthManager.throttle(read, trafficClass)
+                    synchronized(progressLock) {
+                        byteWritten += read
+                        meter.add(read)
+                        transferRecord.progress += read
+                        val persisted = progressAggregator.onProgress(
+                            stateID, dao, tid, rTreeNode.size,
+                            transferRecord.progress, meter.bytesPerSecond()
+                        )
+                        // The parent job is updated at the same pace as the record
+                        if (persisted) {
+                            val increment = byteWritten
+                            ioScope.launch { notifyParentJob(parentJobProgress, tid, increment) }
+                            byteWritten = 0
+                        }
+                    }
+                },
+                { stopRequest(stateID, tid, trafficClass, isActive) }
             )
-        )
+            if (byteWritten > 0) {
+                notifyParentJob(parentJobProgress, tid, byteWritten)
+            }
+            download.complete(targetFile)
+            fileService.registerLocalFile(
+                stateID, rTreeNode, AppNames.LOCAL_FILE_TYPE_FILE, targetFile, download.md5
+            )
+            transferRecord.progress = targetFile.length()
+            transferRecord.throughput = meter.bytesPerSecond()
+            transferRecord.status = JobStatus.DONE.id
+            transferRecord.doneTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+        } catch (e: TransferStoppedException) {
+            transferRecord.status = e.status
+            transferRecord.updateTimestamp = currentTimestamp()
+            if (e.status == JobStatus.CANCELLED.id) {
+                download.reset()
+                transferRecord.doneTimestamp = currentTimestamp()
+            } else {
+                transferRecord.startTimestamp = -1
+            }
+            dao.update(transferRecord)
+            throw SDKException(ErrorCodes.cancelled, "Download #$tid has been stopped: ${e.status}")
+        } catch (e: IOException) {
+            // We keep the partial file and its checkpoint: next try will resume from there
+            Log.e(logTag, "Download #$tid has failed: ${e.message}")
+            transferRecord.status = JobStatus.ERROR.id
+            transferRecord.error = e.message
+            transferRecord.doneTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+            throw SDKException(ErrorCodes.internal_error, "Could not download $stateID", e)
+        } catch (e: CancellationException) {
+            // The caller went away: the download is resumed from its checkpoint on next try
+            transferRecord.status = JobStatus.PAUSED.id
+            transferRecord.startTimestamp = -1
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+            throw e
+        } catch (e: Exception) {
+            // E.g. an SDK or a client exception while signing the URL: never leave the record in PROCESSING
+            Log.e(logTag, "Download #$tid has failed: ${e.message}")
+            transferRecord.status = JobStatus.ERROR.id
+            transferRecord.error = e.message ?: e.javaClass.simpleName
+            transferRecord.doneTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+            throw e
+        } finally {
+            runningTransfers.remove(transferKey(stateID, tid))
+            stopRequests.remove(transferKey(stateID, tid))
+            progressAggregator.onTerminated(stateID, tid)
+            transferMonitor.onDone(stateID, tid)
+        }
+    }
+
+    /** The parent job might already be done, typically when its walk has been aborted */
+    private suspend fun notifyParentJob(parentJobProgress: Channel<Long>?, tid: Long, bytes: Long) {
+        try {
+            parentJobProgress?.send(bytes)
+        } catch (ce: ClosedSendChannelException) {
+            Log.w(logTag, "Cannot update parent job progress for #$tid: ${ce.message ?: "-"}")
+        }
+    }
+
+    /**
+     * Returns the status to stop the running transfer with, if any. Transfers that are not
+     * stopped by the user get [heldStatus]: uploads go back to the queue, that holds
+     * the background ones until the budget is available again.
+     */
+    private fun stopRequest(
+        stateID: StateID,
+        tid: Long,
+        trafficClass: TrafficClass,
+        isActive: Boolean,
+        heldStatus: String = JobStatus.PAUSED.id,
+    ): String? {
+        stopRequests[transferKey(stateID, tid)]?.let { return it }
+        // Pausing keeps the checkpoint: the transfer is resumed rather than started over later on
+        return if (!isActive || bandwidthManager.isOverBudget(trafficClass)) heldStatus else null
     }
 
+    private fun transferKey(stateID: StateID, tid: Long) = stateID.account().id to tid
+
+    /**
+     * Transfers that have been started with [doDownload] and [doUpload] are not handled
+     * by the transfer utility: only the transfers created by previous versions of the app are.
+     */
+    fun isHandledInProcess(rTransfer: RTransfer): Boolean {
+        if (rTransfer.externalID >= 0) {
+            return false
+        }
+        return rTransfer.type == AppNames.TRANSFER_TYPE_DOWNLOAD
+                || rTransfer.type == AppNames.TRANSFER_TYPE_UPLOAD
+    }
+
+    /**
+     * Uploads the file directly from its source. The part size and the number of parallel
+     * connections are chosen from the file size, the speed of the last uploads to this server
+     * and the network we are on, see [UploadPlan.compute]. Files that fit in a single part
+     * are sent with a single PUT, others with a multipart upload that is resumed part by part.
+     */
+    @Throws(SDKException::class)
     suspend fun doUpload(
         stateID: StateID,
-        file: File,
+        source: UploadSource,
         dao: TransferDao,
-        transferRecord: RTransfer
+        transferRecord: RTransfer,
+        isLimited: Boolean,
+        maxParallelism: Int,
+        trafficClass: TrafficClass = TrafficClass.INTERACTIVE,
     ) = withContext(ioDispatcher) {
+        val checkpoint = uploadCheckpoint(stateID)
+        val throughputs = dao.getRecentThroughputs(AppNames.TRANSFER_TYPE_UPLOAD)
+        val plan = UploadPlan.compute(
+            source.length,
+            if (throughputs.isEmpty()) 0L else throughputs.sum() / throughputs.size,
+            isLimited,
+            maxParallelism
+        )
+        if (source.length <= plan.partSize && !checkpoint.load()) {
+            doStreamUpload(stateID, source, dao, transferRecord, trafficClass)
+        } else {
+            doMultipartUpload(stateID, source, dao, transferRecord, checkpoint, plan, trafficClass)
+        }
+    }
 
-        Log.d(logTag, "TU upload for ${file.absolutePath} (size: ${file.length()}")
-        // TODO double check if a transfer for the same state ID already exists.
-        val key = CellsS3Client.getCleanPath(stateID)
-        Log.i(
-            logTag, "... About to put\n" +
-                    "- key: [$key] \n" +
-                    "- file: ${file.absolutePath}"
+    private suspend fun doMultipartUpload(
+        stateID: StateID,
+        source: UploadSource,
+        dao: TransferDao,
+        transferRecord: RTransfer,
+        checkpoint: UploadCheckpoint,
+        plan: UploadPlan,
+        trafficClass: TrafficClass,
+    ) = withContext(ioDispatcher) {
+        val tid = transferRecord.transferId
+        val upload = MultipartUpload(
+            getS3Client(stateID.account()),
+            DEFAULT_BUCKET_NAME,
+            CellsS3Client.getCleanPath(stateID),
+            source,
+            transferRecord.mime,
+            checkpoint,
+            plan,
+            ioDispatcher
         )
+        stopRequests.remove(transferKey(stateID, tid))
+        runningTransfers.add(transferKey(stateID, tid))
+        try {
+            val alreadyUploaded = upload.prepare()
+            transferRecord.externalID = -1
+            transferRecord.status = JobStatus.PROCESSING.id
+            transferRecord.progress = alreadyUploaded
+            transferRecord.throughput = 0
+            transferRecord.startTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+
+            // Parts report their progress from different threads
+            val progressLock = Any()
+            val meter = ThroughputMeter()
+            upload.run(
+                { sent ->
+                    bandwidthManager.throttle(sent, trafficClass)
+                    synchronized(progressLock) {
+                        transferRecord.progress += sent
+                        meter.add(sent)
+                        progressAggregator.onProgress(
+                            stateID, dao, tid, source.length,
+                            transferRecord.progress, meter.bytesPerSecond()
+                        )
+                    }
+                },
+                { stopRequest(stateID, tid, trafficClass, isActive, JobStatus.NEW.id) }
+            )
+            upload.complete()
+            transferRecord.progress = source.length
+            transferRecord.throughput = meter.bytesPerSecond()
+            transferRecord.status = JobStatus.DONE.id
+            transferRecord.error = null
+            transferRecord.doneTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+        } catch (e: TransferStoppedException) {
+            transferRecord.status = e.status
+            transferRecord.updateTimestamp = currentTimestamp()
+            if (e.status == JobStatus.CANCELLED.id) {
+                upload.abort()
+                transferRecord.doneTimestamp = currentTimestamp()
+            } else {
+                // Only the parts that have been accepted by the server are kept
+                transferRecord.progress = upload.uploadedBytes()
+                transferRecord.startTimestamp = -1
+            }
+            dao.update(transferRecord)
+            throw SDKException(ErrorCodes.cancelled, "Upload #$tid has been stopped: ${e.status}")
+        } catch (e: Exception) {
+            // We keep the checkpoint: next try will only send the missing parts
+            Log.e(logTag, "Multipart upload #$tid has failed: ${e.message}")
+            transferRecord.status = JobStatus.ERROR.id
+            transferRecord.error = e.message
+            transferRecord.doneTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+            throw e as? SDKException ?: SDKException(ErrorCodes.internal_error, "Could not upload to $stateID", e)
+        } finally {
+            runningTransfers.remove(transferKey(stateID, tid))
+            stopRequests.remove(transferKey(stateID, tid))
+            progressAggregator.onTerminated(stateID, tid)
+            transferMonitor.onDone(stateID, tid)
+        }
+    }
 
-        val observer = getTransferUtility(stateID).upload(key, file)
-        transferRecord.externalID = observer.id
-        transferRecord.status = JobStatus.PROCESSING.id
-        transferRecord.startTimestamp = currentTimestamp()
-        dao.update(transferRecord)
-        observer.setTransferListener(getTransferListener(observer.id, dao))
+    /** Uploads the file with a single PUT request, reading it directly from its source */
+    @Throws(SDKException::class)
+    private suspend fun doStreamUpload(
+        stateID: StateID,
+        source: UploadSource,
+        dao: TransferDao,
+        transferRecord: RTransfer,
+        trafficClass: TrafficClass,
+    ) = withContext(ioDispatcher) {
+        val tid = transferRecord.transferId
+        val key = CellsS3Client.getCleanPath(stateID)
+        Log.d(logTag, "Streamed upload of ${source.length} bytes to [$key]")
+
+        stopRequests.remove(transferKey(stateID, tid))
+        runningTransfers.add(transferKey(stateID, tid))
+        try {
+            transferRecord.externalID = -1
+            transferRecord.status = JobStatus.PROCESSING.id
+            transferRecord.progress = 0
+            transferRecord.startTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+
+            val metadata = ObjectMetadata()
+            metadata.contentLength = source.length
+            metadata.contentType = transferRecord.mime
+            val meter = ThroughputMeter()
+            source.openStream().use { input ->
+                val progressStream = ProgressInputStream(
+                    input,
+                    { read ->
+                        bandwidthManager.throttle(read, trafficClass)
+                        transferRecord.progress += read
+                        meter.add(read)
+                        progressAggregator.onProgress(
+                            stateID, dao, tid, source.length,
+                            transferRecord.progress, meter.bytesPerSecond()
+                        )
+                    },
+                    { stopRequest(stateID, tid, trafficClass, isActive, JobStatus.NEW.id) }
+                )
+                getS3Client(stateID.account()).putObject(
+                    PutObjectRequest(DEFAULT_BUCKET_NAME, key, progressStream, metadata)
+                )
+            }
+            transferRecord.throughput = meter.bytesPerSecond()
+            transferRecord.status = JobStatus.DONE.id
+            transferRecord.error = null
+            transferRecord.doneTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+        } catch (e: Exception) {
+            // The S3 client wraps the errors that are thrown while reading the input stream
+            val stopped = e as? TransferStoppedException ?: e.cause as? TransferStoppedException
+            if (stopped != null) {
+                transferRecord.status = stopped.status
+                // A single PUT cannot be resumed: the upload restarts from scratch
+                transferRecord.progress = 0
+                transferRecord.updateTimestamp = currentTimestamp()
+                if (stopped.status == JobStatus.CANCELLED.id) {
+                    transferRecord.doneTimestamp = currentTimestamp()
+                } else {
+                    transferRecord.startTimestamp = -1
+                }
+                dao.update(transferRecord)
+                throw SDKException(ErrorCodes.cancelled, "Upload #$tid has been stopped: ${stopped.status}")
+            }
+            Log.e(logTag, "Upload #$tid has failed: ${e.message}")
+            transferRecord.status = JobStatus.ERROR.id
+            transferRecord.error = e.message
+            transferRecord.doneTimestamp = currentTimestamp()
+            transferRecord.updateTimestamp = currentTimestamp()
+            dao.update(transferRecord)
+            throw e as? SDKException ?: SDKException(ErrorCodes.internal_error, "Could not upload to $stateID", e)
+        } finally {
+            runningTransfers.remove(transferKey(stateID, tid))
+            stopRequests.remove(transferKey(stateID, tid))
+            progressAggregator.onTerminated(stateID, tid)
+            transferMonitor.onDone(stateID, tid)
+        }
     }
 
     suspend fun cancelTransfer(stateID: StateID, transferID: Long, owner: String) =
@@ -105,6 +472,21 @@ class S3TransferService(
                 throw IllegalStateException("Cannot cancel an unknown transfer")
             }
 
+            if (isHandledInProcess(rTransfer)) {
+                if (runningTransfers.contains(transferKey(stateID, transferID))) {
+                    // The transfer loop stops at the next chunk and updates the record
+                    stopRequests[transferKey(stateID, transferID)] = JobStatus.CANCELLED.id
+                    return@withContext
+                }
+            }
+            if (isHandledInProcess(rTransfer) && rTransfer.type == AppNames.TRANSFER_TYPE_DOWNLOAD) {
+                // Paused or failed download: also drop the partial file
+                deletePartialDownload(StateID.fromId(rTransfer.encodedState))
+            } else if (isHandledInProcess(rTransfer)) {
+                // Paused or failed multipart upload: also free the parts on the server
+                abortMultipartUpload(StateID.fromId(rTransfer.encodedState))
+            }
+
             val tu = getTransferUtility(stateID)
             Log.e(logTag, "### About to cancel #${rTransfer.externalID} for $stateID")
             // In some case, we might end up with a corrupted transfer record that has no correct id
@@ -125,6 +507,8 @@ class S3TransferService(
             rTransfer.doneTimestamp = currentTimestamp()
             rTransfer.error = "Cancelled by $owner"
             dao.update(rTransfer)
+            // The listener has been removed: directly notify the waiting coroutines if any
+            transferMonitor.onDone(stateID, transferID)
         }
 
     suspend fun pauseTransfer(stateID: StateID, transferID: Long, owner: String) =
@@ -133,9 +517,17 @@ class S3TransferService(
             val rTransfer = dao.getById(transferID) ?: run {
                 throw IllegalStateException("Cannot pause an unknown transfer")
             }
-            val tu = getTransferUtility(stateID)
-            if (!tu.pause(rTransfer.externalID)) {
-                throw SDKException("Could not pause transfer for $stateID")
+            if (isHandledInProcess(rTransfer)) {
+                if (runningTransfers.contains(transferKey(stateID, transferID))) {
+                    // The transfer loop stops (downloads also checkpoint) and updates the record
+                    stopRequests[transferKey(stateID, transferID)] = JobStatus.PAUSED.id
+                    return@withContext
+                }
+            } else {
+                val tu = getTransferUtility(stateID)
+                if (!tu.pause(rTransfer.externalID)) {
+                    throw SDKException("Could not pause transfer for $stateID")
+                }
             }
             // tu.getTransferById(rTransfer.externalID)?.cleanTransferListener()
             rTransfer.status = JobStatus.PAUSED.id
@@ -158,10 +550,11 @@ class S3TransferService(
             rTransfer.error = null
             rTransfer.startTimestamp = currentTimestamp()
             dao.update(rTransfer)
-            observer.setTransferListener(getTransferListener(observer.id, dao))
+            observer.setTransferListener(getTransferListener(stateID.account(), observer.id, dao))
         }
 
     private fun getTransferListener(
+        accountID: StateID,
         externalID: Int,
         transferDao: TransferDao,
         parentJobProgress: Channel<Long>? = null
@@ -170,6 +563,7 @@ class S3TransferService(
             return it
         }
         val listener = CellsTransferListener(
+            accountID,
             externalID,
             transferDao,
             { afterCompleted(externalID) },
@@ -202,7 +596,104 @@ class S3TransferService(
                 }
             }
             dao.deleteTransfer(transferID)
+            discardPartialFiles(dao, rTransfer)
+        }
+
+    /**
+     * Once the record of a transfer that has not completed goes away, nothing will resume it:
+     * we delete the partial file of a download, that might have been preallocated to the full size,
+     * or abort a multipart upload so that the server frees its parts,
+     * unless another transfer of the same file is still pending.
+     */
+    fun discardPartialFiles(dao: TransferDao, rTransfer: RTransfer) {
+        if (!isHandledInProcess(rTransfer)) {
+            return
+        }
+        val stateID = StateID.fromId(rTransfer.encodedState)
+        if (runningTransfers.contains(transferKey(stateID, rTransfer.transferId)) ||
+            dao.countUnterminated(rTransfer.encodedState, rTransfer.type) > 0
+        ) {
+            return
+        }
+        try {
+            if (rTransfer.type == AppNames.TRANSFER_TYPE_DOWNLOAD) {
+                deletePartialDownload(stateID)
+            } else {
+                // Also deletes the checkpoint
+                abortMultipartUpload(stateID)
+            }
+        } catch (e: IllegalStateException) {
+            // The account has been removed in the meantime
+            Log.w(logTag, "Could not delete partial files for #${rTransfer.transferId}: ${e.message}")
         }
+    }
+
+    private fun deletePartialDownload(stateID: StateID) {
+        val transferPath = fileService.getLocalPathFromState(stateID, AppNames.LOCAL_FILE_TYPE_TRANSFER)
+        File(transferPath + ResumableDownload.PART_SUFFIX).delete()
+        File(transferPath + ResumableDownload.CHECKPOINT_SUFFIX).delete()
+    }
+
+    private fun uploadCheckpoint(stateID: StateID): UploadCheckpoint {
+        val transferPath = fileService.getLocalPathFromState(stateID, AppNames.LOCAL_FILE_TYPE_TRANSFER)
+        return UploadCheckpoint(File(transferPath + MultipartUpload.CHECKPOINT_SUFFIX))
+    }
+
+    private fun abortMultipartUpload(stateID: StateID) {
+        val checkpoint = uploadCheckpoint(stateID)
+        val uploadID = if (checkpoint.load()) checkpoint.uploadID else null
+        uploadID?.let {
+            try {
+                getS3Client(stateID.account()).abortMultipartUpload(
+                    AbortMultipartUploadRequest(
+                        DEFAULT_BUCKET_NAME, CellsS3Client.getCleanPath(stateID), it
+                    )
+                )
+            } catch (e: Exception) {
+                Log.w(logTag, "Could not abort upload $it for $stateID: ${e.message}")
+            }
+        }
+        checkpoint.delete()
+    }
+
+    private fun presignedDownloadUrl(stateID: StateID): URL {
+        val request = GeneratePresignedUrlRequest(
+            DEFAULT_BUCKET_NAME,
+            CellsS3Client.getCleanPath(stateID),
+            HttpMethod.GET
+        )
+        request.expiration = Date(System.currentTimeMillis() + PRESIGNED_URL_VALIDITY)
+        return getS3Client(stateID.account()).generatePresignedUrl(request)
+    }
+
+    private fun openConnection(stateID: StateID, url: URL): HttpURLConnection {
+        val transport = getCellsTransport(stateID.account())
+        val connection = url.openConnection() as HttpURLConnection
+        connection.connectTimeout = CONNECT_TIMEOUT
+        connection.readTimeout = READ_TIMEOUT
+        connection.setRequestProperty("User-Agent", transport.userAgent)
+        if (connection is HttpsURLConnection && transport.server.isSSLUnverified) {
+            val sslContext = SSLContext.getInstance("TLS")
+            sslContext.init(null, ServerURLImpl.SKIP_VERIFY_TRUST_MANAGER, null)
+            connection.sslSocketFactory = sslContext.socketFactory
+            connection.setHostnameVerifier { _, _ -> true }
+        }
+        return connection
+    }
+
+    private fun getCellsTransport(accountID: StateID): CellsTransport {
+        val ct = accountService.getTransport(accountID, true)
+        if (ct !is CellsTransport)
+            throw SDKException("Could not get Cells transport for $accountID")
+        return ct
+    }
+
+    private fun getS3Client(accountID: StateID): AmazonS3Client {
+        s3Clients[accountID.id]?.let { return it }
+        val s3Client = getS3Client(getCellsTransport(accountID), accountID)
+        s3Clients[accountID.id] = s3Client
+        return s3Client
+    }
 
     private fun getS3Client(transport: CellsTransport, accountID: StateID): AmazonS3Client {
 
@@ -257,17 +748,16 @@ class S3TransferService(
         }
 
         TransferNetworkLossHandler.getInstance(androidApplicationContext)
+        // Only used for the transfers that have been started by previous versions of the app,
+        // new uploads are sized dynamically, see doUpload()
         val config = TransferUtilityOptions()
         config.transferThreadPoolSize = 3
         config.minimumUploadPartSizeInMB = 10
 
-        val ct = accountService.getTransport(accountID, true)
-        if (ct !is CellsTransport)
-            throw SDKException("Could not get Cells transport for $accountID")
         val newTU = TransferUtility.builder()
             .context(androidApplicationContext)
             .defaultBucket(DEFAULT_BUCKET_NAME)
-            .s3Client(getS3Client(ct, accountID))
+            .s3Client(getS3Client(accountID))
             .transferUtilityOptions(config)
             .build()
         transferUtilities[accountID.id] = newTU
@@ -277,5 +767,11 @@ class S3TransferService(
     private fun nodeDB(stateID: StateID): TreeNodeDB {
         return treeNodeRepository.nodeDB(stateID)
     }
+
+    companion object {
+        private const val PRESIGNED_URL_VALIDITY = 30L * 60 * 1000
+        private const val CONNECT_TIMEOUT = 30_000
+        private const val READ_TIMEOUT = 60_000
+    }
 }
 
@@ -3,7 +3,9 @@ package com.pydio.android.cells.services
 import android.annotation.SuppressLint
 import android.content.ContentResolver
 import android.content.Context
+import android.content.Intent
 import android.net.Uri
+import android.os.Build
 import android.provider.OpenableColumns
 import android.util.Log
 import androidx.exifinterface.media.ExifInterface
@@ -17,6 +19,18 @@ import com.pydio.android.cells.db.nodes.RTransfer
 import com.pydio.android.cells.db.nodes.RTreeNode
 import com.pydio.android.cells.db.nodes.TransferDao
 import com.pydio.android.cells.db.nodes.TreeNodeDB
+import com.pydio.android.cells.services.workers.UploadResumeWorker
+import com.pydio.android.cells.transfer.BandwidthManager
+import com.pydio.android.cells.transfer.ProgressAggregator
+import com.pydio.android.cells.transfer.ProgressInputStream
+import com.pydio.android.cells.transfer.SegmentedDownload
+import com.pydio.android.cells.transfer.SingleFlight
+import com.pydio.android.cells.transfer.TrafficClass
+import com.pydio.android.cells.transfer.TransferMonitor
+import com.pydio.android.cells.transfer.UploadPlan
+import com.pydio.android.cells.transfer.UploadPriority
+import com.pydio.android.cells.transfer.UploadQueue
+import com.pydio.android.cells.transfer.UploadSource
 import com.pydio.android.cells.utils.childFile
 import com.pydio.android.cells.utils.currentTimestamp
 import com.pydio.android.cells.utils.parseOrder
@@ -25,12 +39,14 @@ import com.pydio.cells.api.SDKException
 import com.pydio.cells.api.SdkNames
 import com.pydio.cells.api.ui.FileNode
 import com.pydio.cells.transport.StateID
-import com.pydio.cells.utils.FileNodeUtils
 import com.pydio.cells.utils.IoHelpers
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.currentCoroutineContext
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
@@ -40,6 +56,7 @@ import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 class TransferService(
     androidApplicationContext: Context,
@@ -50,6 +67,10 @@ class TransferService(
     private val treeNodeRepository: TreeNodeRepository,
     private val nodeService: NodeService,
     private val fileService: FileService,
+    private val transferMonitor: TransferMonitor,
+    private val progressAggregator: ProgressAggregator,
+    private val bandwidthManager: BandwidthManager,
+    private val cacheMonitor: CacheMonitor,
 ) {
 
     private val logTag = "TransferService"
@@ -57,16 +78,62 @@ class TransferService(
     private val serviceScope = coroutineService.cellsIoScope
     private val ioDispatcher = coroutineService.ioDispatcher
 
+    private val appContext = androidApplicationContext
+
+    // Uploads whose source is being prepared, they are not queued yet.
+    // Keys are the account ID and the transfer ID: transfer IDs are only unique per account
+    private val preparing: MutableSet<Pair<String, Long>> = ConcurrentHashMap.newKeySet()
+
+    private val uploadQueue = UploadQueue(
+        coroutineService,
+        prefs,
+        { accountID, limit ->
+            // Background uploads wait in the queue until the budget is available again
+            if (bandwidthManager.isOverBudget(TrafficClass.BACKGROUND)) {
+                getTransferDao(accountID).getQueuedInteractiveUploads(limit)
+            } else {
+                getTransferDao(accountID).getQueuedUploads(limit)
+            }
+        },
+        { accountID, rTransfer -> runQueuedUpload(accountID, rTransfer) },
+    )
+
     // TODO: rather use dependency injection
     private val s3TransferService =
         S3TransferService(
             androidApplicationContext,
             coroutineService,
             accountService,
-            treeNodeRepository
+            treeNodeRepository,
+            fileService,
+            transferMonitor,
+            progressAggregator,
+            bandwidthManager,
         )
-    private val p8TransferService =
-        P8TransferService(coroutineService, accountService, treeNodeRepository, fileService)
+    private val p8TransferService = P8TransferService(
+        coroutineService,
+        accountService,
+        treeNodeRepository,
+        fileService,
+        progressAggregator,
+        bandwidthManager,
+    )
+
+    // Views, the carousel and the offline sync might ask for the same image at the same time
+    private val thumbFlights = SingleFlight<ThumbKey, String>(serviceScope, maxThumbRequests)
+
+    /** Thumbnails and previews are identified by the state, the type and the etag of the node */
+    private data class ThumbKey(val encodedState: String, val type: String, val etag: String?)
+
+    init {
+        serviceScope.launch {
+            bandwidthManager.budgetReleased.collect {
+                for (session in accountService.listSessionViews(true)) {
+                    uploadQueue.wakeUp(session.getStateID())
+                }
+            }
+        }
+    }
 
     companion object {
         // Hard-coded constants to ease implementation in a first pass. TODO: improve
@@ -76,10 +143,20 @@ class TransferService(
         // The 2 below value are rough average for thumb and preview downloads
         const val thumbSize: Long = 20 * 1024
         const val previewSize: Long = 200 * 1024
+
+        // Max number of thumbnails and previews that are requested to the server at the same time
+        private const val maxThumbRequests = 6
+
+        // Persisted URI grants per app, the oldest ones are silently dropped past this number
+        private val maxPersistedGrants = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) 512 else 128
     }
 
+    // Running transfers only persist their progress every second or so: we rather show the live value
     fun liveTransfer(accountID: StateID, transferID: Long): Flow<RTransfer?> {
         return nodeDB(accountID).transferDao().getLiveById(transferID)
+            .combine(progressAggregator.liveProgress) { rTransfer, _ ->
+                rTransfer?.let { progressAggregator.withLiveProgress(accountID, it) }
+            }
     }
 
     fun queryTransfersExplicitFilter(
@@ -98,6 +175,9 @@ class TransferService(
         }
         // Log.e(logTag, "About to query: ${lsQuery.sql}, with ${lsQuery.argCount} arg")
         return nodeDB(stateID).transferDao().transferQuery(lsQuery)
+            .combine(progressAggregator.liveProgress) { transfers, _ ->
+                transfers.map { progressAggregator.withLiveProgress(stateID, it) }
+            }
     }
 
     /** Dynamic list of all transfers for a given JobID, mainly used in Shared activity */
@@ -105,12 +185,9 @@ class TransferService(
         // tweak to insure we return no jobs when no job ID has been explicitly set
         val id = if (jobID < 1) -1 else jobID
         return nodeDB(accountID).transferDao().getByJobId(id)
-    }
-
-    fun getRunningTransfersForJob(accountID: StateID, jobID: Long): List<RTransfer> {
-        return if (jobID <= 0) {
-            listOf()
-        } else nodeDB(accountID).transferDao().getRunningTransfersForJob(jobID)
+            .combine(progressAggregator.liveProgress) { transfers, _ ->
+                transfers.map { progressAggregator.withLiveProgress(accountID, it) }
+            }
     }
 
     suspend fun getRecord(accountID: StateID, transferID: Long): RTransfer? =
@@ -129,30 +206,154 @@ class TransferService(
         }
 
     fun enqueueUpload(parentID: StateID, uri: Uri) {
-        val cr = CellsApp.instance.contentResolver
+        enqueueUploads(parentID, listOf(uri), UploadPriority.USER_VISIBLE)
+    }
+
+    fun enqueueUploads(parentID: StateID, uris: List<Uri>, priority: UploadPriority) {
         serviceScope.launch {
-            val tid = register(cr, uri, parentID)
-            launchCopy(cr, uri, parentID, tid.first, tid.second)?.let {
-                launch {
-                    try {
-                        uploadOne(it)
-                        Log.w(logTag, "... $it ==> upload DONE")
-                    } catch (e: Exception) {
-                        Log.e(logTag, "... $it ==> upload FAILED: ${e.message}")
-                        e.printStackTrace()
-                    }
+            try {
+                prepareUploads(parentID, uris, priority)
+            } catch (e: Exception) {
+                Log.e(logTag, "Could not enqueue uploads at $parentID: ${e.message}")
+                e.printStackTrace()
+            }
+        }
+    }
+
+    /**
+     * Registers the uploads, then prepares their sources one after the other while we still
+     * have access to the URIs, see [prepareSource]. The uploads are started by the upload queue
+     * that limits the number of concurrent uploads for all accounts.
+     * Returns the IDs of the registered transfers.
+     */
+    suspend fun prepareUploads(
+        parentID: StateID,
+        uris: List<Uri>,
+        priority: UploadPriority,
+        parentJobID: Long = -1,
+    ): List<Long> = withContext(ioDispatcher) {
+        val cr = CellsApp.instance.contentResolver
+        // Also insures that the uploads are resumed if the process dies
+        UploadResumeWorker.enqueue(appContext)
+
+        val registered = mutableListOf<Triple<Uri, Long, String>>()
+        for (uri in uris) {
+            try {
+                val (transferID, filename) = register(cr, uri, parentID, parentJobID, priority)
+                if (transferID > 0) {
+                    registered.add(Triple(uri, transferID, filename))
                 }
+            } catch (e: Exception) {
+                Log.e(logTag, "Could not register upload of $uri: ${e.message}")
+            }
+        }
+        for ((uri, transferID, filename) in registered) {
+            val key = parentID.account().id to transferID
+            preparing.add(key)
+            try {
+                prepareSource(cr, uri, parentID, transferID, filename)
+                    ?: markAsFailed(parentID, transferID, "Could not read $filename")
+            } finally {
+                preparing.remove(key)
             }
+            uploadQueue.wakeUp(parentID)
         }
+        return@withContext registered.map { it.second }
     }
 
+    /**
+     * Wakes the upload queue up for all accounts, after having prepared the sources
+     * of the uploads that have been interrupted by the death of the process.
+     */
+    suspend fun resumePendingUploads() = withContext(ioDispatcher) {
+        for (session in accountService.listSessionViews(true)) {
+            val accountID = session.getStateID()
+            val dao = getTransferDao(accountID)
+            for (rTransfer in dao.getUnpreparedUploads()) {
+                val key = accountID.account().id to rTransfer.transferId
+                if (!preparing.add(key)) {
+                    continue
+                }
+                try {
+                    recoverPreparation(accountID, dao, rTransfer)
+                } catch (e: Exception) {
+                    markAsFailed(accountID, rTransfer.transferId, e.message ?: "Could not resume upload")
+                } finally {
+                    preparing.remove(key)
+                }
+            }
+            uploadQueue.wakeUp(accountID)
+        }
+    }
+
+    suspend fun awaitUploadsIdle() {
+        uploadQueue.awaitIdle()
+    }
+
+    private suspend fun recoverPreparation(accountID: StateID, dao: TransferDao, rTransfer: RTransfer) {
+        val targetID = rTransfer.targetState?.let { StateID.fromId(it) }
+        val origin = rTransfer.sourceUri
+        if (targetID == null || origin == null) {
+            markAsFailed(accountID, rTransfer.transferId, "Cannot resume upload, unknown source")
+            return
+        }
+        if (rTransfer.status == AppNames.UPLOAD_STATUS_PRE_PROCESSING) {
+            // Drop the partial copy, its name has been reserved for this upload
+            rTransfer.getStateID()?.let {
+                File(fileService.getLocalPathFromState(it, AppNames.LOCAL_FILE_TYPE_FILE)).delete()
+            }
+            rTransfer.encodedState = null
+            rTransfer.status = JobStatus.NEW.id
+            rTransfer.progress = 0
+            dao.update(rTransfer)
+        }
+        val cr = CellsApp.instance.contentResolver
+        prepareSource(cr, Uri.parse(origin), targetID.parent(), rTransfer.transferId, targetID.fileName)
+            ?: markAsFailed(accountID, rTransfer.transferId, "Could not read ${targetID.fileName}")
+    }
+
+    /** Called by the upload queue: only returns once the upload is terminated */
+    private suspend fun runQueuedUpload(accountID: StateID, rTransfer: RTransfer) {
+        val stateID = rTransfer.getStateID() ?: return
+        try {
+            uploadOne(stateID, waitForCompletion = true)
+        } finally {
+            // Never leave a record in the queue, we would try it again and again,
+            // unless it has been held back on purpose: it is then dispatched again later on
+            val record = getTransferDao(accountID).getById(rTransfer.transferId)
+            if (record?.status == JobStatus.NEW.id && currentCoroutineContext().isActive
+                && !bandwidthManager.isOverBudget(trafficClass(record))
+            ) {
+                markAsFailed(accountID, rTransfer.transferId, "Upload could not be started")
+            }
+        }
+    }
+
+    private suspend fun markAsFailed(accountID: StateID, transferID: Long, msg: String) =
+        withContext(ioDispatcher) {
+            val dao = getTransferDao(accountID)
+            val rTransfer = dao.getById(transferID) ?: return@withContext
+            Log.e(logTag, "Upload #$transferID has failed: $msg")
+            rTransfer.status = JobStatus.ERROR.id
+            rTransfer.error = msg
+            rTransfer.doneTimestamp = currentTimestamp()
+            rTransfer.updateTimestamp = currentTimestamp()
+            dao.update(rTransfer)
+        }
+
     suspend fun clearTerminated(stateID: StateID) = withContext(ioDispatcher) {
         val dao = nodeDB(stateID).transferDao()
         // val before = dao.getTransferCount()
 
-        dao.clearTerminatedTransfers()
         // We also remove unterminated jobs that have not been updated since more than 10 minutes
-        dao.clearStaleTransfers(currentTimestamp() - 600)
+        val staleLimit = currentTimestamp() - 600
+        val removed = dao.getTerminatedTransfers() + dao.getStaleTransfers(staleLimit)
+        dao.clearTerminatedTransfers()
+        dao.clearStaleTransfers(staleLimit)
+        removed.forEach {
+            s3TransferService.discardPartialFiles(dao, it)
+            releaseSource(dao, it)
+        }
         // val after = dao.getTransferCount()
         // Log.e(logTag, "After transfer clean: $after (B4: $before)")
     }
@@ -162,11 +363,14 @@ class TransferService(
         transferID: Long,
         isRemoteLegacy: Boolean = false
     ) {
+        val dao = getTransferDao(stateID)
+        val rTransfer = withContext(ioDispatcher) { dao.getById(transferID) }
         if (isRemoteLegacy) {
             p8TransferService.forgetTransfer(stateID, transferID)
         } else {
             s3TransferService.forgetTransfer(stateID, transferID)
         }
+        rTransfer?.let { withContext(ioDispatcher) { releaseSource(dao, it) } }
     }
 
     suspend fun cancelTransfer(
@@ -202,6 +406,21 @@ class TransferService(
     ) {
         if (isRemoteLegacy) {
             p8TransferService.resumeTransfer(stateId, transferID)
+            return
+        }
+        val rTransfer = getRecord(stateId, transferID)
+        if (rTransfer != null && s3TransferService.isHandledInProcess(rTransfer)) {
+            if (rTransfer.type == AppNames.TRANSFER_TYPE_DOWNLOAD) {
+                // Restart the download, it continues from its last checkpoint
+                launchDownloadTransfer(stateId.account(), transferID)
+            } else {
+                // Back to the queue: multipart uploads only send the parts that are still missing
+                rTransfer.status = JobStatus.NEW.id
+                rTransfer.error = null
+                rTransfer.doneTimestamp = -1
+                getTransferDao(stateId).update(rTransfer)
+                uploadQueue.wakeUp(stateId)
+            }
         } else {
             s3TransferService.resumeTransfer(stateId, transferID)
         }
@@ -223,8 +442,12 @@ class TransferService(
 
         // First try to retrieve local file
         fileService.getLocalFile(stateID, rNode, type)?.let {
+            cacheMonitor.onHit(stateID, type)
             return@withContext it
         }
+        cacheMonitor.onMiss(type)
+        // The user is waiting for this image
+        bandwidthManager.markInteractive()
 
         // Otherwise, try to download if current network type and user preferences allow it
         val currNetwork = connectionService.liveConnectionState.value
@@ -267,6 +490,12 @@ class TransferService(
             val errMsg = "No node found for $stateID, aborting $type DL"
             throw SDKException(ErrorCodes.no_local_node, errMsg)
         }
+        if (bandwidthManager.isOverBudget(TrafficClass.BACKGROUND)) {
+            throw SDKException(
+                ErrorCodes.con_failed,
+                "Daily budget on metered network has been spent, cannot download $type"
+            )
+        }
         downloadFile(stateID, rNode, type, parentJob, progressChannel)
     }
 
@@ -329,18 +558,23 @@ class TransferService(
         val filename: String
         when (type) {
             AppNames.LOCAL_FILE_TYPE_THUMB -> {
-                filename = dlThumb(stateID, rNode, parentFolder, type)
+                filename = thumbFlights.get(ThumbKey(stateID.id, type, rNode.etag)) {
+                    dlThumb(stateID, rNode, parentFolder, type)
+                }
                 parentJobProgress?.send(thumbSize)
             }
 
             AppNames.LOCAL_FILE_TYPE_PREVIEW -> {
-                filename = dlThumb(stateID, rNode, parentFolder, type)
+                filename = thumbFlights.get(ThumbKey(stateID.id, type, rNode.etag)) {
+                    dlThumb(stateID, rNode, parentFolder, type)
+                }
                 parentJobProgress?.send(previewSize)
             }
 
             AppNames.LOCAL_FILE_TYPE_FILE -> {
                 val jobId = prepareDownload(stateID, type, parentJob)
-                runDownloadTransfer(stateID, jobId, parentJobProgress)
+                // We wait for the end of the transfer to free the slot in the download scheduler
+                runDownloadAndWait(stateID, jobId, parentJobProgress)
                 // Note:  we remove the leading slash to comply with childFile method signature, see just below)
                 filename = stateID.path.substring(1)
             }
@@ -384,7 +618,7 @@ class TransferService(
 
     /**
      * Performs the real download for the pre-registered transfer record and
-     * wait until it is finished or we reach a 300 seconds timeout.
+     * wait until it is finished. We fail if the transfer stalls, see [TransferMonitor].
      */
     @Throws(SDKException::class)
     suspend fun runDownloadAndWait(
@@ -393,25 +627,40 @@ class TransferService(
         parentJobProgress: Channel<Long>? = null
     ) = withContext(ioDispatcher) {
 
-        runDownloadTransfer(accountID, transferID, parentJobProgress)
         val dao = getTransferDao(accountID)
-        val limit = currentTimestamp() + 300
-        loop@ while (currentTimestamp() < limit) {
-            val currRecord = dao.getById(transferID)
-            if (currRecord != null && currRecord.doneTimestamp > 0) {
-                break@loop
+        transferMonitor.watch(accountID, transferID)
+        try {
+            runDownloadTransfer(accountID, transferID, parentJobProgress)
+            // P8 and ranged downloads are synchronous and already done at this point
+            if ((dao.getById(transferID)?.doneTimestamp ?: 0) <= 0) {
+                transferMonitor.awaitDone(accountID, transferID)
             }
-            delay(2000)
+        } finally {
+            transferMonitor.forget(accountID, transferID)
+        }
+
+        // Anything but DONE is a failure for the caller, e.g. a download that has been paused
+        val record = dao.getById(transferID)
+        if (record?.status == JobStatus.CANCELLED.id) {
+            throw SDKException(ErrorCodes.cancelled, "Download #$transferID has been cancelled")
+        } else if (record == null || record.status != JobStatus.DONE.id) {
+            val reason = record?.let { it.error ?: "status is ${it.status}" } ?: "no record"
+            throw SDKException(ErrorCodes.internal_error, "Download #$transferID has failed: $reason")
         }
-        if (currentTimestamp() > limit) {
-            Log.e(logTag, "########################################")
-            Log.e(logTag, "########################################")
-            val msg = "## 5mn timeout reached while waiting for transfer #$transferID to complete"
-            Thread.dumpStack()
-            Log.e(logTag, "$msg, see stack above.")
-            throw SDKException(ErrorCodes.timeout, msg)
+    }
+
+    /**
+     * Runs the download in the service scope, so that it goes on when the caller goes away.
+     * Errors are only logged: they are also stored in the transfer record.
+     */
+    fun launchDownloadTransfer(accountID: StateID, transferID: Long) {
+        serviceScope.launch {
+            try {
+                runDownloadTransfer(accountID, transferID)
+            } catch (se: SDKException) {
+                Log.e(logTag, "Download #$transferID has not completed: ${se.message}")
+            }
         }
-        Log.e(logTag, "## After wait")
     }
 
     /**
@@ -454,7 +703,10 @@ class TransferService(
                 targetFile = targetFile,
                 dao = dao,
                 transferRecord = rTransfer,
+                rTreeNode = rNode,
                 parentJobProgress = parentJobProgress,
+                segmentNb = downloadSegmentNb(),
+                trafficClass = trafficClass(rTransfer),
             )
         } else {
             p8TransferService.doDownload(
@@ -464,15 +716,57 @@ class TransferService(
                 dao = dao,
                 rTreeNode = rNode,
                 rTransfer = rTransfer,
+                trafficClass = trafficClass(rTransfer),
             )
         }
     }
 
+    /**
+     * Large files are downloaded with several parallel connections, unless we are
+     * on a metered network and the user wants to limit the impact of the app.
+     */
+    private suspend fun downloadSegmentNb(): Int {
+        val limitedPrefs = prefs.fetchPreferences().meteredNetwork
+        return when (connectionService.liveConnectionState.value.serverConnection) {
+            ServerConnection.OK -> SegmentedDownload.DEFAULT_SEGMENT_NB
+            ServerConnection.LIMITED ->
+                if (limitedPrefs.applyLimits) 1 else SegmentedDownload.DEFAULT_SEGMENT_NB
+
+            ServerConnection.UNREACHABLE -> 1
+        }
+    }
+
+    /** Same rules as for downloads: parts of large uploads are sent in parallel */
+    private suspend fun uploadParallelism(): Int {
+        val limitedPrefs = prefs.fetchPreferences().meteredNetwork
+        return when (connectionService.liveConnectionState.value.serverConnection) {
+            ServerConnection.OK -> UploadPlan.DEFAULT_PARALLELISM
+            ServerConnection.LIMITED -> if (limitedPrefs.applyLimits) 1 else 2
+            ServerConnection.UNREACHABLE -> 1
+        }
+    }
+
+    /**
+     * Offline sync downloads and batch uploads only get a share of the bandwidth
+     * when the user is waiting for another transfer, see [BandwidthManager].
+     */
+    private fun trafficClass(rTransfer: RTransfer): TrafficClass {
+        return if (rTransfer.jobId > 0 || rTransfer.priority > UploadPriority.USER_VISIBLE.ordinal) {
+            TrafficClass.BACKGROUND
+        } else {
+            TrafficClass.INTERACTIVE
+        }
+    }
+
+    private fun isOnLimitedNetwork(): Boolean {
+        return connectionService.liveConnectionState.value.serverConnection == ServerConnection.LIMITED
+    }
+
     private suspend fun dlThumb(
         state: StateID,
         rNode: RTreeNode,
         parPath: String,
-        type: String
+        type: String,
     ): String {
         val node = FileNode()
         node.properties = rNode.properties
@@ -497,6 +791,8 @@ class TransferService(
                 handleOrientation(rNode, targetFile.absolutePath)
             }
 
+            // Thumbnails are downloaded by the SDK: we can only account for them afterwards
+            bandwidthManager.recordUsage(targetFile.length())
             fileService.registerLocalFile(state, rNode, type, targetFile)
             return filename
         } catch (e: Exception) {
@@ -520,23 +816,43 @@ class TransferService(
     private fun handleOrientation(rTreeNode: RTreeNode, absPath: String) {
         // EXIF data must be manually retrieved from main image and applied
         val exifInterface = ExifInterface(absPath)
-        if (rTreeNode.meta.containsKey(SdkNames.NODE_PROPERTY_IMG_EXIF_ORIENTATION)) {
-            var orientation = rTreeNode.meta[SdkNames.NODE_PROPERTY_IMG_EXIF_ORIENTATION] as String
-            orientation = FileNodeUtils.extractJSONString(orientation)
+        if (rTreeNode.exifOrientation != ExifInterface.ORIENTATION_UNDEFINED) {
             exifInterface.setAttribute(
                 ExifInterface.TAG_ORIENTATION,
-                orientation
+                "${rTreeNode.exifOrientation}"
             )
             exifInterface.saveAttributes()
         }
     }
 
     /** UPLOADS **/
-    suspend fun uploadOne(stateID: StateID) = withContext(ioDispatcher) {
+    suspend fun uploadOne(
+        stateID: StateID,
+        waitForCompletion: Boolean = false,
+    ) = withContext(ioDispatcher) {
         val dao = getTransferDao(stateID)
         val uploadRecord = dao.getByState(stateID.id)
             ?: throw IllegalStateException("No transfer record found for $stateID, cannot upload")
-        doUpload(dao, uploadRecord)
+        if (!waitForCompletion) {
+            doUpload(dao, uploadRecord)
+            return@withContext
+        }
+
+        val tid = uploadRecord.transferId
+        transferMonitor.watch(stateID, tid)
+        try {
+            doUpload(dao, uploadRecord)
+            // Uploads via the transfer utility are asynchronous
+            val record = dao.getById(tid)
+            if (record?.status == JobStatus.PROCESSING.id && record.doneTimestamp <= 0) {
+                transferMonitor.awaitDone(stateID, tid)
+            }
+        } catch (se: SDKException) {
+            // The upload goes on in the background, we only stop waiting for it
+            Log.w(logTag, "Stop waiting for upload #$tid: ${se.message}")
+        } finally {
+            transferMonitor.forget(stateID, tid)
+        }
     }
 
 //    suspend fun uploadOne(accountId: StateID, transferId: Long) = withContext(ioDispatcher) {
@@ -554,6 +870,7 @@ class TransferService(
         uri: Uri,
         parentID: StateID,
         parentJobID: Long = -1,
+        priority: UploadPriority = UploadPriority.USER_VISIBLE,
     ): Pair<Long, String> = withContext(ioDispatcher) {
         var name: String? = null
         // TODO rather throw an exception 5 lines below if we do not have a valid size
@@ -592,14 +909,113 @@ class TransferService(
             size,
             mime,
             parentJobId = parentJobID,
+            priority = priority.ordinal,
         )
+        // What we need to prepare the upload again if the process dies before it is prepared
+        rec.targetState = parentID.child(filename).id
+        rec.sourceUri = uri.toString()
         return@withContext Pair(nodeDB(parentID).transferDao().insert(rec), filename)
     }
 
+    /**
+     * Decides where the bytes of a registered upload are read from, to avoid a full copy:
+     * - pictures that we have just taken are moved from the transfer folder,
+     * - files that we can read again later are directly streamed from their URI,
+     * - others are copied to the app storage, see [launchCopy].
+     */
+    suspend fun prepareSource(
+        cr: ContentResolver,
+        uri: Uri,
+        parentID: StateID,
+        transferID: Long,
+        filename: String,
+    ): StateID? = withContext(ioDispatcher) {
+        val dao = getTransferDao(parentID)
+        val uploadRecord = dao.getById(transferID) ?: run {
+            Log.e(logTag, "No transfer record found for $transferID, cannot upload")
+            return@withContext null
+        }
+
+        fileService.getTransferFileFromUri(parentID.account(), uri)?.let { appFile ->
+            val targetStateID = createLocalState(parentID, filename)
+            val localPath =
+                fileService.getLocalPathFromState(targetStateID, AppNames.LOCAL_FILE_TYPE_FILE)
+            val localFile = File(localPath)
+            localFile.parentFile?.mkdirs()
+            if (appFile.renameTo(localFile)) {
+                uploadRecord.encodedState = targetStateID.id
+                uploadRecord.sourceUri = null
+                uploadRecord.localPath = localPath
+                dao.update(uploadRecord)
+                return@withContext targetStateID
+            }
+        }
+
+        if (canStream(cr, uri, uploadRecord.byteSize)) {
+            val targetStateID = createLocalState(parentID, filename)
+            uploadRecord.encodedState = targetStateID.id
+            uploadRecord.sourceUri = uri.toString()
+            dao.update(uploadRecord)
+            return@withContext targetStateID
+        }
+
+        return@withContext launchCopy(cr, uri, parentID, transferID, filename)
+    }
+
+    private fun canStream(cr: ContentResolver, uri: Uri, size: Long): Boolean {
+        if (size <= 0) {
+            return false
+        }
+        // The number of persisted grants is capped by the system: past the cap, we rather copy
+        if (cr.persistedUriPermissions.size >= maxPersistedGrants) {
+            Log.i(logTag, "Too many persisted grants, $uri will be copied")
+            return false
+        }
+        // Documents that have been picked via the storage access framework
+        // can still be read after a restart of the app
+        try {
+            cr.takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION)
+        } catch (se: SecurityException) {
+            // Transient grant: we copy the file while we still have access to it
+            return false
+        }
+        // A stream that is not backed by a file (e.g. a pipe) cannot be read twice
+        val isReReadable = try {
+            cr.openFileDescriptor(uri, "r")?.use { it.statSize >= 0 } ?: false
+        } catch (e: Exception) {
+            false
+        }
+        if (!isReReadable) {
+            releaseSource(cr, uri)
+        }
+        return isReReadable
+    }
+
+    /** Gives the read grant of a streamed upload back, unless another upload still needs it */
+    private fun releaseSource(dao: TransferDao, rTransfer: RTransfer) {
+        val uri = rTransfer.sourceUri ?: return
+        if (dao.countUnterminatedFromSource(uri) > 0) {
+            return
+        }
+        val cr = CellsApp.instance.contentResolver
+        val parsed = Uri.parse(uri)
+        // Records that have not been prepared yet also keep their origin, with no grant
+        if (cr.persistedUriPermissions.any { it.uri == parsed }) {
+            releaseSource(cr, parsed)
+        }
+    }
+
+    private fun releaseSource(cr: ContentResolver, uri: Uri) {
+        try {
+            cr.releasePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION)
+        } catch (se: SecurityException) {
+            Log.w(logTag, "Could not release permission for $uri: ${se.message}")
+        }
+    }
+
     /**
      * Make a local copy of the file from the device to an in-app folder in order to
-     * workaround some permission issues
-     * TODO improve this
+     * workaround some permission issues. The progress of the copy is shown in the transfer record.
      */
     suspend fun launchCopy(
         cr: ContentResolver,
@@ -626,14 +1042,25 @@ class TransferService(
         val localFile = File(localPath)
         localFile.parentFile!!.mkdirs()
 
-        // TODO we can also add a progress at this point
+        uploadRecord.encodedState = targetStateID.id
+        uploadRecord.status = AppNames.UPLOAD_STATUS_PRE_PROCESSING
+        uploadRecord.progress = 0
+        dao.update(uploadRecord)
+
         var inputStream: InputStream? = null
         var outputStream: OutputStream? = null
         try {
             inputStream = cr.openInputStream(uri)
+                ?: throw IOException("Could not open $uri, the provider has crashed")
             @Suppress("BlockingMethodInNonBlockingContext")
             outputStream = FileOutputStream(localFile)
-            IoHelpers.pipeRead(inputStream, outputStream)
+            val progressStream = ProgressInputStream(inputStream, { read ->
+                uploadRecord.progress += read
+                progressAggregator.onProgress(
+                    parentID, dao, transferID, uploadRecord.byteSize, uploadRecord.progress
+                )
+            })
+            IoHelpers.pipeRead(progressStream, outputStream)
         } catch (ioe: IOException) {
             Log.e(logTag, "could not create local copy of $filename: ${ioe.message}")
             ioe.printStackTrace()
@@ -645,10 +1072,14 @@ class TransferService(
         } finally {
             IoHelpers.closeQuietly(inputStream)
             IoHelpers.closeQuietly(outputStream)
+            progressAggregator.onTerminated(parentID, transferID)
         }
 
-        uploadRecord.encodedState = targetStateID.id
         uploadRecord.localPath = localPath
+        uploadRecord.sourceUri = null
+        uploadRecord.status = JobStatus.NEW.id
+        // The progress bar now shows the upload
+        uploadRecord.progress = 0
         nodeDB(parentID).transferDao().update(uploadRecord)
         return@withContext targetStateID
     }
@@ -665,23 +1096,30 @@ class TransferService(
                 transferRecord.status = JobStatus.PROCESSING.id
                 dao.update(transferRecord)
 
-                val srcPath =
-                    fileService.getLocalPathFromState(stateID, AppNames.LOCAL_FILE_TYPE_FILE)
-                val srcFile = File(srcPath)
+                val cr = CellsApp.instance.contentResolver
+                val source = transferRecord.sourceUri?.let {
+                    UploadSource.Content(cr, Uri.parse(it), transferRecord.byteSize)
+                } ?: UploadSource.LocalFile(
+                    File(fileService.getLocalPathFromState(stateID, AppNames.LOCAL_FILE_TYPE_FILE))
+                )
 
-                if (!accountService.getClient(stateID).isLegacy) {
-                    s3TransferService.doUpload(
+                if (accountService.getClient(stateID).isLegacy) {
+                    p8TransferService.doUpload(
                         stateID = stateID,
-                        file = srcFile,
+                        source = source,
                         dao = dao,
-                        transferRecord = transferRecord
+                        transferRecord = transferRecord,
+                        trafficClass = trafficClass(transferRecord),
                     )
                 } else {
-                    p8TransferService.doUpload(
+                    s3TransferService.doUpload(
                         stateID = stateID,
-                        srcFile = srcFile,
+                        source = source,
                         dao = dao,
-                        transferRecord = transferRecord
+                        transferRecord = transferRecord,
+                        isLimited = isOnLimitedNetwork(),
+                        maxParallelism = uploadParallelism(),
+                        trafficClass = trafficClass(transferRecord),
                     )
                 }
             } catch (e: Exception) {
@@ -699,6 +1137,10 @@ class TransferService(
                 }
             } finally {
                 dao.update(transferRecord)
+                // Paused or held uploads still need to read their source later on
+                if (transferRecord.doneTimestamp > 0) {
+                    releaseSource(dao, transferRecord)
+                }
             }
         }
 
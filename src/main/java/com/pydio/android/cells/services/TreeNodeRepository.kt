@@ -68,10 +68,7 @@ class TreeNodeRepository(
     fun persistUpdated(rTreeNode: RTreeNode, modificationTS: Long = -1) {
         rTreeNode.localModificationTS =
             if (modificationTS > 0) modificationTS else rTreeNode.remoteModificationTS
-        val dao = nodeDB(rTreeNode.getStateID()).treeNodeDao()
-        dao.getNode(rTreeNode.getStateID().id)
-            ?.let { dao.update(rTreeNode) }
-            ?: let { dao.insert(rTreeNode) }
+        nodeDB(rTreeNode.getStateID()).treeNodeDao().upsert(rTreeNode)
     }
 
     fun persistLocallyModified(rTreeNode: RTreeNode, modificationType: String) {
@@ -3,9 +3,11 @@ package com.pydio.android.cells.services
 import android.content.Context
 import android.util.Log
 import androidx.work.ExistingPeriodicWorkPolicy
+import androidx.work.ExistingWorkPolicy
 import androidx.work.WorkManager
 import com.pydio.android.cells.db.preferences.SyncPreferences
 import com.pydio.android.cells.services.workers.OfflineSyncWorker
+import com.pydio.android.cells.services.workers.UploadResumeWorker
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.flow.map
@@ -36,6 +38,7 @@ class WorkerService(
             withContext(coroutineService.cpuDispatcher) {
                 initOfflineWorkers()
                 configureOfflinePrefObserver()
+                initUploadWorker()
             }
         }
         Log.i(logTag, "## WorkerService initialised")
@@ -55,6 +58,15 @@ class WorkerService(
         )
     }
 
+    // Uploads that were pending when the app has been stopped are resumed
+    private fun initUploadWorker() {
+        workManager.enqueueUniqueWork(
+            UploadResumeWorker.WORK_NAME,
+            ExistingWorkPolicy.KEEP,
+            UploadResumeWorker.buildWorkRequest(),
+        )
+    }
+
     private fun configureOfflinePrefObserver() {
         workerScope.launch {
             syncPrefs.collect { currPrefs ->
@@ -0,0 +1,46 @@
+package com.pydio.android.cells.services.models
+
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+
+/**
+ * Simple LIMIT / OFFSET paging source that is **not** bound to Room's table level invalidation:
+ * the caller is responsible to invalidate it when the underlying data has changed.
+ */
+class OffsetPagingSource<T : Any>(
+    private val loadRows: suspend (limit: Int, offset: Int) -> List<T>
+) : PagingSource<Int, T>() {
+
+    /**
+     * Without placeholders, the anchor position is relative to the first loaded page and not
+     * an offset in the list: we rather find the offset of the page that contains the anchor.
+     */
+    override fun getRefreshKey(state: PagingState<Int, T>): Int? {
+        val anchor = state.anchorPosition ?: return null
+        val page = state.closestPageToPosition(anchor) ?: return null
+        // The previous key of a page is its own offset, see load()
+        val pageOffset = page.prevKey ?: 0
+        val pageStart = state.pages.takeWhile { it !== page }.sumOf { it.data.size }
+        val anchorOffset = pageOffset + (anchor - pageStart).coerceIn(0, page.data.size)
+        return maxOf(0, anchorOffset - state.config.initialLoadSize / 2)
+    }
+
+    override suspend fun load(params: LoadParams<Int>): LoadResult<Int, T> {
+        val key = params.key ?: 0
+        // When prepending, the key is the offset of the first item that is already loaded
+        val (offset, limit) = when (params) {
+            is LoadParams.Prepend -> maxOf(0, key - params.loadSize) to minOf(params.loadSize, key)
+            else -> key to params.loadSize
+        }
+        return try {
+            val rows = loadRows(limit, offset)
+            LoadResult.Page(
+                data = rows,
+                prevKey = if (offset > 0) offset else null,
+                nextKey = if (rows.size < limit) null else offset + rows.size,
+            )
+        } catch (e: Exception) {
+            LoadResult.Error(e)
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.pydio.android.cells.services.workers
+
+import android.content.Context
+import android.util.Log
+import androidx.work.Constraints
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingWorkPolicy
+import androidx.work.NetworkType
+import androidx.work.OneTimeWorkRequest
+import androidx.work.OneTimeWorkRequestBuilder
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import com.pydio.android.cells.services.TransferService
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+
+/**
+ * Picks up the uploads that are still pending after a restart of the app, including the ones
+ * that have been interrupted by the death of the process, and keeps the work alive until the
+ * upload queue is empty. The uploads themselves run in the transfer service scope: if the
+ * worker is stopped by the system, they go on as long as the process lives.
+ */
+class UploadResumeWorker(
+    appContext: Context,
+    params: WorkerParameters
+) : CoroutineWorker(appContext, params), KoinComponent {
+
+    private val transferService: TransferService by inject()
+
+    companion object {
+        const val WORK_NAME = "UploadResumeWorker"
+        private const val logTag = "UploadResume"
+
+        fun buildWorkRequest(): OneTimeWorkRequest {
+            val constraints = Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build()
+            return OneTimeWorkRequestBuilder<UploadResumeWorker>()
+                .setConstraints(constraints)
+                .build()
+        }
+
+        /** Does nothing if the worker is already scheduled or running: it then also handles the new uploads */
+        fun enqueue(context: Context) {
+            WorkManager.getInstance(context).enqueueUniqueWork(
+                WORK_NAME,
+                ExistingWorkPolicy.KEEP,
+                buildWorkRequest(),
+            )
+        }
+    }
+
+    override suspend fun doWork(): Result {
+        Log.i(logTag, "... Resuming pending uploads")
+        transferService.resumePendingUploads()
+        transferService.awaitUploadsIdle()
+        Log.i(logTag, "... No more pending uploads")
+        return Result.success()
+    }
+}
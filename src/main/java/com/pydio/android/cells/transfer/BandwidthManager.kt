@@ -0,0 +1,280 @@
+package com.pydio.android.cells.transfer
+
+import android.util.Log
+import com.pydio.android.cells.NetworkStatus
+import com.pydio.android.cells.db.preferences.BandwidthPreferences
+import com.pydio.android.cells.db.preferences.defaultCellsPreferences
+import com.pydio.android.cells.services.CoroutineService
+import com.pydio.android.cells.services.NetworkService
+import com.pydio.android.cells.services.PreferencesKeys
+import com.pydio.android.cells.services.PreferencesService
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.launch
+import java.util.Calendar
+
+/**
+ * Interactive transfers are the ones the user is waiting for, e.g. a preview or a file to open.
+ * Background transfers are the offline sync and the batch uploads.
+ */
+enum class TrafficClass {
+    INTERACTIVE, BACKGROUND
+}
+
+/**
+ * Rate limiter that lets a sender go into debt: a chunk that has already been read
+ * is always accepted, and the sender then waits until the bucket is refilled.
+ * The clock can be replaced, typically by tests.
+ */
+class TokenBucket(
+    ratePerSecond: Long,
+    private val nanoTime: () -> Long = System::nanoTime,
+) {
+
+    private var rate = ratePerSecond
+    private var tokens = ratePerSecond
+    private var lastRefillNanos = nanoTime()
+
+    @Synchronized
+    fun setRate(ratePerSecond: Long) {
+        rate = ratePerSecond
+        tokens = tokens.coerceAtMost(ratePerSecond)
+    }
+
+    /** Takes [bytes] from the bucket and returns how long the caller must wait, in ms */
+    @Synchronized
+    fun reserve(bytes: Long): Long {
+        if (rate <= 0) {
+            return 0L
+        }
+        val now = nanoTime()
+        val refill = (now - lastRefillNanos) * rate / 1_000_000_000
+        if (refill > 0) {
+            // At most one second of burst
+            tokens = (tokens + refill).coerceAtMost(rate)
+            lastRefillNanos = now
+        }
+        tokens -= bytes
+        return if (tokens >= 0) 0L else -tokens * 1000 / rate
+    }
+}
+
+/**
+ * Shapes the bandwidth used by the transfers, below the transfer services:
+ * - each network type has its own rate limit,
+ * - background transfers only get a share of the rate while interactive transfers are running,
+ *   even when no rate limit is set,
+ * - background transfers stop once the daily budget on metered networks is spent,
+ *   [budgetReleased] tells when they can go on.
+ * Transfers report each chunk they have read or written via [throttle], that blocks
+ * the calling thread as long as needed.
+ */
+class BandwidthManager(
+    coroutineService: CoroutineService,
+    networkService: NetworkService,
+    private val preferencesService: PreferencesService,
+) {
+
+    private val logTag = "BandwidthManager"
+
+    private val scope = coroutineService.cellsIoScope
+
+    @Volatile
+    private var networkStatus = NetworkStatus.UNKNOWN
+
+    @Volatile
+    private var limits: BandwidthPreferences = defaultCellsPreferences().bandwidth
+
+    private val buckets = NetworkStatus.values().associateWith { TokenBucket(0) }
+    private val backgroundBuckets = NetworkStatus.values().associateWith { TokenBucket(0) }
+
+    @Volatile
+    private var lastInteractiveMs = 0L
+
+    // Bytes used on metered networks during the current day, persisted in the preferences
+    private val usageLock = Any()
+    private var usageDay = 0L
+    private var persistedUsage = 0L
+    private val _meteredUsage = MutableStateFlow(0L)
+    val meteredUsage: StateFlow<Long> = _meteredUsage.asStateFlow()
+
+    // Background transfers that have been held back by the budget can go on
+    private val _budgetReleased = MutableSharedFlow<Unit>(
+        extraBufferCapacity = 1,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+    val budgetReleased: SharedFlow<Unit> = _budgetReleased.asSharedFlow()
+
+    init {
+        scope.launch {
+            val day = preferencesService.getLong(PreferencesKeys.METERED_USAGE_DAY) ?: 0L
+            val bytes = preferencesService.getLong(PreferencesKeys.METERED_USAGE_BYTES) ?: 0L
+            synchronized(usageLock) {
+                // Some bytes might have been accounted in the meantime
+                if (day == today() && (usageDay == 0L || usageDay == day)) {
+                    usageDay = day
+                    persistedUsage += bytes
+                    _meteredUsage.value += bytes
+                }
+            }
+        }
+        scope.launch {
+            networkService.networkStatusFlow.collect {
+                val wasMetered = isMetered(networkStatus)
+                networkStatus = it
+                if (wasMetered && !isMetered(it)) {
+                    _budgetReleased.tryEmit(Unit)
+                }
+            }
+        }
+        scope.launch {
+            preferencesService.cellsPreferencesFlow.collect {
+                limits = it.bandwidth
+                applyRates(it.bandwidth)
+                // The budget might have been raised or removed
+                _budgetReleased.tryEmit(Unit)
+            }
+        }
+        scope.launch {
+            while (true) {
+                delay(msUntilTomorrow())
+                _budgetReleased.tryEmit(Unit)
+            }
+        }
+    }
+
+    /**
+     * Accounts [bytes] that have just been transferred and blocks until the rate of the current
+     * network allows to go on. Must be called from the IO thread of the transfer,
+     * outside of any lock.
+     */
+    fun throttle(bytes: Long, trafficClass: TrafficClass) {
+        if (bytes <= 0) {
+            return
+        }
+        val status = networkStatus
+        recordUsage(bytes)
+        val now = System.currentTimeMillis()
+        var waitMs = buckets[status]?.reserve(bytes) ?: 0L
+        if (trafficClass == TrafficClass.INTERACTIVE) {
+            markInteractive()
+        } else if (now - lastInteractiveMs < INTERACTIVE_WINDOW_MS) {
+            // Leave most of the bandwidth to the transfers the user is waiting for
+            waitMs = maxOf(waitMs, backgroundBuckets[status]?.reserve(bytes) ?: 0L)
+        }
+        if (waitMs > 0) {
+            try {
+                // Longer debts are paid by the next chunks: the caller regularly checks for stop requests
+                Thread.sleep(waitMs.coerceAtMost(MAX_WAIT_MS))
+            } catch (ie: InterruptedException) {
+                Thread.currentThread().interrupt()
+            }
+        }
+    }
+
+    /**
+     * Tells that the user is waiting for a transfer that does not go through [throttle],
+     * e.g. a thumbnail or a preview downloaded by the SDK: background transfers slow down.
+     */
+    fun markInteractive() {
+        lastInteractiveMs = System.currentTimeMillis()
+    }
+
+    /** Only accounts the bytes, for transfers we cannot shape, e.g. thumbnails */
+    fun recordUsage(bytes: Long) {
+        if (!isMetered(networkStatus)) {
+            return
+        }
+        var toPersist: Pair<Long, Long>? = null
+        synchronized(usageLock) {
+            val today = today()
+            if (usageDay != today) {
+                usageDay = today
+                persistedUsage = 0L
+                _meteredUsage.value = 0L
+            }
+            _meteredUsage.value += bytes
+            if (_meteredUsage.value - persistedUsage >= PERSIST_STEP) {
+                persistedUsage = _meteredUsage.value
+                toPersist = usageDay to persistedUsage
+            }
+        }
+        toPersist?.let { (day, usage) ->
+            Log.d(logTag, "${usage / MB}MB used on metered networks today")
+            scope.launch {
+                preferencesService.setLong(PreferencesKeys.METERED_USAGE_DAY, day)
+                preferencesService.setLong(PreferencesKeys.METERED_USAGE_BYTES, usage)
+            }
+        }
+    }
+
+    /** Background transfers must stop when the daily budget has been spent on a metered network */
+    fun isOverBudget(trafficClass: TrafficClass): Boolean {
+        val budget = limits.dailyMeteredBudget
+        if (trafficClass == TrafficClass.INTERACTIVE || budget <= 0 || !isMetered(networkStatus)) {
+            return false
+        }
+        val used = synchronized(usageLock) {
+            if (usageDay == today()) _meteredUsage.value else 0L
+        }
+        return used >= budget * MB
+    }
+
+    private fun applyRates(prefs: BandwidthPreferences) {
+        NetworkStatus.values().forEach { status ->
+            val rate = when (status) {
+                NetworkStatus.METERED -> prefs.meteredRate
+                NetworkStatus.ROAMING -> prefs.roamingRate
+                else -> prefs.unmeteredRate
+            } * KB
+            buckets[status]?.setRate(rate)
+            // Without a cap, the share applies to a rough estimate of what the network can do
+            val reference = if (rate > 0) rate else uncappedReferenceRate(status)
+            backgroundBuckets[status]?.setRate(reference * prefs.backgroundShare.coerceIn(1, 100) / 100)
+        }
+    }
+
+    private fun uncappedReferenceRate(status: NetworkStatus): Long {
+        return when (status) {
+            NetworkStatus.METERED -> 1024 * KB
+            NetworkStatus.ROAMING -> 256 * KB
+            else -> 4096 * KB
+        }
+    }
+
+    private fun isMetered(status: NetworkStatus): Boolean {
+        return status == NetworkStatus.METERED || status == NetworkStatus.ROAMING
+    }
+
+    private fun msUntilTomorrow(): Long {
+        val cal = Calendar.getInstance()
+        cal.add(Calendar.DAY_OF_YEAR, 1)
+        cal.set(Calendar.HOUR_OF_DAY, 0)
+        cal.set(Calendar.MINUTE, 0)
+        cal.set(Calendar.SECOND, 0)
+        cal.set(Calendar.MILLISECOND, 0)
+        // A few more seconds, so that the new day is the current one when we wake up
+        return cal.timeInMillis - System.currentTimeMillis() + 5000
+    }
+
+        private fun today(): Long {
+        val cal = Calendar.getInstance()
+        return cal.get(Calendar.YEAR) * 1000L + cal.get(Calendar.DAY_OF_YEAR)
+    }
+
+    companion object {
+        private const val KB = 1024L
+        private const val MB = 1024L * 1024
+        private const val PERSIST_STEP = MB
+        private const val MAX_WAIT_MS = 1000L
+
+        // Background transfers are slowed down until the last interactive chunk is that old
+        private const val INTERACTIVE_WINDOW_MS = 2000L
+    }
+}
@@ -14,14 +14,19 @@ import com.pydio.android.cells.services.FileService
 import com.pydio.android.cells.utils.currentTimestamp
 import com.pydio.cells.api.ErrorCodes
 import com.pydio.cells.api.SDKException
+import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.launch
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
 import java.util.UUID
 
 class CellsTransferListener(
+    private val accountID: StateID,
     private val externalID: Int,
     private val transferDao: TransferDao,
     private val done: () -> Unit,
@@ -35,20 +40,40 @@ class CellsTransferListener(
     private val ioScope = coroutineService.cellsIoScope
     private val fileService: FileService by inject()
     private val errorService: ErrorService by inject()
+    private val transferMonitor: TransferMonitor by inject()
+    private val progressAggregator: ProgressAggregator by inject()
 
+    private data class Progress(val current: Long, val total: Long)
+
+    // Progress events are conflated and handled one at a time by a single collector:
+    // only the latest value matters and the parent job increments must be computed in order
+    private val progress = MutableStateFlow<Progress?>(null)
+    private val progressJob = ioScope.launch {
+        progress.filterNotNull().collect { onProgress(it) }
+    }
+
+    // Only read and written by the progress collector
     private var alreadyTransferred = 0L
+    private var transferID: Long? = null
 
     override fun onStateChanged(id: Int, state: TransferState?) {
+        if (state == TransferState.CANCELED || state == TransferState.FAILED) {
+            progressJob.cancel()
+        }
         ioScope.launch {
             try {
                 val transferRecord = getTransferRecord()
                 when (state) {
                     TransferState.COMPLETED -> {
                         Log.i(logTag, "... #$id - ${transferRecord.transferId}: Transfer complete")
+                        progressJob.cancel()
                         fileService.registerLocalFile(transferRecord)
+                        transferRecord.progress = transferRecord.byteSize
                         transferRecord.status = JobStatus.DONE.id
                         transferRecord.doneTimestamp = currentTimestamp()
                         transferDao.update(transferRecord)
+                        progressAggregator.onTerminated(accountID, transferRecord.transferId)
+                        transferMonitor.onDone(accountID, transferRecord.transferId)
                         done()
                     }
 
@@ -65,32 +90,37 @@ class CellsTransferListener(
     }
 
     override fun onProgressChanged(id: Int, bytesCurrent: Long, bytesTotal: Long) {
-        ioScope.launch {
-            try {
-                val transferRecord = getTransferRecord()
-                if (bytesCurrent != transferRecord.progress) {
-                    // Log.d(logTag, "... #$id - Progress: $bytesCurrent / $bytesTotal")
-                    transferRecord.progress = bytesCurrent
-                    transferDao.update(transferRecord)
+        progress.value = Progress(bytesCurrent, bytesTotal)
+    }
 
-                    parentJobProgress?.let {
-                        val diff = bytesCurrent - alreadyTransferred
-                        if (diff > 0) {
-                            try {
-                                it.send(diff)
-                            } catch (ce: ClosedSendChannelException) {
-                                var msg = "#$id: Cannot update progress to "
-                                msg += "$bytesCurrent / $bytesTotal, cause: ${ce.message ?: "-"}"
-                                Log.e(logTag, msg)
-                            }
+    private suspend fun onProgress(progress: Progress) {
+        try {
+            // The transfer ID never changes: we only look it up once rather than at each progress event
+            val tid = transferID ?: getTransferRecord().transferId.also { transferID = it }
+            // Only persisted at a bounded rate
+            val persisted = progressAggregator.onProgress(
+                accountID, transferDao, tid, progress.total, progress.current
+            )
+            if (persisted) {
+                parentJobProgress?.let {
+                    val diff = progress.current - alreadyTransferred
+                    if (diff > 0) {
+                        try {
+                            it.send(diff)
+                        } catch (ce: ClosedSendChannelException) {
+                            var msg = "#$externalID: Cannot update progress to "
+                            msg += "${progress.current} / ${progress.total}, cause: ${ce.message ?: "-"}"
+                            Log.e(logTag, msg)
                         }
-                        alreadyTransferred = bytesCurrent
                     }
+                    alreadyTransferred = progress.current
                 }
-            } catch (e: Exception) {
-                Log.e(logTag, "Could not update progress for #$id, cause: ${e.message}  ")
-                e.printStackTrace()
             }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Log.e(logTag, "Could not update progress for #$externalID, cause: ${e.message}  ")
+            e.printStackTrace()
         }
     }
 
@@ -116,6 +146,7 @@ class CellsTransferListener(
             e.message
         }
 
+        progressJob.cancel()
         ioScope.launch {
             msg?.let {
                 Log.e(logTag, "... About to append error: $it")
@@ -128,6 +159,8 @@ class CellsTransferListener(
                 transferRecord.doneTimestamp = currentTimestamp()
                 transferRecord.error = msg
                 transferDao.update(transferRecord)
+                progressAggregator.onTerminated(accountID, transferRecord.transferId)
+                transferMonitor.onDone(accountID, transferRecord.transferId)
             } catch (se: SDKException) {
                 Log.e(logTag, "Could not put transfer in error: ${se.code} -${se.message}  ")
                 se.printStackTrace()
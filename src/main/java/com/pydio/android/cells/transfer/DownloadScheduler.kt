@@ -0,0 +1,132 @@
+package com.pydio.android.cells.transfer
+
+import android.util.Log
+import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.db.preferences.SyncPreferences
+import com.pydio.android.cells.db.preferences.defaultCellsPreferences
+import com.pydio.android.cells.services.CoroutineService
+import com.pydio.android.cells.services.PreferencesService
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.PriorityQueue
+import java.util.concurrent.atomic.AtomicLong
+
+/** Downloads the user is waiting for are always served before background sync downloads */
+enum class DownloadPriority {
+    USER_VISIBLE, SYNC
+}
+
+/** A download that is waiting for a free slot in the lane of its type */
+class DownloadRequest(
+    val type: String,
+    val sizeInBytes: Long,
+    val priority: DownloadPriority,
+    val run: suspend () -> Unit,
+) {
+    internal var seq = 0L
+}
+
+/**
+ * Dispatches the downloads in one lane per local file type so that large files never block
+ * thumbnails and previews. Each lane runs at most the number of downloads that is configured
+ * in the sync preferences. Inside a lane, requests are ordered by priority, then the smallest
+ * first, then in arrival order.
+ */
+class DownloadScheduler(
+    private val coroutineService: CoroutineService,
+    preferencesService: PreferencesService,
+) {
+
+    private val logTag = "DownloadScheduler"
+
+    private val seqGenerator = AtomicLong(0)
+
+    @Volatile
+    private var syncPrefs: SyncPreferences = defaultCellsPreferences().sync
+
+    private val lanes = mapOf(
+        AppNames.LOCAL_FILE_TYPE_THUMB to Lane(AppNames.LOCAL_FILE_TYPE_THUMB),
+        AppNames.LOCAL_FILE_TYPE_PREVIEW to Lane(AppNames.LOCAL_FILE_TYPE_PREVIEW),
+        AppNames.LOCAL_FILE_TYPE_FILE to Lane(AppNames.LOCAL_FILE_TYPE_FILE),
+    )
+
+    init {
+        coroutineService.cellsIoScope.launch {
+            preferencesService.cellsPreferencesFlow.collect {
+                syncPrefs = it.sync
+                // Concurrency might have been raised
+                lanes.values.forEach { lane -> lane.wakeUp() }
+            }
+        }
+        lanes.values.forEach { lane -> coroutineService.cellsIoScope.launch { lane.dispatch() } }
+    }
+
+    suspend fun enqueue(request: DownloadRequest) {
+        val lane = lanes[request.type]
+            ?: throw IllegalArgumentException("No download lane for type ${request.type}")
+        request.seq = seqGenerator.incrementAndGet()
+        lane.offer(request)
+    }
+
+    private fun concurrencyFor(type: String): Int {
+        val limit = when (type) {
+            AppNames.LOCAL_FILE_TYPE_THUMB -> syncPrefs.thumbDownloads
+            AppNames.LOCAL_FILE_TYPE_PREVIEW -> syncPrefs.previewDownloads
+            else -> syncPrefs.fileDownloads
+        }
+        return limit.coerceAtLeast(1)
+    }
+
+    private inner class Lane(private val type: String) {
+
+        private val lock = Mutex()
+        private val queue = PriorityQueue(11, requestOrder)
+        private var runningNb = 0
+
+        // Receives a signal each time a request is added or a running download terminates
+        private val signals = Channel<Unit>(Channel.CONFLATED)
+
+        suspend fun offer(request: DownloadRequest) {
+            lock.withLock { queue.add(request) }
+            wakeUp()
+        }
+
+        fun wakeUp() {
+            signals.trySend(Unit)
+        }
+
+        suspend fun dispatch() {
+            for (signal in signals) {
+                lock.withLock {
+                    while (runningNb < concurrencyFor(type) && queue.isNotEmpty()) {
+                        val next = queue.poll() ?: break
+                        runningNb++
+                        coroutineService.cellsIoScope.launch { execute(next) }
+                    }
+                }
+            }
+        }
+
+        private suspend fun execute(request: DownloadRequest) {
+            try {
+                request.run()
+            } catch (e: Exception) {
+                // Requests are expected to handle their own errors
+                Log.e(logTag, "Unexpected error for $type download #${request.seq}: ${e.message}")
+            } finally {
+                lock.withLock { runningNb-- }
+                wakeUp()
+            }
+        }
+    }
+
+    companion object {
+        private val requestOrder = compareBy<DownloadRequest>(
+            { it.priority.ordinal },
+            { it.sizeInBytes },
+            { it.seq },
+        )
+    }
+}
@@ -6,39 +6,51 @@ import com.pydio.android.cells.services.JobService
 import com.pydio.android.cells.services.TransferService
 import com.pydio.cells.api.SDKException
 import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.channels.Channel
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.channels.ClosedSendChannelException
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Manage the various jobs and queues to request downloads and then perform then in background
  * while updating the calling job to be able to follow progress.
+ * The downloads are effectively run by the shared [DownloadScheduler] with the given [priority].
  */
 class FileDownloader(
     private val stateID: StateID,
     private val parentJobID: Long,
+    private val priority: DownloadPriority = DownloadPriority.SYNC,
 ) : KoinComponent {
 
     private val logTag = "FileDownloader"
 
     private val jobService: JobService by inject()
     private val transferService: TransferService by inject()
+    private val scheduler: DownloadScheduler by inject()
 
-    private var dlJob = Job()
+    // Cancelled once the downloader is done or stopped: pending requests are then skipped
+    private val dlJob = Job()
     private val dlScope = CoroutineScope(Dispatchers.IO + dlJob)
 
     // TODO there must be a cleaner way to perform the join.
     private lateinit var doneJob: Job
 
-    private val queue = Channel<String>()
     private val doneChannel = Channel<Boolean>()
 
+    // Number of downloads that have been ordered but not yet processed by the scheduler
+    private val pendingNb = AtomicInteger(0)
+    private val isWalkingDone = AtomicBoolean(false)
+    private val allProcessed = CompletableDeferred<Unit>()
+
     private var totalInBytes = 0L
     private var progressInBytes = 0L
 
@@ -48,31 +60,75 @@ class FileDownloader(
     private val totalChannel = Channel<Long>()
     private val progressChannel = Channel<Long>()
 
+    @Volatile
     private var isFailed = false
 
     /** Enqueue a new download */
     suspend fun orderDL(encodedState: String, type: String, sizeInBytes: Long = 0L) {
         Log.d(logTag, "DL $type for $encodedState")
-        totalChannel.send(
-            when {
-                sizeInBytes > 0 -> sizeInBytes
-                type == AppNames.LOCAL_FILE_TYPE_THUMB -> TransferService.thumbSize
-                type == AppNames.LOCAL_FILE_TYPE_PREVIEW -> TransferService.previewSize
-                else -> 0L // This should never happen
+        val size = when {
+            sizeInBytes > 0 -> sizeInBytes
+            type == AppNames.LOCAL_FILE_TYPE_THUMB -> TransferService.thumbSize
+            type == AppNames.LOCAL_FILE_TYPE_PREVIEW -> TransferService.previewSize
+            else -> 0L // This should never happen
+        }
+        // Count the order before we suspend, so that the queue is not seen as empty meanwhile
+        pendingNb.incrementAndGet()
+        if (allProcessed.isCompleted) {
+            // Should not happen: callers must order all downloads before calling walkingDone()
+            pendingNb.decrementAndGet()
+            Log.w(logTag, "Walking is already done, ignoring DL of $type for $encodedState")
+            return
+        }
+        try {
+            totalChannel.send(size)
+        } catch (ce: ClosedSendChannelException) {
+            pendingNb.decrementAndGet()
+            Log.w(logTag, "Downloader has been stopped, ignoring DL of $type for $encodedState")
+            return
+        }
+        scheduler.enqueue(
+            DownloadRequest(type, size, priority) {
+                try {
+                    if (!isFailed && dlScope.isActive) {
+                        download(StateID.fromId(encodedState), type)
+                    }
+                } finally {
+                    pendingNb.decrementAndGet()
+                    checkAllProcessed()
+                }
             }
         )
-        queue.send(encodeModel(encodedState, type))
     }
 
     /** Inform the downloader that no more downloads are to be done */
     suspend fun walkingDone() {
-        queue.send("done")
+        Log.i(logTag, "Walking done: forwarding to done channel")
+        isWalkingDone.set(true)
+        checkAllProcessed()
+        doneChannel.send(true)
     }
 
     /** Tweak to wait that all jobs are terminated */
     suspend fun manualJoin() {
         Log.i(logTag, "Waiting for the doneJob to terminate")
-        doneJob.join()
+        try {
+            doneJob.join()
+        } finally {
+            dlJob.cancel()
+        }
+    }
+
+    /**
+     * Skips the downloads that have not started yet, typically when the parent job
+     * has been cancelled. Downloads that are running report their progress to closed channels.
+     */
+    fun stop() {
+        Log.i(logTag, "Stopping downloads for $stateID")
+        dlJob.cancel()
+        progressChannel.close()
+        totalChannel.close()
+        doneChannel.close()
     }
 
     fun isFailed(): Boolean {
@@ -85,40 +141,34 @@ class FileDownloader(
 
     /** Internal code */
 
-    private suspend fun processDownloads() {
-        for (msg in queue) { // iterate over incoming messages
-            when (msg) {
-                "done" -> {
-                    Log.i(logTag, "Received done msg: forwarding to done channel")
-//                    finalizeJob()
-                    doneChannel.send(true)
-                    return
-                }
-
-                else -> {
-                    if (!isFailed) {
-                        Log.d(logTag, "Processing DL for $msg")
-                        download(msg)
-                    }
-                }
-            }
+    private fun checkAllProcessed() {
+        if (isWalkingDone.get() && pendingNb.get() == 0) {
+            allProcessed.complete(Unit)
         }
     }
 
-    private suspend fun download(encoded: String) {
-        val (stateId, type) = decodeModel(encoded)
+    private suspend fun download(stateId: StateID, type: String) {
         try {
             jobService.incrementProgress(parentJobID, 0, stateId.fileName)
             transferService.getFileForDiff(stateId, type, parentJobID, progressChannel)
         } catch (e: SDKException) {
-            val errMsg = "could not download $type for $stateId, error #${e.code}: ${e.message}"
-            Log.w(logTag, errMsg)
-            isFailed = true
-            jobService.failed(parentJobID, errMsg)
-            jobService.e(logTag, errMsg, "Job #$parentJobID")
+            onFailed("could not download $type for $stateId, error #${e.code}: ${e.message}")
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: ClosedSendChannelException) {
+            Log.d(logTag, "Downloader has been stopped while downloading $type for $stateId")
+        } catch (e: Exception) {
+            onFailed("could not download $type for $stateId: ${e.message ?: e.javaClass.simpleName}")
         }
     }
 
+    private suspend fun onFailed(errMsg: String) {
+        Log.w(logTag, errMsg)
+        isFailed = true
+        jobService.failed(parentJobID, errMsg)
+        jobService.e(logTag, errMsg, "Job #$parentJobID")
+    }
+
     private suspend fun finalizeJob() {
         // We assume all downloads have been done at this time
         lastIncrementalTotal = totalInBytes
@@ -133,7 +183,6 @@ class FileDownloader(
         dlScope.launch { manageTotal() }
         dlScope.launch { manageProgress() }
         doneJob = dlScope.launch { waitForDone() }
-        dlScope.launch { processDownloads() }
     }
 
     private suspend fun manageTotal() {
@@ -175,35 +224,12 @@ class FileDownloader(
     private suspend fun waitForDone() {
         for (msg in doneChannel) {
             Log.i(logTag, "Finished Walking the queue, waiting for the download to happen...")
-            val waiter = dlScope.launch {
-                var running = true
-                while (this.isActive && running) {
-                    delay(10000L)
-                    val rTransfers =
-                        transferService.getRunningTransfersForJob(stateID.account(), parentJobID)
-                    running = rTransfers.isNotEmpty()
-                    Log.d(
-                        logTag,
-                        "... Still waiting for the DL for JobID #${parentJobID}, we still have ${rTransfers.size} running transfers"
-                    )
-                }
-                Log.i(logTag, "Finished processing the queue, exiting...")
-                finalizeJob()
-                queue.close()
-                doneChannel.close()
-            }
-            waiter.join()
+            // File downloads only free their slot in the scheduler once the transfer is done
+            allProcessed.await()
+            Log.i(logTag, "Finished processing the queue for $stateID, exiting...")
+            finalizeJob()
+            doneChannel.close()
             break
         }
     }
-
-    private fun encodeModel(encodedState: String, type: String): String {
-        return "$type:$encodedState"
-    }
-
-    private fun decodeModel(model: String): Pair<StateID, String> {
-        val type = model.substring(0, model.indexOf(":"))
-        val encoded = model.substring(model.indexOf(":") + 1)
-        return StateID.fromId(encoded) to type
-    }
 }
@@ -0,0 +1,132 @@
+package com.pydio.android.cells.transfer
+
+import android.app.ActivityManager
+import android.content.Context
+import android.util.Log
+import androidx.core.content.ContextCompat.getSystemService
+import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.ServerConnection
+import com.pydio.android.cells.db.preferences.MeteredNetworkPreferences
+import com.pydio.android.cells.db.preferences.defaultCellsPreferences
+import com.pydio.android.cells.services.ConnectionService
+import com.pydio.android.cells.services.CoroutineService
+import com.pydio.android.cells.services.PreferencesService
+import com.pydio.android.cells.services.TransferService
+import com.pydio.cells.api.SDKException
+import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlin.coroutines.coroutineContext
+
+/** An image that will most probably be displayed soon */
+data class PrefetchItem(val stateID: StateID, val type: String, val eTag: String?)
+
+/**
+ * Downloads in the local cache the thumbnails and previews of the rows that are about to be shown,
+ * so that Glide only has to decode a local file when they appear on screen.
+ * Callers send the whole window of upcoming images on each scroll: images that have left
+ * the window are cancelled. Prefetch is speculative: on metered networks where limitations
+ * apply, we only prefetch thumbnails if the user wants them, never once the daily budget is spent,
+ * and the window is cut so that the images it holds fit in a budget that depends on the memory
+ * of the device.
+ */
+class ImagePrefetcher(
+    context: Context,
+    private val coroutineService: CoroutineService,
+    private val connectionService: ConnectionService,
+    private val transferService: TransferService,
+    private val bandwidthManager: BandwidthManager,
+    preferencesService: PreferencesService,
+) {
+
+    private val logTag = "ImagePrefetcher"
+
+    @Volatile
+    private var meteredPrefs: MeteredNetworkPreferences = defaultCellsPreferences().meteredNetwork
+
+    private val budget: Long
+
+    private val running = HashMap<PrefetchItem, Job>()
+
+    // Leave most of the thumbnail slots to the images that are on screen
+    private val permits = Semaphore(MAX_PREFETCH_REQUESTS)
+
+    init {
+        val manager = getSystemService(context, ActivityManager::class.java)
+        val memoryClass = manager?.memoryClass ?: DEFAULT_MEMORY_CLASS
+        val isLowRam = manager?.isLowRamDevice ?: false
+        budget = memoryClass * MB / (if (isLowRam) 2 * BUDGET_DIVIDER else BUDGET_DIVIDER)
+
+        coroutineService.cellsIoScope.launch {
+            preferencesService.cellsPreferencesFlow.collect { meteredPrefs = it.meteredNetwork }
+        }
+    }
+
+    /** Replaces the current window: the items are expected in the order they will be shown */
+    fun prefetch(items: List<PrefetchItem>) {
+        val window = cutToBudget(items.filter { canPrefetch(it.type) })
+        synchronized(running) {
+            val iterator = running.entries.iterator()
+            while (iterator.hasNext()) {
+                val (item, job) = iterator.next()
+                if (!window.contains(item)) {
+                    job.cancel()
+                    iterator.remove()
+                }
+            }
+            window.filter { !running.containsKey(it) }.forEach { item ->
+                running[item] = coroutineService.cellsIoScope.launch { warm(item) }
+            }
+        }
+    }
+
+    private suspend fun warm(item: PrefetchItem) {
+        try {
+            permits.withPermit {
+                transferService.getImageForDisplay(item.stateID, item.type, -1)
+            }
+        } catch (se: SDKException) {
+            // The image will be requested again when it is shown
+            Log.d(logTag, "Could not prefetch ${item.type} for ${item.stateID}: ${se.message}")
+        } finally {
+            val self = coroutineContext[Job]
+            synchronized(running) {
+                // The item might have left and entered the window again in the meantime
+                if (running[item] === self) {
+                    running.remove(item)
+                }
+            }
+        }
+    }
+
+    private fun canPrefetch(type: String): Boolean {
+        return when (connectionService.liveConnectionState.value.serverConnection) {
+            ServerConnection.OK -> true
+            ServerConnection.LIMITED -> !meteredPrefs.applyLimits ||
+                    (meteredPrefs.dlThumbs && type == AppNames.LOCAL_FILE_TYPE_THUMB)
+            ServerConnection.UNREACHABLE -> false
+        } && !bandwidthManager.isOverBudget(TrafficClass.BACKGROUND)
+    }
+
+    private fun cutToBudget(items: List<PrefetchItem>): List<PrefetchItem> {
+        var total = 0L
+        return items.takeWhile {
+            total += when (it.type) {
+                AppNames.LOCAL_FILE_TYPE_PREVIEW -> TransferService.previewSize
+                else -> TransferService.thumbSize
+            }
+            total <= budget
+        }
+    }
+
+    companion object {
+        private const val MB = 1024L * 1024
+        private const val DEFAULT_MEMORY_CLASS = 64
+        private const val MAX_PREFETCH_REQUESTS = 2
+
+        // With 256MB for the app, the window holds up to 4MB of images
+        private const val BUDGET_DIVIDER = 64
+    }
+}
@@ -0,0 +1,341 @@
+package com.pydio.android.cells.transfer
+
+import android.util.Log
+import com.amazonaws.services.s3.AmazonS3Client
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest
+import com.amazonaws.services.s3.model.AmazonS3Exception
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest
+import com.amazonaws.services.s3.model.ObjectMetadata
+import com.amazonaws.services.s3.model.PartETag
+import com.amazonaws.services.s3.model.UploadPartRequest
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.Properties
+import java.util.SortedMap
+import java.util.TreeMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Part size and number of parallel connections for a multipart upload.
+ * Once the upload has been initiated, the part size must not change anymore.
+ */
+data class UploadPlan(val partSize: Long, val parallelism: Int) {
+
+    fun partNb(size: Long): Int {
+        return ((size + partSize - 1) / partSize).toInt().coerceAtLeast(1)
+    }
+
+    /** Parts are numbered from 1, the last one might be shorter */
+    fun partLength(partNumber: Int, size: Long): Long {
+        val offset = (partNumber - 1) * partSize
+        return minOf(partSize, size - offset)
+    }
+
+    /** Number of bytes that are already on the server when resuming with these parts */
+    fun uploadedBytes(partNumbers: Collection<Int>, size: Long): Long {
+        return partNumbers.sumOf { partLength(it, size) }
+    }
+
+    companion object {
+
+        /**
+         * Parts are sized so that a part takes around [TARGET_PART_DURATION] seconds at the
+         * [throughput] we have recently measured: a failed part then costs little to upload again,
+         * while fast networks are not slowed down by a request per small part.
+         * On metered networks we use smaller parts and fewer connections.
+         */
+        fun compute(size: Long, throughput: Long, isLimited: Boolean, maxParallelism: Int): UploadPlan {
+            var partSize = if (throughput > 0) {
+                throughput * TARGET_PART_DURATION
+            } else if (isLimited) {
+                MIN_PART_SIZE
+            } else {
+                DEFAULT_PART_SIZE
+            }
+            if (isLimited) {
+                partSize = partSize.coerceAtMost(DEFAULT_PART_SIZE)
+            }
+            partSize = partSize.coerceIn(MIN_PART_SIZE, MAX_PART_SIZE)
+            // S3 does not accept more than 10k parts
+            partSize = partSize.coerceAtLeast((size + MAX_PART_NB - 1) / MAX_PART_NB)
+            // Round up to the next MB
+            partSize = (partSize + MB - 1) / MB * MB
+
+            val plan = UploadPlan(partSize, 1)
+            val parallelism = maxParallelism.coerceIn(1, plan.partNb(size))
+            return plan.copy(parallelism = parallelism)
+        }
+
+        private const val MB = 1024L * 1024
+        private const val TARGET_PART_DURATION = 15L
+        private const val MAX_PART_NB = 10_000L
+
+        const val MIN_PART_SIZE = 5 * MB
+        const val DEFAULT_PART_SIZE = 16 * MB
+        const val MAX_PART_SIZE = 64 * MB
+        const val DEFAULT_PARALLELISM = 4
+    }
+}
+
+/**
+ * Sidecar file that stores the ID of an initiated multipart upload, its part size
+ * and the ETag of each part that has been accepted by the server.
+ */
+class UploadCheckpoint(private val file: File) {
+
+    var uploadID: String? = null
+        private set
+    var partSize: Long = 0L
+        private set
+    var length: Long = 0L
+        private set
+
+    private val parts: SortedMap<Int, String> = TreeMap()
+
+    fun load(): Boolean {
+        if (!file.exists()) {
+            return false
+        }
+        return try {
+            val props = Properties()
+            file.inputStream().use { props.load(it) }
+            uploadID = props.getProperty(KEY_UPLOAD_ID)
+            partSize = props.getProperty(KEY_PART_SIZE)?.toLongOrNull() ?: 0L
+            length = props.getProperty(KEY_LENGTH)?.toLongOrNull() ?: 0L
+            synchronized(parts) {
+                parts.clear()
+                props.getProperty(KEY_PARTS)?.split(",")?.forEach {
+                    val tokens = it.split(":", limit = 2)
+                    val nb = tokens[0].trim().toIntOrNull()
+                    if (nb != null && tokens.size == 2) {
+                        parts[nb] = tokens[1]
+                    }
+                }
+            }
+            uploadID != null && partSize > 0
+        } catch (e: IOException) {
+            false
+        }
+    }
+
+    fun start(uploadID: String, partSize: Long, length: Long) {
+        this.uploadID = uploadID
+        this.partSize = partSize
+        this.length = length
+        synchronized(parts) { parts.clear() }
+        save()
+    }
+
+    fun completedParts(): Map<Int, String> {
+        return synchronized(parts) { TreeMap(parts) }
+    }
+
+    /** Persists the part right away: it won't be uploaded again after a crash */
+    fun addPart(partNumber: Int, etag: String) {
+        synchronized(parts) {
+            parts[partNumber] = etag
+            save()
+        }
+    }
+
+    private fun save() {
+        val props = Properties()
+        uploadID?.let { props.setProperty(KEY_UPLOAD_ID, it) }
+        props.setProperty(KEY_PART_SIZE, partSize.toString())
+        props.setProperty(KEY_LENGTH, length.toString())
+        synchronized(parts) {
+            props.setProperty(KEY_PARTS, parts.entries.joinToString(",") { "${it.key}:${it.value}" })
+        }
+        file.parentFile?.mkdirs()
+        // Write then rename so that we never read a half written checkpoint
+        val tmp = File(file.path + ".tmp")
+        FileOutputStream(tmp).use {
+            props.store(it, null)
+            it.fd.sync()
+        }
+        if (!tmp.renameTo(file)) {
+            throw IOException("Could not persist checkpoint at ${file.path}")
+        }
+    }
+
+    fun delete() {
+        file.delete()
+        uploadID = null
+        partSize = 0L
+        length = 0L
+        synchronized(parts) { parts.clear() }
+    }
+
+    companion object {
+        private const val KEY_UPLOAD_ID = "upload_id"
+        private const val KEY_PART_SIZE = "part_size"
+        private const val KEY_LENGTH = "length"
+        private const val KEY_PARTS = "parts"
+    }
+}
+
+/**
+ * Uploads a file with the S3 multipart API, sending several parts in parallel.
+ * Each accepted part is recorded in the checkpoint so that an upload that has been paused,
+ * has failed or was interrupted by the death of the process only sends the missing parts.
+ */
+class MultipartUpload(
+    private val s3Client: AmazonS3Client,
+    private val bucket: String,
+    private val key: String,
+    private val source: UploadSource,
+    private val mime: String?,
+    private val checkpoint: UploadCheckpoint,
+    private var plan: UploadPlan,
+    private val dispatcher: CoroutineDispatcher,
+) {
+
+    private val logTag = "MultipartUpload"
+
+    /** Initiates the upload or reloads a previous one, returns the number of bytes already uploaded */
+    fun prepare(): Long {
+        if (checkpoint.load() && checkpoint.length == source.length) {
+            // Keep the part size of the previous run: parts are defined by their offsets
+            plan = plan.copy(partSize = checkpoint.partSize)
+            val done = uploadedBytes()
+            Log.i(logTag, "Resuming upload of [$key] at $done bytes, upload ID: ${checkpoint.uploadID}")
+            return done
+        }
+        checkpoint.delete()
+        val metadata = ObjectMetadata()
+        mime?.let { metadata.contentType = it }
+        val result = s3Client.initiateMultipartUpload(
+            InitiateMultipartUploadRequest(bucket, key, metadata)
+        )
+        checkpoint.start(result.uploadId, plan.partSize, source.length)
+        Log.i(
+            logTag, "Multipart upload of [$key]: ${plan.partNb(source.length)} parts " +
+                    "of ${plan.partSize / 1024}KB, ${plan.parallelism} in parallel"
+        )
+        return 0L
+    }
+
+    /**
+     * Uploads the missing parts. [onProgress] receives the number of newly sent bytes,
+     * and negative values when a part has to be sent again. A [TransferStoppedException]
+     * is thrown when [stopRequest] returns a status.
+     */
+    @Throws(IOException::class)
+    suspend fun run(onProgress: (Long) -> Unit, stopRequest: () -> String?) {
+        val completed = checkpoint.completedParts()
+        val pending = ConcurrentLinkedQueue(
+            (1..plan.partNb(source.length)).filter { !completed.containsKey(it) }
+        )
+        coroutineScope {
+            repeat(plan.parallelism.coerceAtMost(pending.size)) {
+                launch(dispatcher) {
+                    while (true) {
+                        coroutineContext.ensureActive()
+                        val partNumber = pending.poll() ?: break
+                        uploadPart(partNumber, onProgress, stopRequest)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun uploadPart(partNumber: Int, onProgress: (Long) -> Unit, stopRequest: () -> String?) {
+        val offset = (partNumber - 1) * plan.partSize
+        val length = partLength(partNumber)
+        var attempt = 1
+        while (true) {
+            var sent = 0L
+            try {
+                val etag = source.openStream(offset).use { input ->
+                    val progressStream = ProgressInputStream(
+                        input,
+                        { read ->
+                            sent += read
+                            onProgress(read)
+                        },
+                        stopRequest
+                    )
+                    val request = UploadPartRequest()
+                        .withBucketName(bucket)
+                        .withKey(key)
+                        .withUploadId(checkpoint.uploadID)
+                        .withPartNumber(partNumber)
+                        .withPartSize(length)
+                        .withInputStream(progressStream)
+                        .withLastPart(partNumber == plan.partNb(source.length))
+                    s3Client.uploadPart(request).eTag
+                }
+                checkpoint.addPart(partNumber, etag)
+                return
+            } catch (e: Exception) {
+                val stopped = e as? TransferStoppedException ?: e.cause as? TransferStoppedException
+                if (stopped != null) {
+                    throw stopped
+                }
+                if (e is AmazonS3Exception && e.errorCode == NO_SUCH_UPLOAD) {
+                    // The server has dropped the upload, e.g. it has expired: next run starts over
+                    checkpoint.delete()
+                    throw IOException("Upload of [$key] is not known by the server anymore", e)
+                }
+                // The part will be sent again from its start
+                onProgress(-sent)
+                if (attempt >= MAX_PART_ATTEMPTS) {
+                    throw IOException("Could not upload part #$partNumber of [$key]: ${e.message}", e)
+                }
+                Log.w(logTag, "Part #$partNumber of [$key] has failed (attempt $attempt): ${e.message}")
+                attempt++
+            }
+        }
+    }
+
+    /** Bytes of the parts that have been accepted by the server */
+    fun uploadedBytes(): Long {
+        return plan.uploadedBytes(checkpoint.completedParts().keys, source.length)
+    }
+
+    private fun partLength(partNumber: Int): Long {
+        return plan.partLength(partNumber, source.length)
+    }
+
+    @Throws(IOException::class)
+    fun complete() {
+        val partNb = plan.partNb(source.length)
+        val parts = checkpoint.completedParts()
+        if (parts.size != partNb) {
+            throw IOException("Cannot complete upload of [$key]: only ${parts.size} of $partNb parts")
+        }
+        s3Client.completeMultipartUpload(
+            CompleteMultipartUploadRequest(
+                bucket, key, checkpoint.uploadID, parts.map { PartETag(it.key, it.value) }
+            )
+        )
+        checkpoint.delete()
+    }
+
+    /** Also frees the parts that have already been stored on the server side */
+    fun abort() {
+        val uploadID = checkpoint.uploadID ?: checkpoint.takeIf { it.load() }?.uploadID
+        uploadID?.let {
+            try {
+                s3Client.abortMultipartUpload(AbortMultipartUploadRequest(bucket, key, it))
+            } catch (e: Exception) {
+                Log.w(logTag, "Could not abort upload $it for [$key]: ${e.message}")
+            }
+        }
+        checkpoint.delete()
+    }
+
+    companion object {
+        private const val MAX_PART_ATTEMPTS = 3
+        private const val NO_SUCH_UPLOAD = "NoSuchUpload"
+
+        const val CHECKPOINT_SUFFIX = ".upload"
+    }
+}
@@ -0,0 +1,101 @@
+package com.pydio.android.cells.transfer
+
+import android.util.Log
+import com.pydio.android.cells.db.nodes.RTransfer
+import com.pydio.android.cells.db.nodes.TransferDao
+import com.pydio.android.cells.utils.currentTimestamp
+import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import java.util.concurrent.ConcurrentHashMap
+
+/** Live progress of a running transfer, in bytes, and its current speed in bytes per second */
+data class LiveProgress(val progress: Long, val throughput: Long)
+
+/**
+ * Single entry point for the progress of the running transfers: the progress is kept in memory
+ * and exposed to the UI via [liveProgress], while the transfer records are only written
+ * every second or every 5% of the file, whichever comes first. Terminal states (done, error,
+ * pause...) are written by the transfer services right away, they then call [onTerminated].
+ */
+class ProgressAggregator(private val transferMonitor: TransferMonitor) {
+
+    private val logTag = "ProgressAggregator"
+
+    private class Entry {
+        var persistedProgress = 0L
+        var persistedAtMs = 0L
+        var publishedAtMs = 0L
+    }
+
+    private val entries = ConcurrentHashMap<Pair<String, Long>, Entry>()
+
+    private val _liveProgress = MutableStateFlow<Map<Pair<String, Long>, LiveProgress>>(emptyMap())
+
+    /** Keys are the account ID and the transfer ID: transfer IDs are only unique per account */
+    val liveProgress: StateFlow<Map<Pair<String, Long>, LiveProgress>> = _liveProgress.asStateFlow()
+
+    /**
+     * Records the new absolute [progress] of the transfer. Returns true when the progress
+     * has also been persisted: callers might use this to throttle their own side effects.
+     */
+    fun onProgress(
+        accountID: StateID,
+        dao: TransferDao,
+        transferID: Long,
+        byteSize: Long,
+        progress: Long,
+        throughput: Long = 0L,
+    ): Boolean {
+        val key = accountID.account().id to transferID
+        val entry = entries.getOrPut(key) { Entry() }
+        transferMonitor.onProgress(accountID, transferID, progress)
+
+        val now = System.currentTimeMillis()
+        synchronized(entry) {
+            if (now - entry.publishedAtMs >= PUBLISH_PERIOD_MS) {
+                _liveProgress.update { it + (key to LiveProgress(progress, throughput)) }
+                entry.publishedAtMs = now
+            }
+            val step = (byteSize * PERSIST_STEP_PERCENT / 100).coerceAtLeast(1)
+            if (now - entry.persistedAtMs < PERSIST_PERIOD_MS
+                && progress - entry.persistedProgress < step
+            ) {
+                return false
+            }
+            try {
+                dao.updateProgress(transferID, progress, throughput, currentTimestamp())
+            } catch (e: Exception) {
+                Log.e(logTag, "Could not persist progress of #$transferID: ${e.message}")
+                return false
+            }
+            entry.persistedProgress = progress
+            entry.persistedAtMs = now
+            return true
+        }
+    }
+
+    /** Called once the final state of the transfer has been written */
+    fun onTerminated(accountID: StateID, transferID: Long) {
+        val key = accountID.account().id to transferID
+        entries.remove(key)
+        _liveProgress.update { it - key }
+    }
+
+    /** Overrides the persisted progress with the live one when the transfer is running */
+    fun withLiveProgress(accountID: StateID, rTransfer: RTransfer): RTransfer {
+        val live = _liveProgress.value[accountID.account().id to rTransfer.transferId]
+            ?: return rTransfer
+        return rTransfer.copy(progress = live.progress, throughput = live.throughput)
+    }
+
+    companion object {
+        private const val PERSIST_PERIOD_MS = 1000L
+        private const val PERSIST_STEP_PERCENT = 5L
+
+        // The UI does not need more than a few frames per second to show a progress bar
+        private const val PUBLISH_PERIOD_MS = 250L
+    }
+}
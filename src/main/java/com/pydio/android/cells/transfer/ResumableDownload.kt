@@ -0,0 +1,261 @@
+package com.pydio.android.cells.transfer
+
+import android.util.Log
+import com.pydio.android.cells.utils.isPlainMd5
+import com.pydio.android.cells.utils.toHexString
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.HttpURLConnection
+import java.security.MessageDigest
+import java.util.Properties
+
+/**
+ * Sidecar file that stores how many bytes of a partial download are safely persisted,
+ * and the etag of the remote file at the time they have been downloaded.
+ * Segmented downloads store one offset per segment.
+ */
+class DownloadCheckpoint(private val file: File) {
+
+    var offsets: LongArray = LongArray(0)
+        private set
+    var etag: String? = null
+        private set
+
+    val offset: Long
+        get() = offsets.firstOrNull() ?: 0L
+
+    fun load(): Boolean {
+        if (!file.exists()) {
+            return false
+        }
+        return try {
+            val props = Properties()
+            file.inputStream().use { props.load(it) }
+            offsets = props.getProperty(KEY_OFFSET)
+                ?.split(",")
+                ?.mapNotNull { it.trim().toLongOrNull() }
+                ?.toLongArray()
+                ?: LongArray(0)
+            etag = props.getProperty(KEY_ETAG)
+            true
+        } catch (e: IOException) {
+            false
+        }
+    }
+
+    fun save(offset: Long, etag: String?) {
+        save(longArrayOf(offset), etag)
+    }
+
+    fun save(offsets: LongArray, etag: String?) {
+        val props = Properties()
+        props.setProperty(KEY_OFFSET, offsets.joinToString(","))
+        etag?.let { props.setProperty(KEY_ETAG, it) }
+        // Write then rename so that we never read a half written checkpoint
+        val tmp = File(file.path + ".tmp")
+        FileOutputStream(tmp).use {
+            props.store(it, null)
+            it.fd.sync()
+        }
+        if (!tmp.renameTo(file)) {
+            throw IOException("Could not persist checkpoint at ${file.path}")
+        }
+        this.offsets = offsets
+        this.etag = etag
+    }
+
+    fun delete() {
+        file.delete()
+        offsets = LongArray(0)
+        etag = null
+    }
+
+    companion object {
+        private const val KEY_OFFSET = "offset"
+        private const val KEY_ETAG = "etag"
+    }
+}
+
+/** A download that writes to a partial file and can be resumed after an interruption */
+interface PartialDownload {
+
+    /** The MD5 of the whole file, computed while downloading: only set once [run] has succeeded */
+    val md5: String?
+
+    /** Returns the number of bytes that are already on disk and won't be downloaded again */
+    fun prepare(): Long
+
+    /**
+     * Downloads the remaining bytes. [onProgress] receives the number of newly written bytes,
+     * [stopRequest] is regularly called and the download is stopped (while keeping the checkpoint)
+     * when it returns a status.
+     */
+    @Throws(IOException::class)
+    suspend fun run(
+        openConnection: () -> HttpURLConnection,
+        onProgress: (Long) -> Unit,
+        stopRequest: () -> String?,
+    ): Long
+
+    /** Moves the completed download to its final location and removes the checkpoint */
+    @Throws(IOException::class)
+    fun complete(targetFile: File)
+
+    fun reset()
+}
+
+/** Thrown when a transfer has been paused or cancelled while it was running */
+class TransferStoppedException(val status: String) : IOException("Transfer stopped: $status")
+
+/**
+ * Downloads a remote file over HTTP in a partial file, relying on Range requests
+ * to resume from the last checkpoint after an error, a pause or a restart of the app.
+ * The checkpoint is invalidated when the etag of the remote file has changed.
+ */
+class ResumableDownload(
+    private val partFile: File,
+    private val checkpoint: DownloadCheckpoint,
+    private val etag: String?,
+) : PartialDownload {
+
+    private val logTag = "ResumableDownload"
+
+    private val digest = MessageDigest.getInstance("MD5")
+
+    override var md5: String? = null
+        private set
+
+    override fun prepare(): Long {
+        partFile.parentFile?.mkdirs()
+        if (checkpoint.load() && checkpoint.offsets.size == 1
+            && etag != null && checkpoint.etag == etag
+            && partFile.length() >= checkpoint.offset
+        ) {
+            // Drop what has been written after the last checkpoint, it might be corrupted
+            RandomAccessFile(partFile, "rw").use { it.setLength(checkpoint.offset) }
+            Log.i(logTag, "Resuming download of ${partFile.name} at ${checkpoint.offset} bytes")
+            return checkpoint.offset
+        }
+        reset()
+        return 0L
+    }
+
+    /** Streams the remaining bytes to the partial file and returns its final length */
+    override suspend fun run(
+        openConnection: () -> HttpURLConnection,
+        onProgress: (Long) -> Unit,
+        stopRequest: () -> String?,
+    ): Long {
+        val connection = openConnection()
+        var offset = checkpoint.offset
+        try {
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=$offset-")
+                // The server sends the full file rather than a range if the file has changed
+                etag?.let { connection.setRequestProperty("If-Range", "\"$it\"") }
+            }
+            when (val code = connection.responseCode) {
+                HttpURLConnection.HTTP_PARTIAL -> {}
+                HttpURLConnection.HTTP_OK -> if (offset > 0) {
+                    Log.w(logTag, "Range request ignored for ${partFile.name}, restarting from 0")
+                    reset()
+                    offset = 0L
+                }
+
+                HTTP_RANGE_NOT_SATISFIABLE -> {
+                    // Most probably a previous run was interrupted right after the last byte
+                    reset()
+                    throw IOException("Invalid checkpoint for ${partFile.name}, it has been reset")
+                }
+
+                else -> throw IOException("Unexpected HTTP status $code for ${partFile.name}")
+            }
+
+            if (offset > 0) {
+                // Only the bytes that have been downloaded by a previous run are read again
+                hashPrefix(offset)
+            }
+
+            var lastCheckpoint = offset
+            connection.inputStream.use { input ->
+                FileOutputStream(partFile, offset > 0).use { out ->
+                    val buffer = ByteArray(BUFFER_SIZE)
+                    while (true) {
+                        stopRequest()?.let {
+                            out.fd.sync()
+                            checkpoint.save(offset, etag)
+                            throw TransferStoppedException(it)
+                        }
+                        val read = input.read(buffer)
+                        if (read < 0) {
+                            break
+                        }
+                        out.write(buffer, 0, read)
+                        digest.update(buffer, 0, read)
+                        offset += read
+                        onProgress(read.toLong())
+                        if (offset - lastCheckpoint >= CHECKPOINT_STEP) {
+                            // Only checkpoint bytes that are effectively on disk
+                            out.fd.sync()
+                            checkpoint.save(offset, etag)
+                            lastCheckpoint = offset
+                        }
+                    }
+                    out.fd.sync()
+                }
+            }
+            checkpoint.save(offset, etag)
+            md5 = toHexString(digest)
+            return offset
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    private fun hashPrefix(length: Long) {
+        FileInputStream(partFile).use { input ->
+            val buffer = ByteArray(BUFFER_SIZE)
+            var remaining = length
+            while (remaining > 0) {
+                val read = input.read(buffer, 0, minOf(BUFFER_SIZE.toLong(), remaining).toInt())
+                if (read < 0) {
+                    throw IOException("${partFile.name} is shorter than its checkpoint")
+                }
+                digest.update(buffer, 0, read)
+                remaining -= read
+            }
+        }
+    }
+
+    override fun complete(targetFile: File) {
+        if (isPlainMd5(etag) && md5 != etag) {
+            reset()
+            throw IOException("MD5 of ${partFile.name} does not match its etag: $md5")
+        }
+        targetFile.parentFile?.mkdirs()
+        if (targetFile.exists()) {
+            targetFile.delete()
+        }
+        if (!partFile.renameTo(targetFile)) {
+            throw IOException("Could not move ${partFile.path} to ${targetFile.path}")
+        }
+        checkpoint.delete()
+    }
+
+    override fun reset() {
+        partFile.delete()
+        checkpoint.delete()
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val CHECKPOINT_STEP = 4L * 1024 * 1024
+        private const val HTTP_RANGE_NOT_SATISFIABLE = 416
+
+        const val PART_SUFFIX = ".part"
+        const val CHECKPOINT_SUFFIX = ".checkpoint"
+    }
+}
@@ -0,0 +1,245 @@
+package com.pydio.android.cells.transfer
+
+import android.util.Log
+import com.pydio.android.cells.utils.isPlainMd5
+import com.pydio.android.cells.utils.toHexString
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.HttpURLConnection
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import kotlin.coroutines.coroutineContext
+
+/**
+ * Downloads a large file with several concurrent Range requests: each segment is written
+ * at its own position in a preallocated partial file. The progress of each segment is
+ * checkpointed so that an interrupted download is resumed rather than started over.
+ * The MD5 is computed along the way by following the contiguous prefix of written bytes,
+ * and the file is checked against its etag when it is a plain MD5 before it is moved in place.
+ */
+class SegmentedDownload(
+    private val partFile: File,
+    private val checkpoint: DownloadCheckpoint,
+    private val etag: String?,
+    private val size: Long,
+    segmentNb: Int,
+    private val dispatcher: CoroutineDispatcher,
+) : PartialDownload {
+
+    private val logTag = "SegmentedDownload"
+
+    // Segment i covers [starts[i], starts[i+1]), positions[i] is the next byte to download
+    private val starts: LongArray
+    private val positions: LongArray
+
+    private val lock = Any()
+
+    @Volatile
+    private var isOutdated = false
+
+    private val digest = MessageDigest.getInstance("MD5")
+
+    // Signaled each time a segment has written bytes, see hashWrittenBytes()
+    private val written = Channel<Unit>(Channel.CONFLATED)
+
+    override var md5: String? = null
+        private set
+
+    init {
+        val nb = segmentNb.coerceIn(1, (size / MIN_SEGMENT_SIZE).toInt().coerceAtLeast(1))
+        val segmentSize = size / nb
+        starts = LongArray(nb + 1) { if (it == nb) size else it * segmentSize }
+        positions = LongArray(nb) { starts[it] }
+    }
+
+    override fun prepare(): Long {
+        partFile.parentFile?.mkdirs()
+        if (checkpoint.load() && checkpoint.offsets.size == positions.size
+            && etag != null && checkpoint.etag == etag
+            && partFile.length() == size
+            && checkpoint.offsets.withIndex().all { (i, pos) -> pos in starts[i]..starts[i + 1] }
+        ) {
+            checkpoint.offsets.copyInto(positions)
+            val done = downloadedBytes()
+            Log.i(logTag, "Resuming ${positions.size} segments of ${partFile.name} at $done bytes")
+            return done
+        }
+        reset()
+        // Preallocate, so that each segment can directly write at its position
+        RandomAccessFile(partFile, "rw").use { it.setLength(size) }
+        return 0L
+    }
+
+    override suspend fun run(
+        openConnection: () -> HttpURLConnection,
+        onProgress: (Long) -> Unit,
+        stopRequest: () -> String?,
+    ): Long {
+        RandomAccessFile(partFile, "rw").use { raf ->
+            val channel = raf.channel
+            try {
+                coroutineScope {
+                    launch(dispatcher) { hashWrittenBytes(channel) }
+                    for (i in positions.indices) {
+                        if (positions[i] < starts[i + 1]) {
+                            launch(dispatcher) {
+                                downloadSegment(i, channel, openConnection, onProgress, stopRequest)
+                            }
+                        }
+                    }
+                }
+            } finally {
+                saveCheckpoint(channel)
+            }
+        }
+        return downloadedBytes()
+    }
+
+    private suspend fun downloadSegment(
+        index: Int,
+        channel: FileChannel,
+        openConnection: () -> HttpURLConnection,
+        onProgress: (Long) -> Unit,
+        stopRequest: () -> String?,
+    ) {
+        val end = starts[index + 1]
+        val connection = openConnection()
+        try {
+            connection.setRequestProperty("Range", "bytes=${positions[index]}-${end - 1}")
+            etag?.let { connection.setRequestProperty("If-Range", "\"$it\"") }
+            val code = connection.responseCode
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                // A 200 means that the file has changed: the segments are not valid anymore
+                if (code == HttpURLConnection.HTTP_OK) {
+                    isOutdated = true
+                    checkpoint.delete()
+                }
+                throw IOException("Unexpected HTTP status $code for segment #$index of ${partFile.name}")
+            }
+
+            var lastCheckpoint = positions[index]
+            connection.inputStream.use { input ->
+                val buffer = ByteArray(BUFFER_SIZE)
+                while (positions[index] < end) {
+                    stopRequest()?.let { throw TransferStoppedException(it) }
+                    // Stop as soon as another segment has failed
+                    coroutineContext.ensureActive()
+                    val read = input.read(buffer, 0, minOf(BUFFER_SIZE.toLong(), end - positions[index]).toInt())
+                    if (read < 0) {
+                        throw IOException("Segment #$index of ${partFile.name} ended at ${positions[index]} instead of $end")
+                    }
+                    val bb = ByteBuffer.wrap(buffer, 0, read)
+                    var pos = positions[index]
+                    while (bb.hasRemaining()) {
+                        pos += channel.write(bb, pos)
+                    }
+                    // Only move the position once the bytes have been written
+                    positions[index] = pos
+                    written.trySend(Unit)
+                    onProgress(read.toLong())
+                    if (pos - lastCheckpoint >= CHECKPOINT_STEP) {
+                        saveCheckpoint(channel)
+                        lastCheckpoint = pos
+                    }
+                }
+            }
+        } finally {
+            connection.disconnect()
+        }
+    }
+
+    /**
+     * Feeds the digest with the bytes that are written at the start of the file, waiting for
+     * the segment that holds the next bytes when necessary. The bytes are read back right after
+     * they have been written and thus mostly come from the page cache, not from the disk.
+     * When resuming, what has been downloaded by previous runs is hashed first.
+     */
+    private suspend fun hashWrittenBytes(channel: FileChannel) {
+        val buffer = ByteBuffer.allocate(BUFFER_SIZE)
+        var hashed = 0L
+        while (hashed < size) {
+            val available = positions[segmentOf(hashed)]
+            if (available <= hashed) {
+                written.receive()
+                continue
+            }
+            buffer.clear()
+            buffer.limit(minOf(BUFFER_SIZE.toLong(), available - hashed).toInt())
+            val read = channel.read(buffer, hashed)
+            if (read <= 0) {
+                throw IOException("Could not read ${partFile.name} at $hashed")
+            }
+            digest.update(buffer.array(), 0, read)
+            hashed += read
+        }
+        md5 = toHexString(digest)
+    }
+
+    private fun segmentOf(offset: Long): Int {
+        var i = 0
+        while (offset >= starts[i + 1]) {
+            i++
+        }
+        return i
+    }
+
+    /** Only checkpoints bytes that are effectively on disk */
+    private fun saveCheckpoint(channel: FileChannel) {
+        synchronized(lock) {
+            if (isOutdated || !channel.isOpen) {
+                return
+            }
+            val snapshot = positions.copyOf()
+            channel.force(false)
+            checkpoint.save(snapshot, etag)
+        }
+    }
+
+    private fun downloadedBytes(): Long {
+        return positions.indices.sumOf { positions[it] - starts[it] }
+    }
+
+    override fun complete(targetFile: File) {
+        if (downloadedBytes() != size) {
+            throw IOException("Cannot complete ${partFile.name}: only ${downloadedBytes()} of $size bytes")
+        }
+        if (isPlainMd5(etag) && md5 != etag) {
+            // One of the segments is corrupted, we cannot tell which one
+            reset()
+            throw IOException("MD5 of ${partFile.name} does not match its etag: $md5")
+        }
+        targetFile.parentFile?.mkdirs()
+        if (targetFile.exists()) {
+            targetFile.delete()
+        }
+        if (!partFile.renameTo(targetFile)) {
+            throw IOException("Could not move ${partFile.path} to ${targetFile.path}")
+        }
+        checkpoint.delete()
+    }
+
+    override fun reset() {
+        partFile.delete()
+        checkpoint.delete()
+        for (i in positions.indices) {
+            positions[i] = starts[i]
+        }
+    }
+
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val CHECKPOINT_STEP = 4L * 1024 * 1024
+        private const val MIN_SEGMENT_SIZE = 8L * 1024 * 1024
+
+        // Smaller files are downloaded with a single connection
+        const val SIZE_THRESHOLD = 32L * 1024 * 1024
+        const val DEFAULT_SEGMENT_NB = 4
+    }
+}
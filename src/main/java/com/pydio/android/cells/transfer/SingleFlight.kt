@@ -0,0 +1,59 @@
+package com.pydio.android.cells.transfer
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+
+/**
+ * Merges concurrent calls that share the same key: only one call runs at a time for a key
+ * and all callers receive its result. The call is cancelled when all its callers have been
+ * cancelled, e.g. when the rows that wait for a thumbnail have been scrolled off-screen.
+ * At most [maxInFlight] calls run at the same time, others wait for a permit.
+ */
+class SingleFlight<K, V>(
+    private val scope: CoroutineScope,
+    maxInFlight: Int,
+) {
+
+    private class Flight<V>(val deferred: Deferred<V>) {
+        var waiters = 0
+    }
+
+    private val flights = HashMap<K, Flight<V>>()
+    private val permits = Semaphore(maxInFlight)
+
+    suspend fun get(key: K, block: suspend () -> V): V {
+        val flight = synchronized(flights) {
+            val current = flights.getOrPut(key) {
+                Flight(scope.async(start = CoroutineStart.LAZY) { permits.withPermit { block() } })
+            }
+            current.waiters++
+            current
+        }
+        flight.deferred.start()
+        try {
+            return flight.deferred.await()
+        } finally {
+            synchronized(flights) {
+                flight.waiters--
+                if (flight.waiters == 0) {
+                    if (flights[key] === flight) {
+                        flights.remove(key)
+                    }
+                    // Nobody is interested anymore: free the permit or the slot in the queue
+                    if (!flight.deferred.isCompleted) {
+                        flight.deferred.cancel()
+                    }
+                }
+            }
+        }
+    }
+
+    /** Number of keys that are currently requested */
+    fun size(): Int {
+        return synchronized(flights) { flights.size }
+    }
+}
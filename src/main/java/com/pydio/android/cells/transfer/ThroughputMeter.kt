@@ -0,0 +1,30 @@
+package com.pydio.android.cells.transfer
+
+/**
+ * Average speed of the current run of a transfer. Bytes that have been transferred
+ * by previous runs, e.g. before a pause, are not taken into account.
+ */
+class ThroughputMeter {
+
+    private val startNanos = System.nanoTime()
+    private var bytes = 0L
+
+    @Synchronized
+    fun add(byteNb: Long) {
+        bytes += byteNb
+    }
+
+    /** In bytes per second, 0 until we have enough data */
+    @Synchronized
+    fun bytesPerSecond(): Long {
+        val elapsedMs = (System.nanoTime() - startNanos) / 1_000_000
+        if (elapsedMs < MIN_DURATION_MS || bytes <= 0) {
+            return 0L
+        }
+        return bytes * 1000 / elapsedMs
+    }
+
+    companion object {
+        private const val MIN_DURATION_MS = 1000L
+    }
+}
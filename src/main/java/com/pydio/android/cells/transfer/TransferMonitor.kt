@@ -0,0 +1,79 @@
+package com.pydio.android.cells.transfer
+
+import com.pydio.cells.api.ErrorCodes
+import com.pydio.cells.api.SDKException
+import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Relays progress and completion of the watched transfers from the transfer listeners
+ * to the coroutines that wait for them, so that we do not have to poll the DB.
+ */
+class TransferMonitor {
+
+    private data class Signal(val progress: Long = 0L, val isDone: Boolean = false)
+
+    // Keys are the account ID and the transfer ID: transfer IDs are only unique per account
+    private val signals = ConcurrentHashMap<Pair<String, Long>, MutableStateFlow<Signal>>()
+
+    /** Must be called **before** launching the transfer to not miss a quick completion */
+    fun watch(accountID: StateID, transferID: Long) {
+        signals.putIfAbsent(key(accountID, transferID), MutableStateFlow(Signal()))
+    }
+
+    fun forget(accountID: StateID, transferID: Long) {
+        signals.remove(key(accountID, transferID))
+    }
+
+    fun onProgress(accountID: StateID, transferID: Long, progress: Long) {
+        signals[key(accountID, transferID)]?.update { if (it.isDone) it else Signal(progress) }
+    }
+
+    /** Whatever the outcome: the waiting coroutines must then check the transfer record */
+    fun onDone(accountID: StateID, transferID: Long) {
+        signals[key(accountID, transferID)]?.update { Signal(it.progress, true) }
+    }
+
+    /**
+     * Suspends until the transfer is done and stops watching it.
+     * Rather than a global timeout that fails large files, we throw a timeout exception
+     * when no progress has been reported during [stallTimeout].
+     */
+    @Throws(SDKException::class)
+    suspend fun awaitDone(
+        accountID: StateID,
+        transferID: Long,
+        stallTimeout: Duration = STALL_TIMEOUT
+    ) {
+        val key = key(accountID, transferID)
+        val flow = signals[key]
+            ?: throw IllegalStateException("Transfer #$transferID is not watched")
+        try {
+            var last = flow.value
+            while (!last.isDone) {
+                val previous = last
+                last = withTimeoutOrNull(stallTimeout) {
+                    flow.first { it.isDone || it.progress != previous.progress }
+                } ?: throw SDKException(
+                    ErrorCodes.timeout,
+                    "Transfer #$transferID has stalled, no progress since " +
+                            "${stallTimeout.inWholeSeconds}s at ${previous.progress} bytes"
+                )
+            }
+        } finally {
+            signals.remove(key)
+        }
+    }
+
+    private fun key(accountID: StateID, transferID: Long) = accountID.account().id to transferID
+
+    companion object {
+        val STALL_TIMEOUT = 90.seconds
+    }
+}
@@ -1,9 +1,11 @@
 package com.pydio.android.cells.transfer
 
 import android.util.Log
+import androidx.room.withTransaction
 import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.db.nodes.RChangeCursor
 import com.pydio.android.cells.db.nodes.RTreeNode
-import com.pydio.android.cells.db.nodes.TreeNodeDao
+import com.pydio.android.cells.db.nodes.TreeNodeDB
 import com.pydio.android.cells.services.CoroutineService
 import com.pydio.android.cells.services.FileService
 import com.pydio.android.cells.services.NetworkService
@@ -17,6 +19,9 @@ import com.pydio.cells.api.ui.FileNode
 import com.pydio.cells.api.ui.PageOptions
 import com.pydio.cells.transport.StateID
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.joinAll
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import org.koin.core.component.KoinComponent
@@ -26,14 +31,20 @@ import java.io.File
 class TreeDiff(
     private val baseFolderStateId: StateID,
     private val client: Client,
-    private val dao: TreeNodeDao,
+    private val nodeDB: TreeNodeDB,
     private val fileDL: FileDownloader?,
+    // Skip listing of remote folders that have not changed since the last full diff
+    private val useChangeCursor: Boolean = false,
 ) : KoinComponent {
 
     private val logTag = "TreeDiff"
 
+    private val dao = nodeDB.treeNodeDao()
+    private val cursorDao = nodeDB.changeCursorDao()
+
     companion object {
         private const val PAGE_SIZE = 100
+        private const val MAX_BOUND_PARAMS = 500
         fun firstPage(): PageOptions {
             val page = PageOptions()
             page.limit = PAGE_SIZE
@@ -56,9 +67,41 @@ class TreeDiff(
 
     private var changeNumber = 0
 
+    /** True when the listing has been skipped because the remote folder has not changed */
+    var isUnchanged = false
+        private set
+
+    /**
+     * Cursor of the folder when we also check the files: it must only be stored
+     * once all files have been downloaded, see OfflineService.
+     */
+    var offlineCursor: RChangeCursor? = null
+        private set
+
+    // Changes are buffered and then persisted in a single transaction for each page
+    private val toInsert = mutableListOf<RTreeNode>()
+    private val toUpdate = mutableListOf<RTreeNode>()
+    private val toDelete = mutableListOf<String>()
+    private val foldersToDelete = mutableListOf<String>()
+    // Files are only checked once the corresponding node has been persisted
+    private val toCheck = mutableListOf<Pair<StateID, FileNode>>()
+    // Download orders that are still on their way to the file downloader
+    private val orderJobs = mutableListOf<Job>()
+
     /** Retrieve the meta of all readable nodes that are at the passed stateID */
     @Throws(SDKException::class)
     suspend fun compareWithRemote() = withContext(Dispatchers.IO) {
+        try {
+            diff()
+        } finally {
+            // The caller usually tells the downloader that the walk is done once we return:
+            // all downloads must have been ordered by then
+            withContext(NonCancellable) { orderJobs.joinAll() }
+            orderJobs.clear()
+        }
+    }
+
+    private suspend fun diff(): Int {
         if (alsoCheckFiles) {
             Log.i(logTag, "Launching diff for with check file $baseFolderStateId")
         }
@@ -89,14 +132,23 @@ class TreeDiff(
         if (remote == null) {
             local?.let {
                 putDeleteChange(it)
-                return@withContext 1
+                flushChanges()
+                return 1
             }
-            return@withContext 0
+            return 0
         }
 
         // Then perform real diff
         if (remote.isFolder) {
+            if (isUnchangedSinceLastCheck(remote, local)) {
+                isUnchanged = true
+                return 0
+            }
             handleFolder(remote, local)
+            // Also after a full diff that ignored the cursor, so that the next polls can skip
+            if (!client.isLegacy) {
+                storeCursor(remote)
+            }
         } else {
             when {
                 local == null -> {
@@ -113,24 +165,64 @@ class TreeDiff(
                     putUpdateChange(remote, local)
                 }
             }
+            flushChanges()
         }
 
         if (changeNumber > 0) {
             Log.d(logTag, "Synced node at $baseFolderStateId with $changeNumber changes")
         }
 
-        return@withContext changeNumber
+        return changeNumber
+    }
+
+    /**
+     * Compares the remote folder with the cursor that has been stored after the last full diff.
+     * Legacy P8 servers and nodes without e-tag do not provide a reliable cursor:
+     * we then always fall back to the full diff.
+     */
+    private fun isUnchangedSinceLastCheck(remote: FileNode, local: RTreeNode?): Boolean {
+        if (!useChangeCursor || client.isLegacy) {
+            return false
+        }
+        // Folders that have never been listed must be fully retrieved
+        if (local == null || local.lastCheckTS <= 0) {
+            return false
+        }
+        val newCursor = RChangeCursor.computeCursor(remote) ?: return false
+        val stored = cursorDao.get(baseFolderStateId.id) ?: return false
+        // A browse pull does not download files: the offline sync must not skip what it has seen
+        if (!RChangeCursor.matches(stored.cursor, newCursor, offlineOnly = alsoCheckFiles)) {
+            return false
+        }
+        // We only touch the cursor table that is not observed by the UI
+        stored.lastCheckTS = currentTimestamp()
+        cursorDao.insert(stored)
+        return true
+    }
+
+    private fun storeCursor(remote: FileNode) {
+        if (alsoCheckFiles) {
+            offlineCursor = RChangeCursor.fromFileNode(baseFolderStateId, remote, true)
+            return
+        }
+        val cursor = RChangeCursor.fromFileNode(baseFolderStateId, remote, false) ?: return
+        val stored = cursorDao.get(baseFolderStateId.id)
+        // Keep the cursor of an offline sync that has seen the same content
+        if (stored == null || !RChangeCursor.matches(stored.cursor, cursor.cursor, true)) {
+            cursorDao.insert(cursor)
+        }
     }
 
     private suspend fun handleFolder(remote: FileNode, local: RTreeNode?) {
         val remotes = RemoteNodeIterator(baseFolderStateId)
-        val locals = dao.getNodesForDiff(baseFolderStateId.id, baseFolderStateId.file).iterator()
+        val locals = dao.getNodesForDiff(baseFolderStateId.slug, baseFolderStateId.file).iterator()
         processChanges(remotes, locals)
+        flushChanges()
 
         // Update info for current folder
         if (baseFolderStateId.file == "/") {
             // TODO we must perform better checks for workspace roots
-            nodeService.getNode(baseFolderStateId)?.let {
+            local?.let {
                 it.lastCheckTS = currentTimestamp()
                 dao.update(it)
             }
@@ -139,15 +231,15 @@ class TreeDiff(
                 !areNodeContentEquals(remote, local, client.isLegacy) ||
                 changeNumber > 0
             ) {
-                nodeService.upsertNode(
-                    RTreeNode.fromFileNode(baseFolderStateId, remote),
-                    true
-                )
+                val folderNode = RTreeNode.fromFileNode(baseFolderStateId, remote)
+                nodeService.prepareForBulkUpsert(client, nodeDB, listOf(folderNode))
+                // Explicitly mark the folder as checked to differentiate it from not-yet loaded ones
+                folderNode.lastCheckTS = currentTimestamp()
+                // A REPLACE would not fire the delete triggers and leave stale rows in the search index
+                dao.upsert(folderNode)
             } else { // Simply update last time checked TS on local object
-                nodeService.getNode(baseFolderStateId)?.let {
-                    it.lastCheckTS = currentTimestamp()
-                    dao.update(it)
-                }
+                local.lastCheckTS = currentTimestamp()
+                dao.update(local)
             }
         }
     }
@@ -156,6 +248,7 @@ class TreeDiff(
 
         var local = if (lit.hasNext()) lit.next() else null
         while (rit.hasNext()) {
+            flushIfFull()
             val remote = rit.next()
             if (local == null) {
                 putAddChange(remote)
@@ -165,6 +258,7 @@ class TreeDiff(
 
                 while (order > 0 && local != null) { // Next local is lexicographically smaller
                     putDeleteChange(local)
+                    flushIfFull()
                     if (lit.hasNext()) {
                         local = lit.next()
                         order = remote.name.compareTo(local.name)
@@ -193,21 +287,21 @@ class TreeDiff(
         // Delete remaining local nodes that have name greater than the last remote node
         local?.let { putDeleteChange(it) }
         while (lit.hasNext()) {
+            flushIfFull()
             local = lit.next()
             putDeleteChange(local)
         }
     }
 
-    private suspend fun putAddChange(remote: FileNode) {
+    private fun putAddChange(remote: FileNode) {
         // Log.d(logTag, "add for ${remote.name}")
         changeNumber++
         val childStateID = baseFolderStateId.child(remote.name)
-        val rNode = RTreeNode.fromFileNode(childStateID, remote)
-        nodeService.upsertNode(rNode)
-        checkFiles(childStateID, remote)
+        toInsert.add(RTreeNode.fromFileNode(childStateID, remote))
+        toCheck.add(childStateID to remote)
     }
 
-    private suspend fun putUpdateChange(remote: FileNode, local: RTreeNode) {
+    private fun putUpdateChange(remote: FileNode, local: RTreeNode) {
         // Log.d(logTag, "Updating ${remote.name} - ${remote.path}")
 
         changeNumber++
@@ -217,9 +311,12 @@ class TreeDiff(
         val rNode = RTreeNode.fromFileNode(childStateID, remote)
         if (local.isFolder() && remote.isFile) {
             deleteLocalFolder(local)
+            // The local record is removed first in the transaction: we must re-insert it
+            toInsert.add(rNode)
+        } else {
+            toUpdate.add(rNode)
         }
-        nodeService.upsertNode(rNode)
-        checkFiles(childStateID, remote)
+        toCheck.add(childStateID to remote)
     }
 
     private fun putDeleteChange(local: RTreeNode) {
@@ -231,6 +328,50 @@ class TreeDiff(
         }
     }
 
+    private fun pendingChangeNb(): Int {
+        return toInsert.size + toUpdate.size + toDelete.size + foldersToDelete.size
+    }
+
+    /** Large folders are persisted page by page, also when we only delete local nodes */
+    private suspend fun flushIfFull() {
+        if (pendingChangeNb() >= PAGE_SIZE) {
+            flushChanges()
+        }
+    }
+
+    /** Persist buffered changes in a single transaction and then check the corresponding files */
+    private suspend fun flushChanges() {
+        if (pendingChangeNb() == 0) {
+            return
+        }
+        nodeService.prepareForBulkUpsert(client, nodeDB, toInsert + toUpdate)
+        nodeDB.withTransaction {
+            for (folderState in foldersToDelete) {
+                dao.deleteUnder(folderState)
+                cursorDao.deleteUnder(folderState)
+            }
+            // SQLite versions before API 31 do not accept more than 999 bound parameters
+            for (chunk in toDelete.chunked(MAX_BOUND_PARAMS)) {
+                dao.deleteAll(chunk)
+            }
+            if (toInsert.isNotEmpty()) {
+                dao.upsertAll(toInsert)
+            }
+            if (toUpdate.isNotEmpty()) {
+                dao.updateAll(toUpdate)
+            }
+        }
+        foldersToDelete.clear()
+        toDelete.clear()
+        toInsert.clear()
+        toUpdate.clear()
+
+        for ((stateID, remote) in toCheck) {
+            checkFiles(stateID, remote)
+        }
+        toCheck.clear()
+    }
+
     /* LOCAL HELPERS */
     private fun checkFiles(stateID: StateID, remote: FileNode) {
 
@@ -241,7 +382,7 @@ class TreeDiff(
         if (remote.hasThumb() &&
             fileService.needsUpdate(stateID, remote, AppNames.LOCAL_FILE_TYPE_THUMB)
         ) {
-            diffScope.launch {
+            orderJobs += diffScope.launch {
                 // Log.e(logTag, "Launching thumb DL")
                 fileDL.orderDL(stateID.id, AppNames.LOCAL_FILE_TYPE_THUMB)
             }
@@ -251,7 +392,7 @@ class TreeDiff(
         if (remote.isPreViewable &&
             fileService.needsUpdate(stateID, remote, AppNames.LOCAL_FILE_TYPE_PREVIEW)
         ) {
-            diffScope.launch {
+            orderJobs += diffScope.launch {
                 // Log.e(logTag, "Launching preview DL")
                 fileDL.orderDL(stateID.id, AppNames.LOCAL_FILE_TYPE_PREVIEW)
             }
@@ -261,7 +402,7 @@ class TreeDiff(
         if (remote.isFile &&
             fileService.needsUpdate(stateID, remote, AppNames.LOCAL_FILE_TYPE_FILE)
         ) {
-            diffScope.launch {
+            orderJobs += diffScope.launch {
                 // Log.e(logTag, "Launching file DL")
                 fileDL.orderDL(stateID.id, AppNames.LOCAL_FILE_TYPE_FILE, remote.size)
             }
@@ -272,8 +413,8 @@ class TreeDiff(
     private fun deleteLocalFile(local: RTreeNode) {
         // Local thumbs and cached files
         fileService.deleteCachedFilesFor(local)
-        // Remove from index.
-        dao.delete(local.encodedState)
+        // Remove from index on next flush
+        toDelete.add(local.encodedState)
     }
 
     private fun deleteLocalFolder(local: RTreeNode) {
@@ -285,9 +426,9 @@ class TreeDiff(
         if (file.exists()) {
             file.deleteRecursively()
         }
-        // Remove current folder and children in the index
-        dao.deleteUnder(local.encodedState)
-        dao.delete(local.encodedState)
+        // Remove current folder and children in the index on next flush
+        foldersToDelete.add(local.encodedState)
+        toDelete.add(local.encodedState)
     }
 
     /**
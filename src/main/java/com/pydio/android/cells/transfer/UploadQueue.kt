@@ -0,0 +1,130 @@
+package com.pydio.android.cells.transfer
+
+import android.util.Log
+import com.pydio.android.cells.db.nodes.RTransfer
+import com.pydio.android.cells.db.preferences.defaultCellsPreferences
+import com.pydio.android.cells.services.CoroutineService
+import com.pydio.android.cells.services.PreferencesService
+import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/** Uploads the user is waiting for, e.g. a picture that has just been taken, go first */
+enum class UploadPriority {
+    USER_VISIBLE, BATCH
+}
+
+/**
+ * Starts the uploads that are waiting in the transfer tables of all accounts, running at most
+ * the number of uploads that is configured in the sync preferences at the same time.
+ * Uploads are ordered by priority, then in arrival order. The queue itself is the DB:
+ * nothing is lost when the process dies, see UploadResumeWorker.
+ */
+class UploadQueue(
+    private val coroutineService: CoroutineService,
+    preferencesService: PreferencesService,
+    // Returns the next queued uploads of an account, in priority order
+    private val candidates: suspend (accountID: StateID, limit: Int) -> List<RTransfer>,
+    // Runs the upload and only returns once it is terminated
+    private val execute: suspend (accountID: StateID, rTransfer: RTransfer) -> Unit,
+) {
+
+    private val logTag = "UploadQueue"
+
+    @Volatile
+    private var maxUploads = defaultCellsPreferences().sync.uploads
+
+    private val lock = Mutex()
+
+    // Account IDs that might have queued uploads, with the generation of the last wake-up
+    private val pendingAccounts = ConcurrentHashMap<String, Long>()
+    private val generation = AtomicLong(0)
+
+    // Account ID and transfer ID of the running uploads: transfer IDs are only unique per account
+    private val running = mutableSetOf<Pair<String, Long>>()
+
+    private val signals = Channel<Unit>(Channel.CONFLATED)
+    private val busy = MutableStateFlow(false)
+
+    init {
+        coroutineService.cellsIoScope.launch {
+            preferencesService.cellsPreferencesFlow.collect {
+                maxUploads = it.sync.uploads.coerceAtLeast(1)
+                // Concurrency might have been raised
+                signals.trySend(Unit)
+            }
+        }
+        coroutineService.cellsIoScope.launch { dispatch() }
+    }
+
+    /** Must be called once new uploads have been committed to the DB of this account */
+    fun wakeUp(accountID: StateID) {
+        pendingAccounts[accountID.account().id] = generation.incrementAndGet()
+        busy.value = true
+        signals.trySend(Unit)
+    }
+
+    /** Suspends until no upload is running nor waiting anymore */
+    suspend fun awaitIdle() {
+        busy.first { !it }
+    }
+
+    private suspend fun dispatch() {
+        for (signal in signals) {
+            lock.withLock {
+                val free = maxUploads - running.size
+                if (free > 0) {
+                    val next = mutableListOf<Pair<StateID, RTransfer>>()
+                    for ((accountId, gen) in pendingAccounts.entries.toList()) {
+                        val found = try {
+                            candidates(StateID.fromId(accountId), free + running.size)
+                                .filter { !running.contains(accountId to it.transferId) }
+                        } catch (e: Exception) {
+                            Log.e(logTag, "Could not list queued uploads for $accountId: ${e.message}")
+                            emptyList()
+                        }
+                        if (found.isEmpty()) {
+                            // Only forget the account if it has not been woken up in the meantime
+                            pendingAccounts.remove(accountId, gen)
+                        }
+                        found.forEach { next.add(StateID.fromId(accountId) to it) }
+                    }
+                    next.sortedWith(queueOrder).take(free).forEach { (accountID, rTransfer) ->
+                        running.add(accountID.id to rTransfer.transferId)
+                        coroutineService.cellsIoScope.launch { run(accountID, rTransfer) }
+                    }
+                }
+                if (running.isEmpty() && pendingAccounts.isEmpty()) {
+                    busy.value = false
+                }
+            }
+        }
+    }
+
+    private suspend fun run(accountID: StateID, rTransfer: RTransfer) {
+        try {
+            execute(accountID, rTransfer)
+        } catch (e: Exception) {
+            // Uploads are expected to handle their own errors
+            Log.e(logTag, "Unexpected error for upload #${rTransfer.transferId}: ${e.message}")
+        } finally {
+            lock.withLock { running.remove(accountID.id to rTransfer.transferId) }
+            // Other uploads of this account might be waiting
+            wakeUp(accountID)
+        }
+    }
+
+    companion object {
+        private val queueOrder = compareBy<Pair<StateID, RTransfer>>(
+            { it.second.priority },
+            { it.second.creationTimestamp },
+            { it.second.transferId },
+        )
+    }
+}
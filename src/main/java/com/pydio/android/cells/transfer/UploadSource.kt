@@ -0,0 +1,93 @@
+package com.pydio.android.cells.transfer
+
+import android.content.ContentResolver
+import android.net.Uri
+import android.os.ParcelFileDescriptor
+import java.io.File
+import java.io.FileInputStream
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Where the bytes of an upload come from: either a file in the app storage or directly
+ * the content URI we have received, so that we do not have to copy the file before uploading it.
+ */
+sealed interface UploadSource {
+
+    val length: Long
+
+    @Throws(IOException::class)
+    fun openStream(): InputStream
+
+    /** Opens a stream that starts at [offset], used to read a single part of a multipart upload */
+    @Throws(IOException::class)
+    fun openStream(offset: Long): InputStream
+
+    class LocalFile(val file: File) : UploadSource {
+        override val length: Long
+            get() = file.length()
+
+        override fun openStream(): InputStream = FileInputStream(file)
+
+        override fun openStream(offset: Long): InputStream {
+            val input = FileInputStream(file)
+            input.channel.position(offset)
+            return input
+        }
+    }
+
+    class Content(
+        private val contentResolver: ContentResolver,
+        val uri: Uri,
+        override val length: Long,
+    ) : UploadSource {
+        override fun openStream(): InputStream {
+            return contentResolver.openInputStream(uri)
+                ?: throw IOException("Could not open $uri, the provider has crashed")
+        }
+
+        override fun openStream(offset: Long): InputStream {
+            // We only stream sources that are backed by a file: we can directly seek
+            val pfd = contentResolver.openFileDescriptor(uri, "r")
+                ?: throw IOException("Could not open $uri, the provider has crashed")
+            val input = ParcelFileDescriptor.AutoCloseInputStream(pfd)
+            input.channel.position(offset)
+            return input
+        }
+    }
+}
+
+/**
+ * Reports the bytes that are read through this stream and stops the transfer
+ * by throwing a [TransferStoppedException] as soon as [stopRequest] returns a status.
+ */
+class ProgressInputStream(
+    input: InputStream,
+    private val onProgress: (Long) -> Unit,
+    private val stopRequest: () -> String? = { null },
+) : FilterInputStream(input) {
+
+    override fun read(): Int {
+        stopRequest()?.let { throw TransferStoppedException(it) }
+        val b = super.read()
+        if (b >= 0) {
+            onProgress(1)
+        }
+        return b
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        stopRequest()?.let { throw TransferStoppedException(it) }
+        val read = super.read(b, off, len)
+        if (read > 0) {
+            onProgress(read.toLong())
+        }
+        return read
+    }
+
+    override fun markSupported(): Boolean {
+        // The progress would be wrong after a reset
+        return false
+    }
+}
@@ -118,7 +118,8 @@ class WorkspaceDiff(
         // Also handle workspace as a RTreeNode to ease browsing and others action on cache
         val wsState = StateID.fromId(rNode.encodedState)
         val wsTreeNode = RTreeNode.fromWorkspaceNode(wsState, remote)
-        nodeDB.treeNodeDao().insert(wsTreeNode)
+        // Its tree node might have survived the removal of the workspace
+        nodeDB.treeNodeDao().upsert(wsTreeNode)
     }
 
     private fun putUpdateChange(remote: WorkspaceNode) {
@@ -167,6 +168,7 @@ class WorkspaceDiff(
 
         // remove corresponding index
         nodeDB.treeNodeDao().deleteUnder(local.encodedState)
+        nodeDB.changeCursorDao().deleteForWorkspace(local.slug)
 
         // delete main workspace in account DB
         wsDao.forgetWorkspace(local.encodedState)
@@ -3,13 +3,15 @@ package com.pydio.android.cells.transfer.glide
 import com.bumptech.glide.Priority
 import com.bumptech.glide.load.DataSource
 import com.bumptech.glide.load.data.DataFetcher
+import com.bumptech.glide.util.ByteBufferUtil
+import com.pydio.android.cells.services.CoroutineService
 import com.pydio.android.cells.services.TransferService
 import com.pydio.cells.api.ErrorCodes
 import com.pydio.cells.api.SDKException
 import com.pydio.cells.utils.Log
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
@@ -20,6 +22,9 @@ import java.nio.ByteBuffer
  * when a given image is not found in Glide's internal cache, we first look in our cache
  * and if necessary, we download it (file is absent or remote node has changed).
  * Note that the diff is based on the remote modification timestamp and on the eTag.
+ *
+ * The file is handed to Glide as a memory-mapped buffer: decoding reads the pages from disk
+ * and the image bytes are never copied to the heap.
  */
 class CellsFileFetcher(private val model: String) : DataFetcher<ByteBuffer>, KoinComponent {
 
@@ -34,19 +39,26 @@ class CellsFileFetcher(private val model: String) : DataFetcher<ByteBuffer>, Koi
 
     private val logTag = "CellsFileFetcher"
 
-    private var dlJob = Job()
-    private val dlScope = CoroutineScope(Dispatchers.IO + dlJob)
-
+    private val coroutineService: CoroutineService by inject()
     private val transferService: TransferService by inject()
 
+    // Concurrent loads of the same image are merged by the transfer service:
+    // cancelling this job only cancels the download if no one else is waiting for it
+    @Volatile
+    private var loadJob: Job? = null
+
     override fun loadData(priority: Priority, callback: DataFetcher.DataCallback<in ByteBuffer>) {
-        dlScope.launch {
+        loadJob = coroutineService.cellsIoScope.launch {
             val (stateId, type) = decodeModel(model)
             try {
                 val file = transferService.getImageForDisplay(stateId, type, -1)
-                val bytes = file.readBytes()
-                val byteBuffer = ByteBuffer.wrap(bytes)
-                callback.onDataReady(byteBuffer)
+                if (!isActive) {
+                    // The target has gone off-screen while we were downloading
+                    return@launch
+                }
+                callback.onDataReady(ByteBufferUtil.fromFile(file))
+            } catch (ce: CancellationException) {
+                Log.d(logTag, "Load of $type at $stateId has been cancelled")
             } catch (se: SDKException) {
                 Log.e(logTag, "could not get $type at $stateId: ${se.message}")
                 callback.onLoadFailed(
@@ -65,11 +77,14 @@ class CellsFileFetcher(private val model: String) : DataFetcher<ByteBuffer>, Koi
     }
 
     override fun cleanup() {
-        // TODO
+        // The mapped buffer holds no file descriptor and is released with the decoded resource:
+        // we only make sure that no load is still running for this fetcher
+        loadJob?.cancel()
     }
 
     override fun cancel() {
-        // TODO
+        // Called by Glide when the target does not need the image anymore, e.g. on fast scroll
+        loadJob?.cancel()
     }
 
     override fun getDataClass(): Class<ByteBuffer> {
@@ -255,7 +255,8 @@ fun ImportFile(
 ) {
     val alreadyLaunched = rememberSaveable { mutableStateOf(false) }
     val fileImporter = rememberLauncherForActivityResult(
-        contract = ActivityResultContracts.GetMultipleContents(),
+        // Documents that are opened via the storage access framework can be streamed later on
+        contract = ActivityResultContracts.OpenMultipleDocuments(),
         onResult = { uris ->
             nodeActionsVM.importFiles(targetParentID, uris)
             dismiss(true)
@@ -271,7 +272,7 @@ fun ImportFile(
         LaunchedEffect(key1 = targetParentID) {
             Log.e(LOG_TAG, "Launching 'import file' to $targetParentID")
             delay(100)
-            fileImporter.launch("*/*")
+            fileImporter.launch(arrayOf("*/*"))
             alreadyLaunched.value = true
         }
     }
@@ -3,6 +3,9 @@ package com.pydio.android.cells.ui.browse.models
 import android.net.Uri
 import android.util.Log
 import androidx.lifecycle.viewModelScope
+import androidx.paging.PagingData
+import androidx.paging.cachedIn
+import androidx.paging.flatMap
 import com.pydio.android.cells.services.TransferService
 import com.pydio.android.cells.ui.core.AbstractCellsVM
 import com.pydio.android.cells.ui.models.MultipleItem
@@ -22,12 +25,17 @@ class BookmarksVM(
 
     private val logTag = "BookmarksVM"
 
+    // The DB returns one node per UUID: we then retrieve all its appearances to build the item
     @OptIn(ExperimentalCoroutinesApi::class)
-    val bookmarks: Flow<List<MultipleItem>> = defaultOrderPair.flatMapLatest { currPair ->
-        nodeService.listBookmarkFlow(accountID, currPair.first, currPair.second).map { nodes ->
-            deduplicateNodes(nodeService, nodes)
+    val bookmarks: Flow<PagingData<MultipleItem>> = defaultOrderPair.flatMapLatest { currPair ->
+        pagedFlow(
+            nodeService.bookmarksPagingFactory(accountID, currPair.first, currPair.second)
+        )
+    }.map { pagingData ->
+        pagingData.flatMap { node ->
+            deduplicateNodes(nodeService, nodeService.listBookmarkedAppearances(node))
         }
-    }
+    }.cachedIn(viewModelScope)
 
     fun forceRefresh(stateID: StateID) {
         viewModelScope.launch {
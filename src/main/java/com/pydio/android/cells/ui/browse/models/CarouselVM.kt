@@ -9,6 +9,7 @@ import com.pydio.android.cells.utils.isPreViewable
 import com.pydio.cells.transport.StateID
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.map
@@ -44,7 +45,7 @@ class CarouselVM(
             val preViewable = isPreViewable(item)
             preViewable
         }
-    }
+    }.distinctUntilChanged()
 
     init {
         viewModelScope.launch {
@@ -2,11 +2,14 @@ package com.pydio.android.cells.ui.browse.models
 
 import android.util.Log
 import androidx.lifecycle.viewModelScope
+import androidx.paging.PagingData
+import androidx.paging.cachedIn
+import androidx.paging.map
 import com.pydio.android.cells.db.accounts.RWorkspace
 import com.pydio.android.cells.db.nodes.RTreeNode
 import com.pydio.android.cells.ui.core.AbstractCellsVM
 import com.pydio.android.cells.ui.models.TreeNodeItem
-import com.pydio.android.cells.ui.models.toTreeNodeItems
+import com.pydio.android.cells.ui.models.TreeNodeItemMapper
 import com.pydio.cells.transport.StateID
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.Flow
@@ -14,7 +17,7 @@ import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
 import kotlinx.coroutines.flow.flatMapLatest
-import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
@@ -33,26 +36,33 @@ class FolderVM(private val stateID: StateID) : AbstractCellsVM() {
     private val _rWorkspace = MutableStateFlow<RWorkspace?>(null)
     val workspace: StateFlow<RWorkspace?> = _rWorkspace.asStateFlow()
 
-    // Observe parent folder's children
+    private val itemMapper = TreeNodeItemMapper(nodeService)
+
+    // Observe parent folder's children, page by page: pages are only reloaded
+    // when a child of this very folder has changed
     @OptIn(ExperimentalCoroutinesApi::class)
-    private val tnChildren: Flow<List<RTreeNode>> =
+    private val tnChildren: Flow<PagingData<RTreeNode>> =
         defaultOrderPair.flatMapLatest { (order, direction) ->
             try {
+                val changes = nodeService.folderChanges(stateID)
                 if (stateID.slug.isNullOrEmpty()) {
-                    nodeService.listWorkspaces(stateID)
+                    pagedFlow(changes, nodeService.workspacesPagingFactory(stateID))
                 } else {
-                    nodeService.sortedListFlow(stateID, order, direction)
+                    pagedFlow(
+                        changes,
+                        nodeService.sortedListPagingFactory(stateID, order, direction)
+                    )
                 }
             } catch (e: Exception) {
                 // This should never happen but it has been seen in prod
                 // Adding a failsafe to avoid crash
                 Log.e(logTag, "Could not list children for $stateID: ${e.message}")
-                flow { listOf<RTreeNode>() }
+                flowOf(PagingData.empty())
             }
         }
-    val children: Flow<List<TreeNodeItem>> = tnChildren.map { nodes ->
-        toTreeNodeItems(nodeService, nodes)
-    }
+    val children: Flow<PagingData<TreeNodeItem>> = tnChildren.map { pagingData ->
+        pagingData.map { itemMapper.toItem(it) }
+    }.cachedIn(viewModelScope)
 
     init {
         viewModelScope.launch {
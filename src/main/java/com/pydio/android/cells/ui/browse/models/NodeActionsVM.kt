@@ -9,13 +9,13 @@ import com.pydio.android.cells.services.CoroutineService
 import com.pydio.android.cells.services.FileService
 import com.pydio.android.cells.services.OfflineService
 import com.pydio.android.cells.services.TransferService
+import com.pydio.android.cells.transfer.UploadPriority
 import com.pydio.android.cells.ui.core.AbstractCellsVM
 import com.pydio.android.cells.ui.models.fromMessage
 import com.pydio.android.cells.utils.DEFAULT_FILE_PROVIDER_ID
 import com.pydio.cells.api.SDKException
 import com.pydio.cells.transport.StateID
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import java.io.File
@@ -168,18 +168,10 @@ class NodeActionsVM(
     }
 
     fun importFiles(stateID: StateID, uris: List<Uri>) {
-        coroutineService.cellsIoScope.launch {
-            try {
-                for (uri in uris) {
-                    if (this.isActive) {
-                        transferService.enqueueUpload(stateID, uri)
-                    }
-                }
-                done()
-            } catch (e: SDKException) {
-                localDone("#${e.code} - ${e.message}", "Could import files at $stateID")
-            }
-        }
+        // Large selections must not delay the files the user is explicitly waiting for
+        val priority = if (uris.size > 1) UploadPriority.BATCH else UploadPriority.USER_VISIBLE
+        transferService.enqueueUploads(stateID, uris, priority)
+        done()
     }
 
     private var _targetForPhoto: Pair<StateID, Uri>? = null
@@ -3,6 +3,8 @@ package com.pydio.android.cells.ui.browse.models
 import android.net.Uri
 import android.util.Log
 import androidx.lifecycle.viewModelScope
+import androidx.paging.PagingData
+import androidx.paging.cachedIn
 import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.ServerConnection
 import com.pydio.android.cells.db.nodes.RLiveOfflineRoot
@@ -16,6 +18,7 @@ import com.pydio.android.cells.ui.core.AbstractCellsVM
 import com.pydio.cells.transport.StateID
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
@@ -40,14 +43,12 @@ class OfflineVM(
 
     // Observe the defined offline roots for current account
     @OptIn(ExperimentalCoroutinesApi::class)
-    val offlineRoots: StateFlow<List<RLiveOfflineRoot>> =
+    val offlineRoots: Flow<PagingData<RLiveOfflineRoot>> =
         defaultOrderPair.flatMapLatest { currPair ->
-            nodeService.listOfflineRoots(accountID, currPair.first, currPair.second)
-        }.stateIn(
-            scope = viewModelScope,
-            started = SharingStarted.WhileSubscribed(5000),
-            initialValue = listOf()
-        )
+            pagedFlow(
+                nodeService.offlineRootsPagingFactory(accountID, currPair.first, currPair.second)
+            )
+        }.cachedIn(viewModelScope)
 
     // Observe latest sync job
     @OptIn(ExperimentalCoroutinesApi::class)
@@ -108,7 +109,8 @@ class OfflineVM(
                 return@launch
             }
             try {
-                _syncJobID.value = offlineService.launchOfflineRootSync(stateID)
+                // Explicit re-sync of a single root: we also walk unchanged sub-trees
+                _syncJobID.value = offlineService.launchOfflineRootSync(stateID, true)
                 done()
             } catch (e: Exception) {
                 done(e)
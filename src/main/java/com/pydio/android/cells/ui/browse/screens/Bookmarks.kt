@@ -12,8 +12,6 @@ import androidx.compose.foundation.layout.padding
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.grid.GridCells
 import androidx.compose.foundation.lazy.grid.LazyVerticalGrid
-import androidx.compose.foundation.lazy.grid.items
-import androidx.compose.foundation.lazy.items
 import androidx.compose.material.ExperimentalMaterialApi
 import androidx.compose.material.pullrefresh.PullRefreshIndicator
 import androidx.compose.material.pullrefresh.pullRefresh
@@ -41,6 +39,10 @@ import androidx.compose.ui.Modifier
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.res.dimensionResource
 import androidx.compose.ui.res.stringResource
+import androidx.paging.LoadState
+import androidx.paging.compose.LazyPagingItems
+import androidx.paging.compose.collectAsLazyPagingItems
+import androidx.paging.compose.itemKey
 import com.pydio.android.cells.ListContext
 import com.pydio.android.cells.LoadingState
 import com.pydio.android.cells.R
@@ -94,7 +96,7 @@ fun Bookmarks(
     }
 
     // Business Objects
-    val bookmarks = bookmarksVM.bookmarks.collectAsState(listOf())
+    val bookmarks = bookmarksVM.bookmarks.collectAsLazyPagingItems()
     val forceRefresh: () -> Unit = {
         bookmarksVM.forceRefresh(accountID)
     }
@@ -278,7 +280,7 @@ fun Bookmarks(
             connectionState = connectionState,
             listLayout = listLayout,
             label = stringResource(id = R.string.action_open_bookmarks),
-            bookmarks = bookmarks.value,
+            bookmarks = bookmarks,
             forceRefresh = forceRefresh,
             openDrawer = openDrawer,
             onTap = itemTapped,
@@ -303,7 +305,7 @@ private fun BookmarkScaffold(
     connectionState: ConnectionState,
     listLayout: ListLayout,
     label: String,
-    bookmarks: List<MultipleItem>,
+    bookmarks: LazyPagingItems<MultipleItem>,
     openDrawer: () -> Unit,
     openSearch: (() -> Unit)? = null,
     forceRefresh: () -> Unit,
@@ -433,7 +435,7 @@ private fun BookmarkList(
     connectionState: ConnectionState,
     listLayout: ListLayout,
     isSelectionMode: Boolean,
-    bookmarks: List<MultipleItem>,
+    bookmarks: LazyPagingItems<MultipleItem>,
     selectedItems: Set<StateID>,
     forceRefresh: () -> Unit,
     openMoreMenu: (StateID) -> Unit,
@@ -450,7 +452,7 @@ private fun BookmarkList(
     )
     WithLoadingListBackground(
         connectionState = connectionState,
-        isEmpty = bookmarks.isEmpty(),
+        isEmpty = bookmarks.itemCount == 0 && bookmarks.loadState.refresh is LoadState.NotLoading,
         listContext = ListContext.BOOKMARKS,
         emptyRefreshableDesc = stringResource(R.string.no_bookmark_for_account),
         modifier = Modifier.padding(padding)
@@ -474,9 +476,10 @@ private fun BookmarkList(
                         modifier = Modifier.fillMaxWidth()
                     ) {
                         items(
-                            items = bookmarks,
-                            key = { it.uuid }
-                        ) { node ->
+                            count = bookmarks.itemCount,
+                            key = bookmarks.itemKey { it.uuid }
+                        ) { index ->
+                            val node = bookmarks[index] ?: return@items
                             MultipleGridItem(
                                 item = node,
                                 more = { openMoreMenu(node.defaultStateID()) },
@@ -500,7 +503,11 @@ private fun BookmarkList(
 //                        contentPadding = padding,
                         modifier = Modifier.fillMaxWidth()
                     ) {
-                        items(bookmarks, key = { it.uuid }) { node ->
+                        items(
+                            count = bookmarks.itemCount,
+                            key = bookmarks.itemKey { it.uuid }
+                        ) { index ->
+                            val node = bookmarks[index] ?: return@items
                             BookmarkListItem(
                                 item = node,
                                 more = { openMoreMenu(node.defaultStateID()) },
@@ -35,8 +35,10 @@ import com.bumptech.glide.integration.compose.placeholder
 import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.R
 import com.pydio.android.cells.db.nodes.RTreeNode
+import com.pydio.android.cells.transfer.PrefetchItem
 import com.pydio.android.cells.transfer.glide.encodeModel
 import com.pydio.android.cells.ui.browse.models.CarouselVM
+import com.pydio.android.cells.ui.core.composables.lists.PrefetchPreviews
 import com.pydio.cells.transport.StateID
 import com.pydio.cells.utils.Log
 import kotlin.math.PI
@@ -236,6 +238,15 @@ fun HorizontalPagerWithOffsetTransition(
         items.size
     }
 
+    // Legacy servers have no previews: the carousel shows the full files
+    if (!carouselVM.isRemoteLegacy) {
+        PrefetchPreviews(pagerState, { page ->
+            items.getOrNull(page)?.let {
+                PrefetchItem(it.getStateID(), AppNames.LOCAL_FILE_TYPE_PREVIEW, it.etag)
+            }
+        })
+    }
+
     HorizontalPager(
         state = pagerState,
         modifier = modifier
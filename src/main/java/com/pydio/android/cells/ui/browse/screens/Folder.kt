@@ -14,8 +14,8 @@ import androidx.compose.foundation.layout.padding
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.grid.GridCells
 import androidx.compose.foundation.lazy.grid.LazyVerticalGrid
-import androidx.compose.foundation.lazy.grid.items
-import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.lazy.grid.rememberLazyGridState
+import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.material.ExperimentalMaterialApi
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.Add
@@ -48,10 +48,15 @@ import androidx.compose.ui.draw.alpha
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.res.dimensionResource
 import androidx.compose.ui.res.stringResource
+import androidx.paging.LoadState
+import androidx.paging.compose.LazyPagingItems
+import androidx.paging.compose.collectAsLazyPagingItems
+import androidx.paging.compose.itemKey
 import com.pydio.android.cells.ListContext
 import com.pydio.android.cells.LoadingState
 import com.pydio.android.cells.R
 import com.pydio.android.cells.services.models.ConnectionState
+import com.pydio.android.cells.transfer.PrefetchItem
 import com.pydio.android.cells.ui.browse.BrowseHelper
 import com.pydio.android.cells.ui.browse.composables.NodeAction
 import com.pydio.android.cells.ui.browse.composables.NodeItem
@@ -67,7 +72,9 @@ import com.pydio.android.cells.ui.core.composables.getNodeDesc
 import com.pydio.android.cells.ui.core.composables.getNodeTitle
 import com.pydio.android.cells.ui.core.composables.lists.M3BrowseUpLargeGridItem
 import com.pydio.android.cells.ui.core.composables.lists.M3BrowseUpListItem
+import com.pydio.android.cells.ui.core.composables.lists.PrefetchThumbs
 import com.pydio.android.cells.ui.core.composables.lists.WithLoadingListBackground
+import com.pydio.android.cells.ui.core.composables.lists.thumbPrefetchItem
 import com.pydio.android.cells.ui.core.composables.modal.ModalBottomSheetValue
 import com.pydio.android.cells.ui.core.composables.modal.rememberModalBottomSheetState
 import com.pydio.android.cells.ui.core.getFloatResource
@@ -134,7 +141,7 @@ fun Folder(
     // Business States
     val treeNode by folderVM.treeNode.collectAsState()
     val workspace by folderVM.workspace.collectAsState()
-    val children = folderVM.children.collectAsState(listOf())
+    val children = folderVM.children.collectAsLazyPagingItems()
     val binLabel = stringResource(R.string.recycle_bin_label)
     val currNodeLabel by remember(key1 = treeNode, key2 = workspace) {
         derivedStateOf {
@@ -239,7 +246,7 @@ fun Folder(
             showFAB = showFAB,
             label = currNodeLabel,
             stateID = folderID,
-            children = children.value,
+            children = children,
             forceRefresh = forceRefresh,
             openDrawer = openDrawer,
             openSearch = openSearch,
@@ -267,7 +274,7 @@ private fun FolderScaffold(
     showFAB: Boolean,
     label: String,
     stateID: StateID,
-    children: List<TreeNodeItem>,
+    children: LazyPagingItems<TreeNodeItem>,
     forceRefresh: () -> Unit,
     openDrawer: () -> Unit,
     openSearch: () -> Unit,
@@ -389,7 +396,7 @@ private fun FolderList(
     listLayout: ListLayout,
     isSelectionMode: Boolean,
     stateID: StateID,
-    children: List<TreeNodeItem>,
+    children: LazyPagingItems<TreeNodeItem>,
     selectedItems: Set<StateID>,
     onTap: (StateID, Boolean) -> Unit,
     openMoreMenu: (StateID) -> Unit,
@@ -406,7 +413,7 @@ private fun FolderList(
 
     WithLoadingListBackground(
         connectionState = loadingState,
-        isEmpty = children.isEmpty(),
+        isEmpty = children.itemCount == 0 && children.loadState.refresh is LoadState.NotLoading,
         listContext = ListContext.BROWSE,
         modifier = Modifier.padding(padding)
     ) {
@@ -425,6 +432,15 @@ private fun FolderList(
             else -> stringResource(R.string.parent_folder)
         }
 
+        // The parent folder item shifts the indexes of the lazy lists
+        val offset = if (stateID.path.isNullOrEmpty()) 0 else 1
+        val prefetchItemAt: (Int) -> PrefetchItem? = { index ->
+            val childIndex = index - offset
+            if (childIndex in 0 until children.itemCount) {
+                children.peek(childIndex)?.let { thumbPrefetchItem(it.stateID, it.eTag, it.hasThumb) }
+            } else null
+        }
+
         Box(Modifier.pullRefresh(state)) {
             when (listLayout) {
                 ListLayout.GRID -> {
@@ -435,7 +451,10 @@ private fun FolderList(
                         start = dimensionResource(R.dimen.margin_medium),
                         end = dimensionResource(R.dimen.margin_medium),
                     )
+                    val gridState = rememberLazyGridState()
+                    PrefetchThumbs(gridState, prefetchItemAt)
                     LazyVerticalGrid(
+                        state = gridState,
                         columns = GridCells.Adaptive(minSize = dimensionResource(R.dimen.grid_large_col_min_width)),
                         verticalArrangement = Arrangement.spacedBy(dimensionResource(R.dimen.grid_large_padding)),
                         horizontalArrangement = Arrangement.spacedBy(dimensionResource(R.dimen.grid_large_padding)),
@@ -445,9 +464,10 @@ private fun FolderList(
                             item { M3BrowseUpLargeGridItem(parDesc, parItemModifier) }
                         }
                         items(
-                            items = children,
-                            key = { it.stateID.id }
-                        ) { nodeItem ->
+                            count = children.itemCount,
+                            key = children.itemKey { it.stateID.id }
+                        ) { index ->
+                            val nodeItem = children[index] ?: return@items
                             val showMore: (() -> Unit)? =
                                 if (nodeItem.showMoreMenu(loadingState, isSelectionMode)) {
                                     { openMoreMenu(nodeItem.defaultStateID()) }
@@ -471,7 +491,10 @@ private fun FolderList(
                 }
 
                 else -> {
+                    val listState = rememberLazyListState()
+                    PrefetchThumbs(listState, prefetchItemAt)
                     LazyColumn(
+                        state = listState,
                         contentPadding = PaddingValues(bottom = dimensionResource(R.dimen.list_bottom_fab_padding)),
                         modifier = Modifier.fillMaxWidth()
                     ) {
@@ -479,9 +502,10 @@ private fun FolderList(
                             item(key = "parent") { M3BrowseUpListItem(parDesc, parItemModifier) }
                         }
                         items(
-                            children,
-                            key = { it.stateID.id }
-                        ) { nodeItem ->
+                            count = children.itemCount,
+                            key = children.itemKey { it.stateID.id }
+                        ) { index ->
+                            val nodeItem = children[index] ?: return@items
                             val showMore: (() -> Unit)? =
                                 if (nodeItem.showMoreMenu(loadingState, isSelectionMode)) {
                                     { openMoreMenu(nodeItem.stateID) }
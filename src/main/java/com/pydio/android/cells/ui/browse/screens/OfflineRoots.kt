@@ -22,8 +22,6 @@ import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.grid.GridCells
 import androidx.compose.foundation.lazy.grid.GridItemSpan
 import androidx.compose.foundation.lazy.grid.LazyVerticalGrid
-import androidx.compose.foundation.lazy.grid.items
-import androidx.compose.foundation.lazy.items
 import androidx.compose.material.ExperimentalMaterialApi
 import androidx.compose.material.pullrefresh.PullRefreshIndicator
 import androidx.compose.material.pullrefresh.pullRefresh
@@ -54,6 +52,10 @@ import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.res.dimensionResource
 import androidx.compose.ui.res.stringResource
 import androidx.compose.ui.tooling.preview.Preview
+import androidx.paging.LoadState
+import androidx.paging.compose.LazyPagingItems
+import androidx.paging.compose.collectAsLazyPagingItems
+import androidx.paging.compose.itemKey
 import com.pydio.android.cells.ListContext
 import com.pydio.android.cells.ListType
 import com.pydio.android.cells.LoadingState
@@ -105,7 +107,7 @@ fun OfflineRoots(
 
     val errMsg = offlineVM.errorMessage.collectAsState(null)
     val syncJob = offlineVM.syncJob.collectAsState()
-    val roots = offlineVM.offlineRoots.collectAsState()
+    val roots = offlineVM.offlineRoots.collectAsLazyPagingItems()
 
     LaunchedEffect(key1 = errMsg.value) {
         errMsg.value?.let {
@@ -214,7 +216,7 @@ fun OfflineRoots(
         listLayout = listLayout,
         syncJob = syncJob.value,
         title = stringResource(id = R.string.action_open_offline_roots),
-        roots = roots.value,
+        roots = roots,
         openDrawer = openDrawer,
         forceRefresh = offlineVM::forceFullSync,
         open = localOpen,
@@ -237,7 +239,7 @@ private fun WithScaffold(
     listLayout: ListLayout,
     syncJob: RJob?,
     title: String,
-    roots: List<RLiveOfflineRoot>,
+    roots: LazyPagingItems<RLiveOfflineRoot>,
     openDrawer: () -> Unit,
     forceRefresh: () -> Unit,
     open: (StateID) -> Unit,
@@ -366,7 +368,7 @@ private fun OfflineRootsList(
     connectionState: ConnectionState,
     listLayout: ListLayout,
     syncJob: RJob?,
-    roots: List<RLiveOfflineRoot>,
+    roots: LazyPagingItems<RLiveOfflineRoot>,
     forceRefresh: () -> Unit,
     openMoreMenu: (StateID) -> Unit,
     open: (StateID) -> Unit,
@@ -383,7 +385,7 @@ private fun OfflineRootsList(
 
     WithLoadingListBackground(
         connectionState = connectionState,
-        isEmpty = roots.isEmpty(),
+        isEmpty = roots.itemCount == 0 && roots.loadState.refresh is LoadState.NotLoading,
         listContext = ListContext.OFFLINE,
         emptyRefreshableDesc = stringResource(id = R.string.no_offline_root_for_account),
         modifier = Modifier.fillMaxSize()
@@ -424,8 +426,10 @@ private fun OfflineRootsList(
                         }
 
                         items(
-                            items = roots,
-                            key = { it.encodedState }) { node ->
+                            count = roots.itemCount,
+                            key = roots.itemKey { it.encodedState }
+                        ) { index ->
+                            val node = roots[index] ?: return@items
                             if (node.hasThumb()) {
                                 LargeCardWithImage(
                                     stateID = node.getStateID(),
@@ -479,7 +483,11 @@ private fun OfflineRootsList(
                                 )
                             }
                         }
-                        items(roots, key = { it.encodedState }) { offlineRoot ->
+                        items(
+                            count = roots.itemCount,
+                            key = roots.itemKey { it.encodedState }
+                        ) { index ->
+                            val offlineRoot = roots[index] ?: return@items
                             OfflineRootItem(
                                 item = offlineRoot,
                                 title = getNodeTitle(
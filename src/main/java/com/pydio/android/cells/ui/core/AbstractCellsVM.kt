@@ -4,10 +4,17 @@ import android.content.Context
 import android.util.Log
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
+import androidx.paging.InvalidatingPagingSourceFactory
+import androidx.paging.Pager
+import androidx.paging.PagingConfig
+import androidx.paging.PagingData
+import androidx.paging.PagingSource
+import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.ListType
 import com.pydio.android.cells.LoadingState
 import com.pydio.android.cells.ServerConnection
 import com.pydio.android.cells.db.nodes.RTreeNode
+import com.pydio.android.cells.services.CacheMonitor
 import com.pydio.android.cells.services.ConnectionService
 import com.pydio.android.cells.services.ErrorService
 import com.pydio.android.cells.services.NodeService
@@ -18,10 +25,13 @@ import com.pydio.android.cells.utils.externallyView
 import com.pydio.cells.api.ErrorCodes
 import com.pydio.cells.api.SDKException
 import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.channelFlow
 import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.drop
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
@@ -40,6 +50,7 @@ open class AbstractCellsVM : ViewModel(), KoinComponent {
     private val connectionService: ConnectionService by inject()
     protected val prefs: PreferencesService by inject()
     protected val nodeService: NodeService by inject()
+    private val cacheMonitor: CacheMonitor by inject()
     // private val applicationContext: Context by inject()
 
     // Expose a flow of error messages for the end-user
@@ -78,6 +89,34 @@ open class AbstractCellsVM : ViewModel(), KoinComponent {
         )
     }
 
+    /** Only the pages that are about to be displayed are loaded from the DB */
+    protected fun <T : Any> pagedFlow(
+        pagingSourceFactory: () -> PagingSource<Int, T>
+    ): Flow<PagingData<T>> {
+        return Pager(
+            config = PagingConfig(pageSize = LIST_PAGE_SIZE, enablePlaceholders = false),
+            pagingSourceFactory = pagingSourceFactory
+        ).flow
+    }
+
+    /**
+     * Pages that are not observed by Room: all loaded pages are invalidated each time
+     * the [changes] flow emits a new value.
+     */
+    protected fun <T : Any> pagedFlow(
+        changes: Flow<*>,
+        pagingSourceFactory: () -> PagingSource<Int, T>
+    ): Flow<PagingData<T>> {
+        val factory = InvalidatingPagingSourceFactory(pagingSourceFactory)
+        return channelFlow {
+            launch {
+                // First value reflects the state that is loaded by the initial paging source
+                changes.drop(1).collect { factory.invalidate() }
+            }
+            pagedFlow(factory).collect { send(it) }
+        }
+    }
+
     fun setListLayout(listLayout: ListLayout) {
         viewModelScope.launch {
             prefs.setListLayout(listLayout)
@@ -175,6 +214,11 @@ open class AbstractCellsVM : ViewModel(), KoinComponent {
                     " server reachable: $reachable}"
         )
         val (lf, isUpToDate) = nodeService.getLocalFile(node, currSkip)
+        if (lf != null && isUpToDate) {
+            cacheMonitor.onHit(node.getStateID(), AppNames.LOCAL_FILE_TYPE_FILE)
+        } else {
+            cacheMonitor.onMiss(AppNames.LOCAL_FILE_TYPE_FILE)
+        }
 
         if (lf == null) {
             throw SDKException(ErrorCodes.no_local_file)
@@ -187,4 +231,8 @@ open class AbstractCellsVM : ViewModel(), KoinComponent {
             externallyView(context, lf, node)
         }
     }
+
+    companion object {
+        const val LIST_PAGE_SIZE = 50
+    }
 }
@@ -0,0 +1,107 @@
+package com.pydio.android.cells.ui.core.composables.lists
+
+import androidx.compose.foundation.lazy.LazyListState
+import androidx.compose.foundation.lazy.grid.LazyGridState
+import androidx.compose.foundation.pager.PagerState
+import androidx.compose.runtime.Composable
+import androidx.compose.runtime.DisposableEffect
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.rememberUpdatedState
+import androidx.compose.runtime.snapshotFlow
+import com.pydio.android.cells.AppNames
+import com.pydio.android.cells.transfer.ImagePrefetcher
+import com.pydio.android.cells.transfer.PrefetchItem
+import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.flow.distinctUntilChanged
+import org.koin.compose.koinInject
+
+// Number of items after the last visible one whose thumbnail is prefetched in lists
+private const val PREFETCH_LIST_ITEMS = 12
+
+// Number of rows after the last visible one whose thumbnails are prefetched in grids
+private const val PREFETCH_GRID_ROWS = 3
+
+// Number of pages on each side of the current one whose preview is prefetched in the carousel
+private const val PREFETCH_PAGES = 1
+
+/** Shorthand to build the prefetch item of a row that shows a thumbnail */
+fun thumbPrefetchItem(stateID: StateID, eTag: String?, hasThumb: Boolean): PrefetchItem? {
+    return if (hasThumb) PrefetchItem(stateID, AppNames.LOCAL_FILE_TYPE_THUMB, eTag) else null
+}
+
+/**
+ * Warms the thumbnails of the rows that follow the visible ones. [itemAt] receives
+ * an index of the lazy list and returns null when there is nothing to prefetch for this row.
+ */
+@Composable
+fun PrefetchThumbs(
+    listState: LazyListState,
+    itemAt: (Int) -> PrefetchItem?,
+    prefetcher: ImagePrefetcher = koinInject(),
+) {
+    val currItemAt by rememberUpdatedState(itemAt)
+    LaunchedEffect(listState) {
+        snapshotFlow { listState.layoutInfo.visibleItemsInfo.lastOrNull()?.index ?: -1 }
+            .distinctUntilChanged()
+            .collect { last ->
+                val total = listState.layoutInfo.totalItemsCount
+                val upcoming = (last + 1 until minOf(last + 1 + PREFETCH_LIST_ITEMS, total))
+                prefetcher.prefetch(upcoming.mapNotNull { currItemAt(it) })
+            }
+    }
+    StopPrefetchOnDispose(prefetcher)
+}
+
+/** Same as above for grids: we prefetch a few rows rather than a few items */
+@Composable
+fun PrefetchThumbs(
+    gridState: LazyGridState,
+    itemAt: (Int) -> PrefetchItem?,
+    prefetcher: ImagePrefetcher = koinInject(),
+) {
+    val currItemAt by rememberUpdatedState(itemAt)
+    LaunchedEffect(gridState) {
+        snapshotFlow {
+            val visible = gridState.layoutInfo.visibleItemsInfo
+            val last = visible.lastOrNull()
+            val columns = last?.let { l -> visible.count { it.row == l.row } } ?: 0
+            (last?.index ?: -1) to columns
+        }
+            .distinctUntilChanged()
+            .collect { (last, columns) ->
+                val total = gridState.layoutInfo.totalItemsCount
+                val ahead = PREFETCH_GRID_ROWS * columns.coerceAtLeast(1)
+                val upcoming = (last + 1 until minOf(last + 1 + ahead, total))
+                prefetcher.prefetch(upcoming.mapNotNull { currItemAt(it) })
+            }
+    }
+    StopPrefetchOnDispose(prefetcher)
+}
+
+/** Warms the previews of the pages around the current one, the next pages first */
+@Composable
+fun PrefetchPreviews(
+    pagerState: PagerState,
+    itemAt: (Int) -> PrefetchItem?,
+    prefetcher: ImagePrefetcher = koinInject(),
+) {
+    val currItemAt by rememberUpdatedState(itemAt)
+    LaunchedEffect(pagerState) {
+        snapshotFlow { pagerState.currentPage }
+            .distinctUntilChanged()
+            .collect { page ->
+                val around = (1..PREFETCH_PAGES).flatMap { listOf(page + it, page - it) }
+                    .filter { it >= 0 && it < pagerState.pageCount }
+                prefetcher.prefetch(around.mapNotNull { currItemAt(it) })
+            }
+    }
+    StopPrefetchOnDispose(prefetcher)
+}
+
+@Composable
+private fun StopPrefetchOnDispose(prefetcher: ImagePrefetcher) {
+    DisposableEffect(prefetcher) {
+        onDispose { prefetcher.prefetch(listOf()) }
+    }
+}
@@ -62,7 +62,7 @@ class DownloadVM(
             }
             val transferID = transferService.prepareDownload(stateID, AppNames.LOCAL_FILE_TYPE_FILE)
             _transferID.value = transferID
-            transferService.runDownloadTransfer(stateID.account(), transferID, null)
+            transferService.launchDownloadTransfer(stateID.account(), transferID)
         } catch (se: SDKException) {
             val msg = "Cannot download file for $stateID"
             Log.e(logTag, "$msg, cause: ${se.message ?: "-"} ")
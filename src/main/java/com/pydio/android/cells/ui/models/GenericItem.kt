@@ -49,16 +49,21 @@ data class MultipleItem(
     }
 }
 
+/**
+ * Groups the nodes by UUID. When [checkExistence] is true, each node is also checked
+ * against the remote server: this is costly and should be avoided for long lists.
+ */
 suspend fun deduplicateNodes(
     nodeService: NodeService,
-    nodes: List<RTreeNode>
+    nodes: List<RTreeNode>,
+    checkExistence: Boolean = true,
 ): MutableList<MultipleItem> {
     val bis: MutableList<MultipleItem> = mutableListOf()
     // Also manage a short cache for the referenced workspace
     val wss: MutableMap<String, String> = mutableMapOf()
     for (node in nodes) {
         // Dirty tweak to remove nodes from the local store when they have been deleted remotely
-        if (!nodeService.stillExists(node.getStateID())) {
+        if (checkExistence && !nodeService.stillExists(node.getStateID())) {
             continue
         }
 
@@ -1,11 +1,13 @@
 package com.pydio.android.cells.ui.models
 
+import android.util.LruCache
 import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.db.nodes.RTreeNode
 import com.pydio.android.cells.services.NodeService
 import com.pydio.android.cells.services.models.ConnectionState
 import com.pydio.cells.api.SdkNames
 import com.pydio.cells.transport.StateID
+import java.util.Collections
 
 data class TreeNodeItem(
     override val uuid: String,
@@ -80,13 +82,44 @@ data class TreeNodeItem(
     }
 }
 
+/**
+ * Maps nodes to items for a given list view: the items of the nodes that have not changed
+ * since the previous emission are re-used and workspace descriptions are only retrieved once.
+ */
+class TreeNodeItemMapper(
+    private val nodeService: NodeService,
+    maxSize: Int = 1000,
+) {
+
+    private val items = LruCache<String, Pair<RTreeNode, TreeNodeItem>>(maxSize)
+    private val wsDescriptions: MutableMap<String, String?> =
+        Collections.synchronizedMap(mutableMapOf())
+
+    suspend fun toItem(node: RTreeNode): TreeNodeItem {
+        items.get(node.encodedState)?.let { (cachedNode, cachedItem) ->
+            if (cachedNode == node) {
+                return cachedItem
+            }
+        }
+        val newItem = toTreeNodeItem(node, nodeService, wsDescriptions)
+        items.put(node.encodedState, node to newItem)
+        return newItem
+    }
+
+    suspend fun toItems(nodes: List<RTreeNode>): List<TreeNodeItem> {
+        return nodes.map { toItem(it) }
+    }
+}
+
 suspend fun toTreeNodeItems(
     nodeService: NodeService,
     nodes: List<RTreeNode>
 ): List<TreeNodeItem> {
+    // Only retrieve each workspace once
+    val wsDescriptions: MutableMap<String, String?> = mutableMapOf()
     val items: MutableList<TreeNodeItem> = mutableListOf()
     for (node in nodes) {
-        val newItem = toTreeNodeItem(node, nodeService)
+        val newItem = toTreeNodeItem(node, nodeService, wsDescriptions)
         items.add(newItem)
     }
     return items
@@ -94,7 +127,8 @@ suspend fun toTreeNodeItems(
 
 suspend fun toTreeNodeItem(
     node: RTreeNode,
-    nodeService: NodeService
+    nodeService: NodeService,
+    wsDescriptions: MutableMap<String, String?> = mutableMapOf(),
 ): TreeNodeItem {
     val newItem = TreeNodeItem(
         stateID = node.getStateID(),
@@ -119,9 +153,12 @@ suspend fun toTreeNodeItem(
     )
 
     if (newItem.isWsRoot) {
-        nodeService.getWorkspace(node.getStateID().workspace())?.let {
-            newItem.desc = it.description
+        val slug = node.workspace
+        if (!wsDescriptions.containsKey(slug)) {
+            wsDescriptions[slug] =
+                nodeService.getWorkspace(node.getStateID().workspace())?.description
         }
+        newItem.desc = wsDescriptions[slug]
     }
 
     // TODO also update dirty status for this item at this point (typically mod status is too old)
@@ -17,13 +17,19 @@ import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.grid.GridCells
 import androidx.compose.foundation.lazy.grid.LazyVerticalGrid
 import androidx.compose.foundation.lazy.grid.items
+import androidx.compose.foundation.lazy.grid.rememberLazyGridState
 import androidx.compose.foundation.lazy.items
+import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.material3.CircularProgressIndicator
 import androidx.compose.material3.Icon
 import androidx.compose.material3.IconButton
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.derivedStateOf
+import androidx.compose.runtime.getValue
+import androidx.compose.runtime.remember
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.draw.alpha
@@ -36,16 +42,22 @@ import com.pydio.android.cells.ListContext
 import com.pydio.android.cells.LoadingState
 import com.pydio.android.cells.R
 import com.pydio.android.cells.services.models.ConnectionState
+import com.pydio.android.cells.transfer.PrefetchItem
 import com.pydio.android.cells.ui.core.ListLayout
 import com.pydio.android.cells.ui.core.composables.Thumbnail
 import com.pydio.android.cells.ui.core.composables.getNodeDesc
 import com.pydio.android.cells.ui.core.composables.lists.EmptyList
 import com.pydio.android.cells.ui.core.composables.lists.MultipleGridItem
+import com.pydio.android.cells.ui.core.composables.lists.PrefetchThumbs
 import com.pydio.android.cells.ui.core.composables.lists.WithListTheme
 import com.pydio.android.cells.ui.core.composables.lists.getAppearsInDesc
+import com.pydio.android.cells.ui.core.composables.lists.thumbPrefetchItem
 import com.pydio.android.cells.ui.models.MultipleItem
 import com.pydio.cells.transport.StateID
 
+// Ask for more remote hits when the user scrolls this close to the end of the list
+private const val LOAD_MORE_THRESHOLD = 5
+
 @OptIn(ExperimentalFoundationApi::class)
 @Composable
 fun HitsList(
@@ -55,6 +67,7 @@ fun HitsList(
     hits: List<MultipleItem>,
     openMoreMenu: (StateID) -> Unit,
     open: (StateID) -> Unit,
+    loadMore: () -> Unit,
     padding: PaddingValues,
 ) {
 
@@ -81,7 +94,20 @@ fun HitsList(
                     end = dimensionResource(id = R.dimen.margin_medium),
                 )
 
+                val gridState = rememberLazyGridState()
+                val endReached by remember {
+                    derivedStateOf {
+                        val info = gridState.layoutInfo
+                        info.totalItemsCount > 0 &&
+                                (info.visibleItemsInfo.lastOrNull()?.index
+                                    ?: 0) >= info.totalItemsCount - LOAD_MORE_THRESHOLD
+                    }
+                }
+                LaunchedEffect(endReached) { if (endReached) loadMore() }
+                PrefetchThumbs(gridState, { hits.getOrNull(it)?.let(::hitPrefetchItem) })
+
                 LazyVerticalGrid(
+                    state = gridState,
                     columns = GridCells.Adaptive(minSize = dimensionResource(R.dimen.grid_col_min_width)),
                     verticalArrangement = Arrangement.spacedBy(8.dp),
                     horizontalArrangement = Arrangement.spacedBy(8.dp),
@@ -106,7 +132,20 @@ fun HitsList(
             }
 
             else -> {
+                val listState = rememberLazyListState()
+                val endReached by remember {
+                    derivedStateOf {
+                        val info = listState.layoutInfo
+                        info.totalItemsCount > 0 &&
+                                (info.visibleItemsInfo.lastOrNull()?.index
+                                    ?: 0) >= info.totalItemsCount - LOAD_MORE_THRESHOLD
+                    }
+                }
+                LaunchedEffect(endReached) { if (endReached) loadMore() }
+                PrefetchThumbs(listState, { hits.getOrNull(it)?.let(::hitPrefetchItem) })
+
                 LazyColumn(
+                    state = listState,
                     contentPadding = padding,
                     modifier = Modifier.fillMaxWidth()
                 ) {
@@ -126,6 +165,10 @@ fun HitsList(
     }
 }
 
+private fun hitPrefetchItem(item: MultipleItem): PrefetchItem? {
+    return thumbPrefetchItem(item.defaultStateID(), item.eTag, item.hasThumb)
+}
+
 @Composable
 private fun WithSearchLoadingBackground(
     connectionState: ConnectionState,
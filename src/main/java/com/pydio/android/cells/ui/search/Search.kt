@@ -162,6 +162,7 @@ fun Search(
         updateQuery = searchVM::setQuery,
         listLayout = listLayout,
         hits = hits.value,
+        loadMore = searchVM::loadMore,
         open = { currID ->
             scope.launch {
                 searchHelper.open(context, currID)
@@ -188,6 +189,7 @@ private fun WithScaffold(
     updateQuery: (String) -> Unit,
     listLayout: ListLayout,
     hits: List<MultipleItem>,
+    loadMore: () -> Unit,
     open: (StateID) -> Unit,
     launch: (NodeAction, StateID) -> Unit,
     cancel: () -> Unit,
@@ -292,6 +294,7 @@ private fun WithScaffold(
                     focusManager.clearFocus()
                     open(it)
                 },
+                loadMore = loadMore,
                 padding = padding,
             )
         }
@@ -0,0 +1,31 @@
+package com.pydio.android.cells.ui.search
+
+import android.util.Log
+import kotlin.time.TimeSource
+
+/**
+ * Tracks the latency of a single search: time to the first displayed hit
+ * and time until both the local index and the remote server have answered.
+ */
+class SearchMetrics(private val query: String) {
+
+    private val logTag = "SearchMetrics"
+
+    private val start = TimeSource.Monotonic.markNow()
+    private var firstResultReported = false
+    private var completeReported = false
+
+    fun onHits(hitNb: Int, isComplete: Boolean) {
+        if (!firstResultReported && hitNb > 0) {
+            firstResultReported = true
+            Log.i(logTag, "First result for [$query] after ${start.elapsedNow().inWholeMilliseconds}ms")
+        }
+        if (!completeReported && isComplete) {
+            completeReported = true
+            Log.i(
+                logTag, "Search for [$query] completed with $hitNb hits " +
+                        "in ${start.elapsedNow().inWholeMilliseconds}ms"
+            )
+        }
+    }
+}
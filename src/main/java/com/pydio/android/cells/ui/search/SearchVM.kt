@@ -3,10 +3,12 @@ package com.pydio.android.cells.ui.search
 import android.net.Uri
 import android.util.Log
 import androidx.lifecycle.viewModelScope
+import com.pydio.android.cells.db.nodes.RTreeNode
 import com.pydio.android.cells.services.TransferService
 import com.pydio.android.cells.ui.core.AbstractCellsVM
 import com.pydio.android.cells.ui.models.MultipleItem
 import com.pydio.android.cells.ui.models.deduplicateNodes
+import com.pydio.cells.api.SDKException
 import com.pydio.cells.transport.StateID
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
@@ -15,10 +17,11 @@ import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.collectLatest
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.flow.flatMapLatest
-import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 
@@ -48,22 +51,63 @@ class SearchVM(
     val userInput: StateFlow<String>
         get() = _userInput
 
+    // The SDK has no offset for searches: we rather increase the number of requested hits
+    private val _remotePage = MutableStateFlow(1)
+    private var lastRemoteHitNb = 0
+
+    /**
+     * Emits hits from the local index as soon as they are available and merges
+     * remote results when they arrive, local hits first.
+     */
     @OptIn(ExperimentalCoroutinesApi::class)
     val newHits: StateFlow<List<MultipleItem>> = defaultOrder
         .combine(_queryString) { order, query -> order to query }
         .flatMapLatest { currPair ->
             val (order, query) = currPair
-            doStart()
-            nodeService.liveSearch(
-                _localStateID.account(),
-                // Small hack to avoid querying the full repo when the string is empty
-                // TODO improve
-                query.ifEmpty { "3c2babe5-2aa1-4fca-88ad-6b316c7cafe4" },
-                order
-            ).map { nodes ->
-                val result = deduplicateNodes(nodeService, nodes)
-                doStop()
-                result
+            val accountID = _localStateID.account()
+            val metrics = SearchMetrics(query)
+            channelFlow {
+                doStart()
+                val remoteHits = MutableStateFlow<List<RTreeNode>>(listOf())
+                // Local only search is complete as soon as the index has answered
+                val remoteDone = MutableStateFlow(true)
+                if (query.isNotBlank() && connectionState.value.serverConnection.isConnected()) {
+                    remoteDone.value = false
+                    launch {
+                        _remotePage.collectLatest { page ->
+                            remoteDone.value = false
+                            try {
+                                val hits = nodeService.remoteSearch(
+                                    accountID,
+                                    query,
+                                    page * REMOTE_PAGE_SIZE
+                                )
+                                lastRemoteHitNb = hits.size
+                                remoteHits.value = hits
+                            } catch (e: SDKException) {
+                                Log.w(logTag, "Remote search failed for [$query]: ${e.message}")
+                            }
+                            remoteDone.value = true
+                        }
+                    }
+                }
+
+                combine(
+                    nodeService.liveSearch(accountID, query, order),
+                    remoteHits,
+                    remoteDone
+                ) { localNodes, remoteNodes, isDone ->
+                    val known = localNodes.mapTo(HashSet()) { it.encodedState }
+                    val merged = localNodes + remoteNodes.filter { known.add(it.encodedState) }
+                    // Search hits come from the index or the server itself: skip the existence check
+                    deduplicateNodes(nodeService, merged, checkExistence = false) to isDone
+                }.collect { (result, isDone) ->
+                    metrics.onHits(result.size, isDone)
+                    send(result)
+                    if (isDone) {
+                        doStop()
+                    }
+                }
             }
         }.stateIn(
             scope = viewModelScope,
@@ -71,7 +115,6 @@ class SearchVM(
             initialValue = listOf()
         )
 
-
     private fun doStart() = viewModelScope.launch(Dispatchers.Main) {
         launchProcessing()
     }
@@ -80,31 +123,25 @@ class SearchVM(
         done()
     }
 
-    init {
-        viewModelScope.launch {
-            _queryString.collect { query ->
-                if (query.isNotEmpty()) {
-                    Log.d(logTag, "Setting debounced query to: $query")
-                    // TODO make this configurable depending on the connection type
-                    if (connectionState.value.serverConnection.isConnected()) {
-                        // skip remote process when the server is unreachable
-                        nodeService.remoteQuery(_localStateID.account(), query)
-                    }
-                    Log.i(logTag, "Done with query: $query")
-                }
-            }
-        }
-    }
-
     fun newContext(queryContext: String, stateID: StateID) {
         _currQueryContext.value = queryContext
         _localStateID = stateID
     }
 
     fun setQuery(query: String) {
+        lastRemoteHitNb = 0
+        _remotePage.value = 1
         _userInput.value = query
     }
 
+    /** Requests more remote hits, only when the last remote page was full */
+    fun loadMore() {
+        val currPage = _remotePage.value
+        if (lastRemoteHitNb >= currPage * REMOTE_PAGE_SIZE) {
+            _remotePage.value = currPage + 1
+        }
+    }
+
     suspend fun retrieveFolder(stateID: StateID): Boolean {
         val (changeNb, errMsg) = nodeService.pull(stateID)
         // TODO improve error handling
@@ -126,4 +163,8 @@ class SearchVM(
     override fun onCleared() {
         Log.e(logTag, "... Cleared")
     }
+
+    companion object {
+        const val REMOTE_PAGE_SIZE = 20
+    }
 }
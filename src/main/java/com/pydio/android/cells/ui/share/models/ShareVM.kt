@@ -9,11 +9,12 @@ import com.pydio.android.cells.services.NodeService
 import com.pydio.android.cells.services.PreferencesService
 import com.pydio.android.cells.services.TransferService
 import com.pydio.android.cells.ui.models.TreeNodeItem
-import com.pydio.android.cells.ui.models.toTreeNodeItems
+import com.pydio.android.cells.ui.models.TreeNodeItemMapper
 import com.pydio.cells.transport.StateID
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
@@ -44,6 +45,8 @@ class ShareVM(
 //        )
     }
 
+    private val itemMapper = TreeNodeItemMapper(nodeService)
+
     @OptIn(ExperimentalCoroutinesApi::class)
     val children: StateFlow<List<TreeNodeItem>> = orderFlow.flatMapLatest { currPair ->
         val rtNodes = if (stateID.slug.isNullOrEmpty()) {
@@ -51,7 +54,7 @@ class ShareVM(
         } else {
             nodeService.listChildren(stateID, "")
         }
-        rtNodes.map { nodes -> toTreeNodeItems(nodeService, nodes) }
+        rtNodes.map { nodes -> itemMapper.toItems(nodes) }.distinctUntilChanged()
     }.stateIn(
         scope = viewModelScope,
         started = SharingStarted.WhileSubscribed(5000),
@@ -2,19 +2,35 @@ package com.pydio.android.cells.ui.system.models
 
 import android.util.Log
 import androidx.lifecycle.ViewModel
+import androidx.lifecycle.viewModelScope
+import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.services.AccountService
 import com.pydio.android.cells.services.AuthService
+import com.pydio.android.cells.services.CacheManager
+import com.pydio.android.cells.services.CacheMonitor
+import com.pydio.android.cells.services.CacheTypeStats
 import com.pydio.android.cells.services.CoroutineService
 import com.pydio.android.cells.services.ErrorService
 import com.pydio.android.cells.services.JobService
 import com.pydio.android.cells.services.NodeService
+import com.pydio.android.cells.services.PreferencesService
 import com.pydio.cells.api.SDKException
 import com.pydio.cells.transport.StateID
+import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.launch
 
+/** Usage, quota and stats of a type of cached files */
+data class CacheSummary(
+    val type: String,
+    val usedBytes: Long,
+    val quotaMB: Int,
+    val stats: CacheTypeStats,
+)
+
 /** Expose methods used to perform house keeping on the App */
 class HouseKeepingVM(
     private val stateID: StateID,
@@ -24,10 +40,42 @@ class HouseKeepingVM(
     private val accountService: AccountService,
     private val nodeService: NodeService,
     private val errorService: ErrorService,
+    private val cacheManager: CacheManager,
+    cacheMonitor: CacheMonitor,
+    prefs: PreferencesService,
 ) : ViewModel() {
 
     private val logTag = "HouseKeepingVM"
 
+    val cacheSummaries: Flow<List<CacheSummary>> = combine(
+        cacheManager.usage,
+        cacheMonitor.stats,
+        prefs.cellsPreferencesFlow,
+    ) { usage, stats, cellsPreferences ->
+        val quotas = cellsPreferences.cache
+        listOf(
+            AppNames.LOCAL_FILE_TYPE_THUMB to quotas.thumbQuota,
+            AppNames.LOCAL_FILE_TYPE_PREVIEW to quotas.previewQuota,
+            AppNames.LOCAL_FILE_TYPE_FILE to quotas.fileQuota,
+        ).map { (type, quota) ->
+            CacheSummary(type, usage[type] ?: 0L, quota, stats[type] ?: CacheTypeStats())
+        }
+    }
+
+    init {
+        refreshCacheUsage()
+    }
+
+    private fun refreshCacheUsage() {
+        viewModelScope.launch {
+            try {
+                cacheManager.refreshUsage()
+            } catch (e: IllegalStateException) {
+                Log.w(logTag, "Could not compute cache usage: ${e.message}")
+            }
+        }
+    }
+
     private val _alsoEmptyOffline = MutableStateFlow(false)
     val alsoEmptyOffline = _alsoEmptyOffline.asStateFlow()
     private val _alsoLogout = MutableStateFlow(false)
@@ -112,6 +160,7 @@ class HouseKeepingVM(
                 errorService.appendError(msg)
                 hasFailed = true
             }
+            refreshCacheUsage()
 //             Log.e(logTag, "#### Cache clearing launched, still active: ${this.isActive}")
             if (!hasFailed) {
                 val msg = "Cache has been emptied"
@@ -12,6 +12,7 @@ import com.pydio.android.cells.services.AuthService
 import com.pydio.android.cells.services.JobService
 import com.pydio.android.cells.services.SessionFactory
 import com.pydio.android.cells.services.TransferService
+import com.pydio.android.cells.transfer.UploadPriority
 import com.pydio.android.cells.ui.models.AppState
 import com.pydio.android.cells.ui.share.ShareDestinations
 import com.pydio.cells.api.SDKException
@@ -187,7 +188,6 @@ class PreLaunchVM(
     }
 
     private fun launchPost(stateID: StateID, uris: List<Uri>, postLaunched: (Long) -> Unit) {
-        val ids: MutableMap<Long, Pair<String, Uri>> = HashMap()
         viewModelScope.launch {
             // Register the parent Job
             val jobID = jobService.create(
@@ -197,41 +197,13 @@ class PreLaunchVM(
                 maxSteps = uris.size.toLong()
             )
 
-            // Register the uploads
-            for (uri in uris) {
-                Log.i(logTag, "... Processing $uri ")
-                try {
-                    val tid = transferService.register(cr, uri, stateID, jobID)
-                    ids[tid.first] = Pair(tid.second, uri)
-                } catch (e: Exception) {
-                    // TODO handle this
-                }
-            }
-
             // Mark the job has started
             jobService.launched(jobID)
-            ids.forEach { currID ->
-                // Launch the 2 steps process: local copy and then upload
-                val (currName, currUri) = currID.value
-                transferService.launchCopy(cr, currUri, stateID, currID.key, currName)?.let {
-                    launch {
-                        try {
-                            transferService.uploadOne(it)
-                            Log.w(logTag, "... $it ==> upload DONE")
-                        } catch (e: Exception) {
-                            jobService.failed(
-                                jobID, e.message
-                                    ?: "Unexpected error during upload of $currID at $stateID"
-                            )
-                            Log.e(logTag, "... $it ==> upload FAILED: ${e.message}")
-                        }
-                    }
-                    Log.w(logTag, "... $it ==> upload LAUNCHED")
-                } ?: run {
-                    // TODO better error management
-                    Log.e(logTag, "could not upload $currName at $stateID")
-                    jobService.failed(jobID, "Could not launch copy for $currName")
-                }
+            // Register the uploads and prepare their sources while we can still read the URIs,
+            // the upload queue then starts them
+            val ids = transferService.prepareUploads(stateID, uris, UploadPriority.BATCH, jobID)
+            if (ids.isEmpty()) {
+                jobService.failed(jobID, "Could not register uploads at $stateID")
             }
             postLaunched(jobID)
         }
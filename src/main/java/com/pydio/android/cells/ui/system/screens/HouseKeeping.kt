@@ -1,5 +1,6 @@
 package com.pydio.android.cells.ui.system.screens
 
+import android.text.format.Formatter
 import androidx.compose.foundation.layout.Column
 import androidx.compose.foundation.layout.fillMaxWidth
 import androidx.compose.foundation.layout.padding
@@ -15,15 +16,19 @@ import androidx.compose.runtime.collectAsState
 import androidx.compose.runtime.rememberCoroutineScope
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
+import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.res.dimensionResource
 import androidx.compose.ui.res.stringResource
 import androidx.navigation.compose.NavHost
 import androidx.navigation.compose.composable
 import androidx.navigation.compose.dialog
 import androidx.navigation.compose.rememberNavController
+import com.pydio.android.cells.AppNames
 import com.pydio.android.cells.R
+import com.pydio.android.cells.ui.core.composables.PreferenceDivider
 import com.pydio.android.cells.ui.core.composables.PreferenceSectionTitle
 import com.pydio.android.cells.ui.core.composables.SwitchSetting
+import com.pydio.android.cells.ui.core.composables.TextSetting
 import com.pydio.android.cells.ui.core.composables.dialogs.AskForConfirmation
 import com.pydio.android.cells.ui.core.nav.DefaultTopAppBar
 import com.pydio.android.cells.ui.system.models.HouseKeepingVM
@@ -69,6 +74,8 @@ fun HouseKeeping(
                         .wrapContentWidth(Alignment.Start)
                         .verticalScroll(scrollingState)
                 ) {
+                    CacheStatsSection(houseKeepingVM, modifier)
+                    PreferenceDivider(modifier)
                     ParameterSection(houseKeepingVM, modifier)
 //                    PreferenceDivider(modifier)
                     Button(
@@ -114,6 +121,50 @@ fun HouseKeeping(
     }
 }
 
+@Composable
+private fun CacheStatsSection(
+    houseKeepingVM: HouseKeepingVM,
+    modifier: Modifier
+) {
+    PreferenceSectionTitle(
+        stringResource(R.string.house_keeping_cache_stats_title),
+        modifier,
+        stringResource(R.string.house_keeping_cache_stats_desc)
+    )
+
+    val context = LocalContext.current
+    val summaries = houseKeepingVM.cacheSummaries.collectAsState(listOf())
+    summaries.value.forEach { summary ->
+        val used = Formatter.formatShortFileSize(context, summary.usedBytes)
+        val usage = if (summary.quotaMB > 0) {
+            val quota = Formatter.formatShortFileSize(context, summary.quotaMB * 1024L * 1024L)
+            stringResource(R.string.cache_stats_usage, used, quota)
+        } else {
+            stringResource(R.string.cache_stats_usage_no_limit, used)
+        }
+        val stats = summary.stats
+        val requests = stats.hits + stats.misses
+        val hitRate = if (requests > 0) stats.hits * 100 / requests else 0
+        val evicted = Formatter.formatShortFileSize(context, stats.evictedBytes)
+        TextSetting(
+            label = cacheTypeLabel(summary.type),
+            currValue = usage + "\n" +
+                    stringResource(R.string.cache_stats_hits, stats.hits, stats.misses, hitRate) +
+                    "\n" + stringResource(R.string.cache_stats_evictions, stats.evictedFiles, evicted),
+            modifier = modifier,
+        )
+    }
+}
+
+@Composable
+private fun cacheTypeLabel(type: String): String {
+    return when (type) {
+        AppNames.LOCAL_FILE_TYPE_THUMB -> stringResource(R.string.cache_type_thumbs)
+        AppNames.LOCAL_FILE_TYPE_PREVIEW -> stringResource(R.string.cache_type_previews)
+        else -> stringResource(R.string.cache_type_files)
+    }
+}
+
 @Composable
 private fun ParameterSection(
     houseKeepingVM: HouseKeepingVM,
@@ -15,6 +15,8 @@ import androidx.compose.ui.res.dimensionResource
 import androidx.compose.ui.res.stringArrayResource
 import androidx.compose.ui.res.stringResource
 import com.pydio.android.cells.R
+import com.pydio.android.cells.db.preferences.BandwidthPreferences
+import com.pydio.android.cells.db.preferences.CachePreferences
 import com.pydio.android.cells.db.preferences.ListPreferences
 import com.pydio.android.cells.db.preferences.MeteredNetworkPreferences
 import com.pydio.android.cells.db.preferences.SyncPreferences
@@ -68,6 +70,10 @@ fun SettingsScreen(
             PreferenceDivider(modifier)
             MeteredSection(settingsVM, cellsPreferences.value.meteredNetwork, modifier)
             PreferenceDivider(modifier)
+            BandwidthSection(settingsVM, cellsPreferences.value.bandwidth, modifier)
+            PreferenceDivider(modifier)
+            CacheSection(settingsVM, cellsPreferences.value.cache, modifier)
+            PreferenceDivider(modifier)
             TroubleshootingSection(
                 settingsVM,
                 cellsPreferences.value.showDebugTools,
@@ -158,6 +164,103 @@ fun MeteredSection(
     )
 }
 
+@Composable
+fun BandwidthSection(
+    settingsVM: SettingsVM,
+    bandwidthPref: BandwidthPreferences,
+    modifier: Modifier
+) {
+    PreferenceSectionTitle(
+        stringResource(R.string.pref_category_title_bandwidth),
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_bandwidth_unmetered_rate_title),
+        bandwidthPref.unmeteredRate.toString(),
+        keys = stringArrayResource(R.array.bandwidth_rate_values),
+        labels = stringArrayResource(R.array.bandwidth_rate_labels),
+        { settingsVM.setStringPref(PreferencesKeys.BANDWIDTH_UNMETERED_RATE, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_bandwidth_metered_rate_title),
+        bandwidthPref.meteredRate.toString(),
+        keys = stringArrayResource(R.array.bandwidth_rate_values),
+        labels = stringArrayResource(R.array.bandwidth_rate_labels),
+        { settingsVM.setStringPref(PreferencesKeys.BANDWIDTH_METERED_RATE, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_bandwidth_roaming_rate_title),
+        bandwidthPref.roamingRate.toString(),
+        keys = stringArrayResource(R.array.bandwidth_rate_values),
+        labels = stringArrayResource(R.array.bandwidth_rate_labels),
+        { settingsVM.setStringPref(PreferencesKeys.BANDWIDTH_ROAMING_RATE, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_bandwidth_daily_budget_title),
+        bandwidthPref.dailyMeteredBudget.toString(),
+        keys = stringArrayResource(R.array.bandwidth_budget_values),
+        labels = stringArrayResource(R.array.bandwidth_budget_labels),
+        { settingsVM.setStringPref(PreferencesKeys.BANDWIDTH_DAILY_BUDGET, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_bandwidth_background_share_title),
+        bandwidthPref.backgroundShare.toString(),
+        keys = stringArrayResource(R.array.bandwidth_share_values),
+        labels = stringArrayResource(R.array.bandwidth_share_labels),
+        { settingsVM.setStringPref(PreferencesKeys.BANDWIDTH_BACKGROUND_SHARE, it) },
+        modifier,
+    )
+}
+
+@Composable
+fun CacheSection(
+    settingsVM: SettingsVM,
+    cachePref: CachePreferences,
+    modifier: Modifier
+) {
+    PreferenceSectionTitle(
+        stringResource(R.string.pref_category_title_cache),
+        modifier,
+        stringResource(R.string.pref_cache_desc),
+    )
+    ListSetting(
+        stringResource(R.string.pref_cache_thumb_quota_title),
+        cachePref.thumbQuota.toString(),
+        keys = stringArrayResource(R.array.cache_quota_values),
+        labels = stringArrayResource(R.array.cache_quota_labels),
+        { settingsVM.setStringPref(PreferencesKeys.CACHE_THUMB_QUOTA, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_cache_preview_quota_title),
+        cachePref.previewQuota.toString(),
+        keys = stringArrayResource(R.array.cache_quota_values),
+        labels = stringArrayResource(R.array.cache_quota_labels),
+        { settingsVM.setStringPref(PreferencesKeys.CACHE_PREVIEW_QUOTA, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_cache_file_quota_title),
+        cachePref.fileQuota.toString(),
+        keys = stringArrayResource(R.array.cache_quota_values),
+        labels = stringArrayResource(R.array.cache_quota_labels),
+        { settingsVM.setStringPref(PreferencesKeys.CACHE_FILE_QUOTA, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_cache_eviction_policy_title),
+        cachePref.evictionPolicy,
+        keys = stringArrayResource(R.array.cache_eviction_policy_values),
+        labels = stringArrayResource(R.array.cache_eviction_policy_labels),
+        { settingsVM.setStringPref(PreferencesKeys.CACHE_EVICTION_POLICY, it) },
+        modifier,
+    )
+}
+
 @Composable
 fun OfflineSection(
     settingsVM: SettingsVM,
@@ -206,6 +309,46 @@ fun OfflineSection(
         { settingsVM.setBooleanFlag(PreferencesKeys.SYNC_CONST_ON_IDLE, it) },
         modifier,
     )
+    ListSetting(
+        stringResource(R.string.pref_offline_parallelism_title),
+        syncPref.parallelism.toString(),
+        keys = stringArrayResource(R.array.sync_parallelism_values),
+        labels = stringArrayResource(R.array.sync_parallelism_labels),
+        { settingsVM.setStringPref(PreferencesKeys.SYNC_PARALLELISM, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_offline_thumb_downloads_title),
+        syncPref.thumbDownloads.toString(),
+        keys = stringArrayResource(R.array.download_concurrency_values),
+        labels = stringArrayResource(R.array.download_concurrency_labels),
+        { settingsVM.setStringPref(PreferencesKeys.SYNC_THUMB_DOWNLOADS, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_offline_preview_downloads_title),
+        syncPref.previewDownloads.toString(),
+        keys = stringArrayResource(R.array.download_concurrency_values),
+        labels = stringArrayResource(R.array.download_concurrency_labels),
+        { settingsVM.setStringPref(PreferencesKeys.SYNC_PREVIEW_DOWNLOADS, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_offline_file_downloads_title),
+        syncPref.fileDownloads.toString(),
+        keys = stringArrayResource(R.array.download_concurrency_values),
+        labels = stringArrayResource(R.array.download_concurrency_labels),
+        { settingsVM.setStringPref(PreferencesKeys.SYNC_FILE_DOWNLOADS, it) },
+        modifier,
+    )
+    ListSetting(
+        stringResource(R.string.pref_offline_uploads_title),
+        syncPref.uploads.toString(),
+        keys = stringArrayResource(R.array.download_concurrency_values),
+        labels = stringArrayResource(R.array.download_concurrency_labels),
+        { settingsVM.setStringPref(PreferencesKeys.SYNC_UPLOADS, it) },
+        modifier,
+    )
 }
 
 @Composable
@@ -8,17 +8,29 @@ import java.math.BigInteger
 import java.security.MessageDigest
 import java.security.NoSuchAlgorithmException
 
+private val MD5_REGEX = Regex("^[0-9a-f]{32}$")
+
+/** Cells etags are the MD5 of the content, except e.g. for some multipart uploads */
+fun isPlainMd5(etag: String?): Boolean {
+    return etag != null && MD5_REGEX.matches(etag)
+}
+
+/** Completes the digest and returns its hex representation */
+fun toHexString(digest: MessageDigest): String {
+    // Keep the leading zeros so that the result can be compared with an etag
+    return BigInteger(1, digest.digest()).toString(16).padStart(32, '0')
+}
+
 fun computeFileMd5(file: File): String {
     try {
         FileInputStream(file).use { inputStream ->
             val digest = MessageDigest.getInstance("MD5")
-            val bytesBuffer = ByteArray(1024)
+            val bytesBuffer = ByteArray(64 * 1024)
             var bytesRead: Int
             while (inputStream.read(bytesBuffer).also { bytesRead = it } != -1) {
                 digest.update(bytesBuffer, 0, bytesRead)
             }
-            val hashedBytes = BigInteger(1, digest.digest())
-            return hashedBytes.toString(16)
+            return toHexString(digest)
         }
     } catch (ex: NoSuchAlgorithmException) {
         // This should never happen
@@ -0,0 +1,65 @@
+package com.pydio.android.cells.transfer
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+/** The bucket runs on a fake clock that is only moved by the tests */
+class TokenBucketTest {
+
+    private var now = 0L
+
+    private fun advance(ms: Long) {
+        now += ms * 1_000_000
+    }
+
+    @Test
+    fun fullBucketAcceptsOneSecondOfData() {
+        val bucket = TokenBucket(1000) { now }
+        assertEquals(0, bucket.reserve(500))
+        assertEquals(0, bucket.reserve(500))
+        // In debt: the sender waits for the missing tokens
+        assertEquals(500, bucket.reserve(500))
+    }
+
+    @Test
+    fun refillsWithTime() {
+        val bucket = TokenBucket(1000) { now }
+        assertEquals(0, bucket.reserve(1000))
+        advance(250)
+        assertEquals(0, bucket.reserve(250))
+        assertEquals(100, bucket.reserve(100))
+        // The debt is paid first
+        advance(100)
+        assertEquals(0, bucket.reserve(0))
+        assertEquals(1000, bucket.reserve(1000))
+    }
+
+    @Test
+    fun burstIsCappedToOneSecond() {
+        val bucket = TokenBucket(1000) { now }
+        advance(10_000)
+        assertEquals(500, bucket.reserve(1500))
+    }
+
+    @Test
+    fun noRateMeansNoLimit() {
+        val bucket = TokenBucket(0) { now }
+        assertEquals(0, bucket.reserve(1_000_000))
+
+        bucket.setRate(1000)
+        advance(1000)
+        assertEquals(0, bucket.reserve(1000))
+        assertEquals(1000, bucket.reserve(1000))
+
+        bucket.setRate(0)
+        assertEquals(0, bucket.reserve(1_000_000))
+    }
+
+    @Test
+    fun lowerRateDropsTheExtraTokens() {
+        val bucket = TokenBucket(1000) { now }
+        bucket.setRate(100)
+        assertEquals(0, bucket.reserve(100))
+        assertEquals(1000, bucket.reserve(100))
+    }
+}
@@ -0,0 +1,72 @@
+package com.pydio.android.cells.transfer
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/** Transfers are resumed from their checkpoint after a pause or the death of the process */
+class TransferCheckpointTest {
+
+    @get:Rule
+    val tmp = TemporaryFolder()
+
+    private val mb = 1024L * 1024
+
+    @Test
+    fun uploadResumesAfterTheAcceptedParts() {
+        val file = tmp.root.resolve("upload" + MultipartUpload.CHECKPOINT_SUFFIX)
+        val size = 12 * mb
+        val checkpoint = UploadCheckpoint(file)
+        checkpoint.start("upload-1", 5 * mb, size)
+        // Parts complete in any order when they are sent in parallel
+        checkpoint.addPart(3, "etag-3")
+        checkpoint.addPart(1, "etag-1")
+
+        val reloaded = UploadCheckpoint(file)
+        assertTrue(reloaded.load())
+        assertEquals("upload-1", reloaded.uploadID)
+        assertEquals(size, reloaded.length)
+        assertEquals(mapOf(1 to "etag-1", 3 to "etag-3"), reloaded.completedParts())
+
+        // The part size of the first run is kept, whatever the current plan
+        val plan = UploadPlan(reloaded.partSize, 4)
+        assertEquals(7 * mb, plan.uploadedBytes(reloaded.completedParts().keys, size))
+        val missing = (1..plan.partNb(size)).filter { !reloaded.completedParts().containsKey(it) }
+        assertEquals(listOf(2), missing)
+    }
+
+    @Test
+    fun deletedUploadCheckpointStartsOver() {
+        val file = tmp.root.resolve("upload" + MultipartUpload.CHECKPOINT_SUFFIX)
+        assertFalse(UploadCheckpoint(file).load())
+
+        val checkpoint = UploadCheckpoint(file)
+        checkpoint.start("upload-1", 5 * mb, 12 * mb)
+        checkpoint.addPart(1, "etag-1")
+        checkpoint.delete()
+        assertNull(checkpoint.uploadID)
+        assertTrue(checkpoint.completedParts().isEmpty())
+        assertFalse(UploadCheckpoint(file).load())
+    }
+
+    @Test
+    fun downloadResumesAtTheSavedOffsets() {
+        val file = tmp.root.resolve("download" + ResumableDownload.CHECKPOINT_SUFFIX)
+        DownloadCheckpoint(file).save(longArrayOf(2048, 5 * mb, 10 * mb + 12), "etag")
+
+        val reloaded = DownloadCheckpoint(file)
+        assertTrue(reloaded.load())
+        assertArrayEquals(longArrayOf(2048, 5 * mb, 10 * mb + 12), reloaded.offsets)
+        assertEquals("etag", reloaded.etag)
+        // Single range downloads only use the first one
+        assertEquals(2048, reloaded.offset)
+
+        reloaded.delete()
+        assertFalse(DownloadCheckpoint(file).load())
+    }
+}
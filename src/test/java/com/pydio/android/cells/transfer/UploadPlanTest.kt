@@ -0,0 +1,63 @@
+package com.pydio.android.cells.transfer
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class UploadPlanTest {
+
+    private val mb = 1024L * 1024
+
+    @Test
+    fun defaultPartSizeWithoutThroughput() {
+        val plan = UploadPlan.compute(100 * mb, 0, false, 4)
+        assertEquals(UploadPlan.DEFAULT_PART_SIZE, plan.partSize)
+        assertEquals(7, plan.partNb(100 * mb))
+        assertEquals(4, plan.parallelism)
+    }
+
+    @Test
+    fun smallPartsOnLimitedNetworks() {
+        assertEquals(UploadPlan.MIN_PART_SIZE, UploadPlan.compute(100 * mb, 0, true, 4).partSize)
+        // Even when the network is fast
+        assertEquals(
+            UploadPlan.DEFAULT_PART_SIZE,
+            UploadPlan.compute(100 * mb, 2 * mb, true, 4).partSize
+        )
+    }
+
+    @Test
+    fun partSizeFollowsThroughput() {
+        assertEquals(15 * mb, UploadPlan.compute(1024 * mb, mb, false, 4).partSize)
+        // Rounded up to the next MB
+        assertEquals(11 * mb, UploadPlan.compute(1024 * mb, 700_000, false, 4).partSize)
+        // Within bounds
+        assertEquals(UploadPlan.MAX_PART_SIZE, UploadPlan.compute(1024 * mb, 10 * mb, false, 4).partSize)
+        assertEquals(UploadPlan.MIN_PART_SIZE, UploadPlan.compute(1024 * mb, 1024, false, 4).partSize)
+    }
+
+    @Test
+    fun hugeFilesStayUnderThePartNumberLimit() {
+        val size = 1024 * 1024 * mb
+        val plan = UploadPlan.compute(size, mb, false, 4)
+        assertEquals(105 * mb, plan.partSize)
+        assertTrue(plan.partNb(size) <= 10_000)
+    }
+
+    @Test
+    fun parallelismIsCappedByThePartNumber() {
+        assertEquals(3, UploadPlan.compute(12 * mb, 0, true, 4).parallelism)
+        assertEquals(1, UploadPlan.compute(1, 0, false, 4).parallelism)
+        assertEquals(1, UploadPlan.compute(100 * mb, 0, false, 0).parallelism)
+    }
+
+    @Test
+    fun lastPartIsShorter() {
+        val plan = UploadPlan(5 * mb, 2)
+        val size = 12 * mb
+        assertEquals(3, plan.partNb(size))
+        assertEquals(5 * mb, plan.partLength(1, size))
+        assertEquals(2 * mb, plan.partLength(3, size))
+        assertEquals(size, plan.uploadedBytes(listOf(1, 2, 3), size))
+    }
+}